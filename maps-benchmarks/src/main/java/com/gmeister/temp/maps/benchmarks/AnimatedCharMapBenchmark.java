@@ -0,0 +1,92 @@
+package com.gmeister.temp.maps.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gmeister.temp.maps.AnimatedCharMap;
+import com.gmeister.temp.maps.CharMap;
+
+/**
+ * Measures advancing an {@link AnimatedCharMap} by one frame: queueing the
+ * frame and then delivering the tick which patches it in. Each frame changes a
+ * {@code churn} fraction of the cells of the one before, so low churn plays
+ * through deltas and full churn through keyframes. Before each call the map is
+ * put back on the frame before the one advanced to, taking each step from the
+ * first frame to the last in turn, so no call rewinds the animation.
+ *
+ * @author The_G_Meister
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class AnimatedCharMapBenchmark
+{
+	
+	@Param({"80x24", "200x60", "1000x1000"})
+	public String size;
+	
+	@Param({"2", "8"})
+	public int frames;
+	
+	@Param({"0.01", "1"})
+	public double churn;
+	
+	private AnimatedCharMap map;
+	// The frame shown before each call
+	private int frame;
+	
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		int[] s = Fixtures.parseSize(this.size);
+		CharMap[] frames = new CharMap[this.frames];
+		Random random = new Random(0);
+		frames[0] = Fixtures.randomCharMap(s[0], s[1], 0.5, 0);
+		for (int i = 1; i < frames.length; i++)
+		{
+			frames[i] = CharMap.copyOf(frames[i - 1]);
+			for (int j = 0; j < this.churn * s[0] * s[1]; j++)
+			{
+				int x = random.nextInt(s[0]);
+				int y = random.nextInt(s[1]);
+				frames[i].setAt(x, y, (char) ('!' + random.nextInt(94)));
+				frames[i].setAlphaAt(x, y, random.nextBoolean());
+			}
+		}
+		this.map = new AnimatedCharMap(frames);
+		this.frame = -1;
+	}
+	
+	@Setup(Level.Invocation)
+	public void restore()
+	{
+		this.frame = (this.frame + 1) % (this.frames - 1);
+		this.map.queueFrame(this.frame);
+		this.map.poolTimeData(null);
+	}
+	
+	@Benchmark
+	public AnimatedCharMap advanceFrame()
+	{
+		this.map.queueFrame(this.frame + 1);
+		this.map.poolTimeData(null);
+		return this.map;
+	}
+	
+}
\ No newline at end of file
@@ -0,0 +1,90 @@
+package com.gmeister.temp.maps.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gmeister.temp.maps.BooleanMap;
+
+/**
+ * Measures {@link BooleanMap#merge(BooleanMap, int, int, byte)} under every
+ * truth table, both word aligned and shifted off the word boundary, on noisy
+ * masks held packed and blocky masks held as runs. The target is restored to
+ * the fixture before each call, so every call merges into the same cells.
+ *
+ * @author The_G_Meister
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class BooleanMapBenchmark
+{
+	
+	@Param({"80x24", "200x60", "1000x1000"})
+	public String size;
+	
+	// Every 4-bit truth table, including the named AND, OR, XOR, NAND, NOR and XNOR
+	@Param({"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11", "12", "13", "14", "15"})
+	public byte mode;
+	
+	@Param({"random", "blocky"})
+	public String shape;
+	
+	// Copies b's cells over the target's, so restoring the fixture allocates
+	// nothing for packed masks
+	private static final byte COPY = 0b0101;
+	
+	private BooleanMap fixture;
+	private BooleanMap a;
+	private BooleanMap b;
+	
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		int[] s = Fixtures.parseSize(this.size);
+		if (this.shape.equals("blocky"))
+		{
+			this.fixture = Fixtures.blockyBooleanMap(s[0], s[1], 1);
+			this.b = Fixtures.blockyBooleanMap(s[0] / 2, s[1] / 2, 2);
+		}
+		else
+		{
+			this.fixture = Fixtures.randomBooleanMap(s[0], s[1], 0.5, 1);
+			this.b = Fixtures.randomBooleanMap(s[0] / 2, s[1] / 2, 0.5, 2);
+		}
+		this.a = BooleanMap.copOf(this.fixture);
+	}
+	
+	@Setup(Level.Invocation)
+	public void restore()
+	{ this.a.merge(this.fixture, 0, 0, BooleanMapBenchmark.COPY); }
+	
+	@Benchmark
+	public BooleanMap mergeAligned()
+	{
+		this.a.merge(this.b, 0, 0, this.mode);
+		return this.a;
+	}
+	
+	@Benchmark
+	public BooleanMap mergeUnaligned()
+	{
+		this.a.merge(this.b, 3, 1, this.mode);
+		return this.a;
+	}
+	
+}
\ No newline at end of file
@@ -0,0 +1,124 @@
+package com.gmeister.temp.maps.benchmarks;
+
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gmeister.temp.maps.CharMap;
+
+/**
+ * Measures merging, resizing and serialising a {@link CharMap}. Merges are made
+ * into a target restored to the fixture before each call.
+ *
+ * @author The_G_Meister
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CharMapBenchmark
+{
+	
+	@Param({"80x24", "200x60", "1000x1000"})
+	public String size;
+	
+	private CharMap target;
+	private CharMap source;
+	private int xCapacity;
+	private int yCapacity;
+	private boolean grown;
+	private CharBuffer buffer;
+	
+	/**
+	 * The target of {@link CharMapBenchmark#merge(MergeTarget)}, restored before
+	 * each call so every merge writes over the same cells. Kept apart from the
+	 * other benchmarks, which do not need restoring.
+	 */
+	@State(Scope.Thread)
+	public static class MergeTarget
+	{
+		
+		private CharMap fixture;
+		private CharMap map;
+		
+		@Setup(Level.Trial)
+		public void setUp(CharMapBenchmark benchmark)
+		{
+			this.fixture = benchmark.target;
+			this.map = CharMap.copyOf(this.fixture);
+		}
+		
+		// The fixture renders every cell, so merging it in copies all of it back
+		@Setup(Level.Invocation)
+		public void restore()
+		{ this.map.merge(this.fixture, 0, 0); }
+		
+	}
+	
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		int[] s = Fixtures.parseSize(this.size);
+		this.xCapacity = s[0];
+		this.yCapacity = s[1];
+		this.target = Fixtures.randomCharMap(this.xCapacity, this.yCapacity, 1.0, 1);
+		this.source = Fixtures.randomCharMap(this.xCapacity / 2, this.yCapacity / 2, 0.5, 2);
+		this.buffer = CharBuffer.allocate(this.target.toCleanGridString().length());
+	}
+	
+	@Benchmark
+	public CharMap merge(MergeTarget target)
+	{
+		target.map.merge(this.source, 3, 1);
+		return target.map;
+	}
+	
+	// Alternates between growing and shrinking so the map size stays bounded
+	@Benchmark
+	public CharMap setCapacity()
+	{
+		this.grown = !this.grown;
+		if (this.grown) this.target.setCapacity(this.xCapacity + 8, this.yCapacity + 2, 4, 1, ' ');
+		else this.target.setCapacity(this.xCapacity, this.yCapacity, -4, -1, ' ');
+		return this.target;
+	}
+	
+	@Benchmark
+	public String toCleanString()
+	{ return this.target.toCleanString(); }
+	
+	@Benchmark
+	public String toCleanGridString()
+	{ return this.target.toCleanGridString(); }
+	
+	@Benchmark
+	public String toCleanAlphaString()
+	{ return this.target.toCleanAlphaString(); }
+	
+	@Benchmark
+	public String toCleanAlphaGridString()
+	{ return this.target.toCleanAlphaGridString(); }
+	
+	@Benchmark
+	public CharBuffer writeCleanGridString()
+	{
+		this.buffer.clear();
+		this.target.writeCleanGridString(this.buffer);
+		return this.buffer;
+	}
+	
+}
\ No newline at end of file
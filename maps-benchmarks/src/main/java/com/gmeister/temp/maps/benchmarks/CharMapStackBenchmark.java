@@ -0,0 +1,81 @@
+package com.gmeister.temp.maps.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gmeister.temp.maps.CharMapStack;
+import com.gmeister.temp.maps.RenderedCharMap;
+
+/**
+ * Measures compositing a {@link CharMapStack}, both from scratch and after a
+ * single cell of the top layer changes.
+ *
+ * @author The_G_Meister
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CharMapStackBenchmark
+{
+	
+	@Param({"80x24", "200x60", "1000x1000"})
+	public String size;
+	
+	@Param({"1", "4", "16"})
+	public int layers;
+	
+	@Param({"0.1", "0.5", "0.9"})
+	public double opacity;
+	
+	private CharMapStack stack;
+	private RenderedCharMap top;
+	private int xCapacity;
+	private int yCapacity;
+	private int cell;
+	
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		int[] s = Fixtures.parseSize(this.size);
+		this.xCapacity = s[0];
+		this.yCapacity = s[1];
+		this.stack = new CharMapStack(this.xCapacity, this.yCapacity, this.layers);
+		for (int z = 0; z < this.layers; z++) this.stack
+				.addMaps(RenderedCharMap.copyOf(Fixtures.randomCharMap(this.xCapacity, this.yCapacity, this.opacity, z)));
+		this.top = this.stack.getMaps().get(this.layers - 1);
+		this.stack.update();
+	}
+	
+	@Benchmark
+	public CharMapStack fullUpdate()
+	{
+		this.stack.invalidate();
+		this.stack.update();
+		return this.stack;
+	}
+	
+	@Benchmark
+	public CharMapStack singleCellUpdate()
+	{
+		this.cell = (this.cell + 1) % (this.xCapacity * this.yCapacity);
+		this.top.setAt(this.cell % this.xCapacity, this.cell / this.xCapacity, (char) ('a' + this.cell % 26));
+		this.stack.update();
+		return this.stack;
+	}
+	
+}
\ No newline at end of file
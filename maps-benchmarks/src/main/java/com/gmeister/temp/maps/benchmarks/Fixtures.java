@@ -0,0 +1,71 @@
+package com.gmeister.temp.maps.benchmarks;
+
+import java.util.Random;
+
+import com.gmeister.temp.maps.BooleanMap;
+import com.gmeister.temp.maps.CharMap;
+
+/**
+ * Builds the maps used by the benchmarks. Every map is seeded, so each run of a
+ * benchmark measures the same cells.
+ *
+ * @author The_G_Meister
+ */
+final class Fixtures
+{
+	
+	private Fixtures()
+	{}
+	
+	/**
+	 * Parses a screen size such as {@code "80x24"} into its width and height.
+	 */
+	static int[] parseSize(String size)
+	{
+		int i = size.indexOf('x');
+		return new int[] {Integer.parseInt(size.substring(0, i)), Integer.parseInt(size.substring(i + 1))};
+	}
+	
+	/**
+	 * Builds a mask with each cell set at random, at the given density. Noisy
+	 * masks like this are held packed.
+	 */
+	static BooleanMap randomBooleanMap(int xCapacity, int yCapacity, double density, long seed)
+	{
+		Random random = new Random(seed);
+		BooleanMap output = new BooleanMap(xCapacity, yCapacity, false);
+		for (int y = 0; y < yCapacity; y++)
+			for (int x = 0; x < xCapacity; x++) if (random.nextDouble() < density) output.setAt(x, y, true);
+		output.compact();
+		return output;
+	}
+	
+	/**
+	 * Builds a mask shaped like a window: a filled rectangle inset from the edges,
+	 * with a few holes punched in it. Large masks like this are held as runs.
+	 */
+	static BooleanMap blockyBooleanMap(int xCapacity, int yCapacity, long seed)
+	{
+		Random random = new Random(seed);
+		BooleanMap output = new BooleanMap(xCapacity, yCapacity, false);
+		output.merge(new BooleanMap(xCapacity - xCapacity / 4, yCapacity - yCapacity / 4, true), xCapacity / 8,
+				yCapacity / 8);
+		for (int i = 0; i < 8; i++) output.invertAt(random.nextInt(xCapacity), random.nextInt(yCapacity));
+		output.compact();
+		return output;
+	}
+	
+	static CharMap randomCharMap(int xCapacity, int yCapacity, double opacity, long seed)
+	{
+		Random random = new Random(seed);
+		CharMap output = new CharMap(xCapacity, yCapacity, ' ', false);
+		for (int y = 0; y < yCapacity; y++) for (int x = 0; x < xCapacity; x++)
+		{
+			output.setAt(x, y, (char) ('!' + random.nextInt(94)));
+			if (random.nextDouble() < opacity) output.setAlphaAt(x, y, true);
+		}
+		output.getAlphaMap().compact();
+		return output;
+	}
+	
+}
\ No newline at end of file
@@ -1,16 +1,27 @@
 package com.gmeister.temp.maps;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Vector;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * A {@link RenderedCharMap} which plays through a list of frames. Frames are
+ * held as keyframes and deltas (see {@link FrameStore}), so an animation whose
+ * frames differ in a few cells takes little more room than one frame. Each
+ * frame shown patches the map in place, damaging only the cells which change.
+ * Frames are shown one per tick, or one per frame duration if one is set.
+ * Maps given a {@link SpriteAtlas} share their frames with every other map
+ * given the same frames and atlas.
+ *
+ * @author The_G_Meister
+ */
 public class AnimatedCharMap extends RenderedCharMap
 {
 	
-	private Vector<CharMap> frames;
+	private FrameStore frames;
 	private int currentFrameNumber;
 	private int[] frameOrder;
+	// The index in frameOrder of the next frame to show
+	private int nextFrame;
+	private long frameDuration;
 	
 	// ------------------------------------------------ CONSTRUCTORS
 	// ------------------------------------------------ //
@@ -19,20 +30,37 @@ public class AnimatedCharMap extends RenderedCharMap
 	{
 		super();
 		
-		this.frames = new Vector<CharMap>();
+		this.frames = new FrameStore();
 		this.currentFrameNumber = 0;
+		this.frameOrder = new int[0];
 	}
 	
 	public AnimatedCharMap(CharMap... frames)
 	{ this(0, frames); }
 	
 	public AnimatedCharMap(int currentFrameNumber, CharMap... frames)
+	{ this(null, currentFrameNumber, frames); }
+	
+	public AnimatedCharMap(SpriteAtlas atlas, CharMap... frames)
+	{ this(atlas, 0, frames); }
+	
+	/**
+	 * Creates a map playing {@code frames}. Given an atlas, the frames are
+	 * interned in it and shared rather than copied, so maps made from the same
+	 * frames hold them once between them.
+	 *
+	 * @param atlas the atlas to intern frames in, or {@code null} to copy them
+	 * @param currentFrameNumber the frame to show first
+	 * @param frames the frames to play
+	 */
+	public AnimatedCharMap(SpriteAtlas atlas, int currentFrameNumber, CharMap... frames)
 	{
 		super();
 		if (currentFrameNumber > frames.length) throw new IllegalArgumentException(
 				"Current frame argument \"" + currentFrameNumber + "\" is greater than the number of frames");
 		
-		this.frames = new Vector<CharMap>(Arrays.asList(frames));
+		this.frames = new FrameStore(atlas);
+		for (CharMap frame : frames) this.frames.add(frame);
 		this.currentFrameNumber = currentFrameNumber;
 		this.queueFrame(this.currentFrameNumber);
 	}
@@ -40,13 +68,24 @@ public class AnimatedCharMap extends RenderedCharMap
 	// ------------------------------------------------ FRAME METHODS
 	// ------------------------------------------------ //
 	
+	// Frames are copied in, meaning modifications to c after it is set WILL NOT
+	// affect the animation
+	
 	public void setFrameAt(int i, CharMap c)
 	{
-		if (i + 1 > this.frames.size()) this.frames.setSize(i + 1);
 		this.frames.set(i, c);
 		if (i == this.currentFrameNumber) this.queueFrame(i);
 	}
 	
+	/**
+	 * Rebuilds frame {@code i} from the stored deltas. Modifications to the
+	 * returned map WILL NOT affect the animation.
+	 *
+	 * @return a copy of the frame, or {@code null} if the frame is empty
+	 */
+	public CharMap getFrameAt(int i)
+	{ return this.frames.getFrame(i); }
+	
 	public void incFrame()
 	{ this.queueFrame(this.currentFrameNumber + 1); }
 	
@@ -62,58 +101,77 @@ public class AnimatedCharMap extends RenderedCharMap
 	public int getCurrentFrame()
 	{ return this.currentFrameNumber; }
 	
+	/**
+	 * Sets how long each queued frame is shown for before the next is due.
+	 *
+	 * @param millis the duration of each frame in milliseconds, or {@code 0} to
+	 *        show one frame per tick
+	 */
+	public void setFrameDuration(long millis)
+	{ this.frameDuration = TimeUnit.MILLISECONDS.toNanos(millis); }
+	
+	public long getFrameDuration()
+	{ return TimeUnit.NANOSECONDS.toMillis(this.frameDuration); }
+	
 	// ------------------------------------------------ RENDERING METHODS
 	// ------------------------------------------------ //
 	
+	/**
+	 * Shows the next queued frame, patching the map from the frame shown before.
+	 * If no frames are queued, any animation queued through
+	 * {@link RenderedCharMap#queueAnimation(java.util.List)} is played instead.
+	 */
 	@Override
 	public void render()
 	{
-		int i = this.getCurrentAnimationLength();
-		if (i > 0) this.currentFrameNumber = this.frameOrder[this.frameOrder.length - i];
-		super.render();
+		if (this.nextFrame >= this.frameOrder.length)
+		{
+			super.render();
+			return;
+		}
+		
+		this.currentFrameNumber = this.frameOrder[this.nextFrame++];
+		if (!this.isHidden()) this.frames.seek(this, this.currentFrameNumber);
+		this.advanceClock(this.frameDuration);
 	}
 	
-	public void queueFrame(int i)
+	@Override
+	public int getCurrentAnimationLength()
 	{
-		int[] j = {i};
-		this.frameOrder = j;
-		if (i == -1) super.queueAnimation((Vector<CharMap>) null);
-		else super.queueAnimation(this.frames.get(i));
+		int i = this.frameOrder.length - this.nextFrame;
+		return i > 0 ? i : super.getCurrentAnimationLength();
 	}
 	
+	// Frame -1 shows an empty map
+	
+	public void queueFrame(int i)
+	{ this.queueFrame(new int[] {i}); }
+	
 	public void queueFrame(int start, int end)
 	{
-		if (end == start) this.queueFrame(start);
-		else if (end >= start)
-		{
-			this.frameOrder = new int[end - start + 1];
-			for (int i = start; i < end + 1; i++) this.frameOrder[i] = i;
-			
-			super.queueAnimation(new ArrayList<CharMap>(this.frames.subList(start, end + 1)));
-		}
-		else
-		{
-			int l = start - end + 1;
-			List<CharMap> frames = new ArrayList<CharMap>(l);
-			this.frameOrder = new int[l];
-			for (int i = start; i > end - 1; i--)
-			{
-				frames.add(this.frames.get(i));
-				this.frameOrder[i] = i;
-			}
-			
-			super.queueAnimation(frames);
-		}
+		int step = end >= start ? 1 : -1;
+		int[] frameOrder = new int[Math.abs(end - start) + 1];
+		for (int i = 0; i < frameOrder.length; i++) frameOrder[i] = start + i * step;
+		this.queueFrame(frameOrder);
 	}
 	
 	public void queueFrame(int[] i)
 	{
+		for (int j = 0; j < i.length; j++) if (i[j] < -1 || i[j] >= this.frames.size())
+			throw new IndexOutOfBoundsException("Frame " + i[j] + " does not exist");
 		this.frameOrder = i;
-		List<CharMap> frames = new ArrayList<CharMap>(i.length);
-		for (int j = 0; j < i.length; j++) if (i[j] == -1) frames.add(null);
-		else frames.add(this.frames.get(i[j]));
-		
-		super.queueAnimation(frames);
+		this.nextFrame = 0;
+		this.restartClock();
+	}
+	
+	// Frames are not patched in while hidden, so catch up with the current frame
+	// when shown again
+	
+	@Override
+	public void setHidden(boolean hidden)
+	{
+		super.setHidden(hidden);
+		if (!hidden && this.currentFrameNumber < this.frames.size()) this.frames.seek(this, this.currentFrameNumber);
 	}
 	
 }
\ No newline at end of file
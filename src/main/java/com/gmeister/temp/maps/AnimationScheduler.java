@@ -0,0 +1,199 @@
+package com.gmeister.temp.maps;
+
+import java.util.Arrays;
+
+/**
+ * Wakes the {@link RenderedCharMap}s whose next frame is due, without looking
+ * at the others. Maps with queued frames are kept in a binary heap ordered by
+ * when their next frame is due, so a tick costs {@code O(log n)} per frame
+ * shown, however many maps are idle or waiting. A map moves itself in the heap
+ * whenever an animation is queued on it or a frame is shown, so animations can
+ * be queued on scheduled maps as usual.
+ * <p>
+ * Not thread-safe: maps must be scheduled, queued and ticked on one thread.
+ *
+ * @author The_G_Meister
+ */
+public final class AnimationScheduler
+{
+	
+	private RenderedCharMap[] heap;
+	private int size;
+	private RenderedCharMap[] woken;
+	
+	// ------------------------------------------------ CONSTRUCTORS
+	// ------------------------------------------------ //
+	
+	public AnimationScheduler()
+	{
+		this.heap = new RenderedCharMap[16];
+		this.woken = new RenderedCharMap[16];
+	}
+	
+	// ------------------------------------------------ MEMBERSHIP METHODS
+	// ------------------------------------------------ //
+	
+	/**
+	 * Starts scheduling {@code map}. A map can only belong to one scheduler.
+	 */
+	public void add(RenderedCharMap map)
+	{
+		if (map.scheduler == this) return;
+		if (map.scheduler != null) throw new IllegalArgumentException("The map belongs to another scheduler");
+		map.scheduler = this;
+		this.reschedule(map);
+	}
+	
+	public void remove(RenderedCharMap map)
+	{
+		if (map.scheduler != this) return;
+		if (map.scheduleIndex != -1) this.removeAt(map.scheduleIndex);
+		map.scheduler = null;
+	}
+	
+	/**
+	 * Gets the number of maps with frames queued.
+	 */
+	public int getWaitingCount()
+	{ return this.size; }
+	
+	// ------------------------------------------------ TICKING METHODS
+	// ------------------------------------------------ //
+	
+	public int tick()
+	{ return this.tick(System.nanoTime()); }
+	
+	/**
+	 * Shows the next frame of every map whose next frame is due at {@code now}.
+	 * Each map shows at most one frame per tick.
+	 *
+	 * @param now the current {@link System#nanoTime()}
+	 * @return the number of maps which showed a frame
+	 */
+	public int tick(long now)
+	{
+		int count = 0;
+		while (this.size > 0 && this.heap[0].isDueAt(now))
+		{
+			RenderedCharMap map = this.heap[0];
+			this.removeAt(0);
+			if (count == this.woken.length) this.woken = Arrays.copyOf(this.woken, count * 2);
+			this.woken[count++] = map;
+		}
+		
+		// Show the frames once every due map is out of the heap, so a map which is
+		// due again at once waits for the next tick
+		for (int i = 0; i < count; i++)
+		{
+			RenderedCharMap map = this.woken[i];
+			this.woken[i] = null;
+			// Hold the map out of the heap until its frame is shown
+			map.scheduler = null;
+			map.render();
+			map.scheduler = this;
+			this.reschedule(map);
+		}
+		return count;
+	}
+	
+	/**
+	 * Gets how long until the next frame of any map is due, for sleeping between
+	 * ticks.
+	 *
+	 * @param now the current {@link System#nanoTime()}
+	 * @return the nanoseconds until a frame is due, {@code 0} if one is already
+	 *         due, or {@link Long#MAX_VALUE} if no frames are queued
+	 */
+	public long getCooldownNanos(long now)
+	{
+		if (this.size == 0) return Long.MAX_VALUE;
+		return Math.max(0, this.heap[0].getDueTime() - now);
+	}
+	
+	// ------------------------------------------------ HEAP METHODS
+	// ------------------------------------------------ //
+	
+	// Puts a map of this scheduler in its place in the heap, or takes it out if it
+	// has no frames queued
+	
+	void reschedule(RenderedCharMap map)
+	{
+		int i = map.scheduleIndex;
+		if (map.getCurrentAnimationLength() == 0)
+		{
+			if (i != -1) this.removeAt(i);
+			return;
+		}
+		
+		if (i == -1)
+		{
+			if (this.size == this.heap.length) this.heap = Arrays.copyOf(this.heap, this.size * 2);
+			i = this.size++;
+			this.heap[i] = map;
+			map.scheduleIndex = i;
+		}
+		if (!this.siftUp(i)) this.siftDown(i);
+	}
+	
+	private void removeAt(int i)
+	{
+		RenderedCharMap map = this.heap[i];
+		map.scheduleIndex = -1;
+		this.size--;
+		if (i == this.size)
+		{
+			this.heap[i] = null;
+			return;
+		}
+		
+		this.heap[i] = this.heap[this.size];
+		this.heap[this.size] = null;
+		this.heap[i].scheduleIndex = i;
+		if (!this.siftUp(i)) this.siftDown(i);
+	}
+	
+	// Each returns whether the map at i moved
+	
+	private boolean siftUp(int i)
+	{
+		int start = i;
+		while (i > 0)
+		{
+			int parent = (i - 1) >>> 1;
+			if (!AnimationScheduler.isBefore(this.heap[i], this.heap[parent])) break;
+			this.swap(i, parent);
+			i = parent;
+		}
+		return i != start;
+	}
+	
+	private boolean siftDown(int i)
+	{
+		int start = i;
+		while (true)
+		{
+			int child = 2 * i + 1;
+			if (child >= this.size) break;
+			if (child + 1 < this.size && AnimationScheduler.isBefore(this.heap[child + 1], this.heap[child])) child++;
+			if (!AnimationScheduler.isBefore(this.heap[child], this.heap[i])) break;
+			this.swap(i, child);
+			i = child;
+		}
+		return i != start;
+	}
+	
+	private void swap(int i, int j)
+	{
+		RenderedCharMap map = this.heap[i];
+		this.heap[i] = this.heap[j];
+		this.heap[j] = map;
+		this.heap[i].scheduleIndex = i;
+		this.heap[j].scheduleIndex = j;
+	}
+	
+	// Compared by difference, as nanoTime may wrap
+	
+	private static boolean isBefore(RenderedCharMap a, RenderedCharMap b)
+	{ return a.getDueTime() - b.getDueTime() < 0; }
+	
+}
\ No newline at end of file
@@ -0,0 +1,27 @@
+package com.gmeister.temp.maps;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * Writes runs of chars to an {@link Appendable}, using the bulk methods of the
+ * common implementations so that no intermediate {@link String} is built.
+ *
+ * @author The_G_Meister
+ */
+final class Appendables
+{
+	
+	private Appendables()
+	{}
+	
+	static void write(Appendable out, char[] c, int offset, int length) throws IOException
+	{
+		if (out instanceof StringBuilder) ((StringBuilder) out).append(c, offset, length);
+		else if (out instanceof Writer) ((Writer) out).write(c, offset, length);
+		else if (out instanceof CharBuffer) ((CharBuffer) out).put(c, offset, length);
+		else for (int i = offset; i < offset + length; i++) out.append(c[i]);
+	}
+	
+}
\ No newline at end of file
@@ -1,7 +1,27 @@
 package com.gmeister.temp.maps;
 
+import java.io.IOException;
+import java.nio.CharBuffer;
 import java.util.Arrays;
 
+/**
+ * A grid of booleans, packed 64 cells to a {@code long}. Each row occupies
+ * {@code stride} consecutive words, with cell {@code x} of a row held in bit
+ * {@code x & 63} of word {@code x >>> 6}. Bits past {@code xCapacity} in the
+ * last word of each row are always kept clear, so whole-word operations never
+ * need to special-case the padding.
+ * <p>
+ * Large maps which are mostly made of long runs, such as big rectangles with a
+ * few holes or thin outlines, are held as a sorted list of runs per row
+ * instead, so that their memory and the cost of merging them scale with the
+ * number of edges rather than the area. Maps pick the smaller form when their
+ * storage is rebuilt, by {@link #setMap(boolean[][]) setMap} or a change of
+ * capacity, and when {@link #compact()} is called. Other changes keep the form
+ * the map is in, so maps sharing storage through {@link #setTo(BooleanMap)}
+ * stay shared.
+ *
+ * @author The_G_Meister
+ */
 public class BooleanMap implements Cloneable
 {
 	
@@ -12,10 +32,39 @@ public class BooleanMap implements Cloneable
 	public static final byte NOR = 0b1000;
 	public static final byte XNOR = 0b1001;
 	
+	// Maps of fewer words than this are always kept packed
+	private static final int MIN_RUN_LENGTH_WORDS = 64;
+	private static final int[] NO_RUNS = new int[0];
+	// A single cell at column 0, shifted into place to set or clear one cell
+	private static final int[] CELL = {0, 1};
+	
 	private int xCapacity;
 	private int yCapacity;
+	private int xOffset;
+	private int yOffset;
 	private ReferencePoint offset;
-	private boolean[][] map;
+	private int stride;
+	private long[] words;
+	
+	// The run-length form, held instead of words. Row y sets the cells from
+	// runs[y][0] (inclusive) to runs[y][1] (exclusive), runs[y][2] to runs[y][3]
+	// and so on, with every boundary strictly increasing. Rows are replaced
+	// rather than modified, so they can be shared
+	private int[][] runs;
+	private int boundaryCount;
+	// Set while words or runs are shared with another map, so they are copied
+	// before they are written
+	private boolean shared;
+	// Reused to merge a cell into a row of runs
+	private int[] rowScratch;
+	// Reused to line up a row of another map's cells with this map's words
+	private long[] wordScratch;
+	
+	private long modCount;
+	private int touchedX0;
+	private int touchedY0;
+	private int touchedX1;
+	private int touchedY1;
 	
 	// ------------------------------------------------ CONSTRUCTORS
 	// ------------------------------------------------ //
@@ -24,53 +73,55 @@ public class BooleanMap implements Cloneable
 	{
 		this.xCapacity = 0;
 		this.yCapacity = 0;
-		this.offset = new ReferencePoint();
-		this.map = new boolean[0][0];
+		this.offset = ReferencePoint.ORIGIN;
+		this.stride = 0;
+		this.words = new long[0];
 	}
 	
 	public BooleanMap(int xCapacity, int yCapacity, boolean b)
 	{
 		this.setMap(xCapacity, yCapacity, b);
-		this.offset = new ReferencePoint();
+		this.offset = ReferencePoint.ORIGIN;
 	}
 	
 	public BooleanMap(int xCapacity, int yCapacity, int length)
 	{
 		this.setMap(xCapacity, yCapacity, length);
-		this.offset = new ReferencePoint();
+		this.offset = ReferencePoint.ORIGIN;
 	}
 	
 	public BooleanMap(int xCapacity, int yCapacity, String s)
 	{
 		this.setMap(xCapacity, yCapacity, s);
-		this.offset = new ReferencePoint();
+		this.offset = ReferencePoint.ORIGIN;
 	}
 	
 	// ------------------------------------------------ MAP REFACTORING METHODS
 	// ------------------------------------------------ //
 	
-	// Sets the objects booleans to b's, meaning modifications in b's booleans WILL
-	// affect the object. The objects x and y values MAY NOT be conserved.
+	// Packs b's booleans into the object, meaning modifications in b's booleans
+	// WILL NOT affect the object. The objects x and y values MAY NOT be conserved.
 	
 	public void setMap(boolean[][] b)
 	{
-		this.xCapacity = b[0].length;
-		this.yCapacity = b.length;
-		
-		for (int i = 1; i < this.yCapacity; i++) if (b[i].length != this.xCapacity)
+		for (int i = 1; i < b.length; i++) if (b[i].length != b[0].length)
 			throw new IllegalArgumentException("Inner boolean[] length is not uniform");
 		
-		this.map = b;
+		this.allocate(b[0].length, b.length);
+		for (int y = 0; y < this.yCapacity; y++) for (int x = 0; x < this.xCapacity; x++) if (b[y][x]) this.set(x, y);
+		this.compact();
+		this.touchAll();
 	}
 	
 	public void setMap(int xCapacity, int yCapacity, boolean b)
 	{
-		this.xCapacity = xCapacity;
-		this.yCapacity = yCapacity;
-		this.map = new boolean[yCapacity][xCapacity];
+		this.allocate(xCapacity, yCapacity);
 		this.fill(b);
+		this.compact();
 	}
 	
+	// Sets the first length cells, counting along each row in turn, to true
+	
 	public void setMap(int xCapacity, int yCapacity, int length)
 	{
 		if (length < 0)
@@ -84,36 +135,46 @@ public class BooleanMap implements Cloneable
 			return;
 		}
 		
-		this.xCapacity = xCapacity;
-		this.yCapacity = yCapacity;
-		this.map = new boolean[this.yCapacity][this.xCapacity];
+		this.allocate(xCapacity, yCapacity);
 		
-		int ly = Math.floorDiv(length, this.xCapacity);
+		int ly = length / this.xCapacity;
 		int lx = length % this.xCapacity;
-		int y2;
-		for (y2 = 0; y2 < ly - 1; y2++) Arrays.fill(this.map[y2], true);
-		y2++;
-		for (int x2 = 0; x2 < lx; x2++) this.map[y2][x2] = true;
+		for (int y = 0; y < ly; y++) this.fillRow(y, true);
+		for (int i = 0, base = ly * this.stride; i < this.stride; i++)
+			this.words[base + i] = BooleanMap.spanMask(i, 0, lx);
+		this.compact();
+		this.touchAll();
 	}
 	
 	public void setMap(int xCapacity, int yCapacity, String s)
 	{
-		this.xCapacity = xCapacity;
-		this.yCapacity = yCapacity;
-		this.map = new boolean[this.yCapacity][this.xCapacity];
+		this.allocate(xCapacity, yCapacity);
 		
 		int i = 0;
 		for (int y2 = 0; y2 < this.yCapacity; y2++) for (int x2 = 0; x2 < this.xCapacity; x2++, i++)
 		{
 			char c = s.charAt(i);
-			if (c == '0') this.map[y2][x2] = false;
-			else if (c == '1') this.map[y2][x2] = true;
-			else throw new IllegalArgumentException("The given String contains characters other than '1' and '0'");
+			if (c == '1') this.set(x2, y2);
+			else if (c != '0')
+				throw new IllegalArgumentException("The given String contains characters other than '1' and '0'");
 		}
+		this.compact();
+		this.touchAll();
 	}
 	
 	public void fill(boolean b)
-	{ for (int y = 0; y < this.yCapacity; y++) Arrays.fill(this.map[y], b); }
+	{
+		this.own();
+		if (this.words == null)
+		{
+			int[] row = b && this.xCapacity > 0 ? new int[] {0, this.xCapacity} : BooleanMap.NO_RUNS;
+			Arrays.fill(this.runs, row);
+			this.boundaryCount = row.length * this.yCapacity;
+		}
+		else if (!b) Arrays.fill(this.words, 0L);
+		else for (int y = 0; y < this.yCapacity; y++) this.fillRow(y, true);
+		this.touchAll();
+	}
 	
 	// Duplicates a's booleans to the object, meaning modifications in a's booleans
 	// WILL NOT affect the object. The objects x and y values ARE NOT conserved
@@ -122,18 +183,30 @@ public class BooleanMap implements Cloneable
 	{
 		this.xCapacity = b.xCapacity;
 		this.yCapacity = b.yCapacity;
+		this.xOffset = b.xOffset;
+		this.yOffset = b.yOffset;
 		this.offset = b.offset;
-		this.map = new boolean[this.yCapacity][];
-		
-		for (int y = 0; y < this.yCapacity; y++) this.map[y] = Arrays.copyOf(b.map[y], this.xCapacity);
+		this.stride = b.stride;
+		this.words = b.words == null ? null : b.words.clone();
+		this.runs = b.runs == null ? null : b.runs.clone();
+		this.boundaryCount = b.boundaryCount;
+		this.shared = false;
+		this.touchAll();
 	}
 	
 	public void setTo(BooleanMap b)
 	{
 		this.xCapacity = b.xCapacity;
 		this.yCapacity = b.yCapacity;
+		this.xOffset = b.xOffset;
+		this.yOffset = b.yOffset;
 		this.offset = b.offset;
-		this.map = b.map;
+		this.stride = b.stride;
+		this.words = b.words;
+		this.runs = b.runs;
+		this.boundaryCount = b.boundaryCount;
+		this.shared = b.shared;
+		this.touchAll();
 	}
 	
 	public static BooleanMap copOf(BooleanMap b)
@@ -148,59 +221,83 @@ public class BooleanMap implements Cloneable
 	
 	public void setAt(int x, int y, boolean b)
 	{
-		int x2 = x - this.offset.getX();
-		int y2 = y - this.offset.getY();
-		if (this.isWithinMapAt(x2, y2)) this.map[y2][x2] = b;
+		int x2 = x - this.xOffset;
+		int y2 = y - this.yOffset;
+		if (this.isWithinMapAt(x2, y2)) this.put(x2, y2, b);
 		else throw new MapOutOfBoundsException("BooleanMap does not contain coordinates " + x2 + ", " + y2);
+		this.touch(x2, y2, x2 + 1, y2 + 1);
 	}
 	
 	public void setMapAt(int x, int y, boolean b)
 	{
-		if (this.isWithinMapAt(x, y)) this.map[y][x] = b;
+		if (this.isWithinMapAt(x, y)) this.put(x, y, b);
 		else throw new MapOutOfBoundsException("BooleanMap does not contain coordinates " + x + ", " + y);
+		this.touch(x, y, x + 1, y + 1);
 	}
 	
 	public void invert()
 	{
-		for (int y = 0; y < this.yCapacity; y++)
-			for (int x = 0; x < this.xCapacity; x++) this.map[y][x] = !this.map[y][x];
+		if (this.stride == 0) return;
+		this.own();
+		this.touchAll();
+		if (this.words == null)
+		{
+			for (int y = 0; y < this.yCapacity; y++) this.setRow(y, BooleanMap.invertRuns(this.runs[y], this.xCapacity));
+			return;
+		}
+		
+		Kernels.INSTANCE.invert(this.words, 0, this.words.length);
+		long last = this.lastWordMask();
+		for (int i = this.stride - 1; i < this.words.length; i += this.stride) this.words[i] &= last;
 	}
 	
 	public void invertAt(int x, int y)
 	{
-		int x2 = x - this.offset.getX();
-		int y2 = y - this.offset.getY();
-		if (this.isWithinMapAt(x2, y2)) this.map[y2][x2] = !this.map[y2][x2];
+		int x2 = x - this.xOffset;
+		int y2 = y - this.yOffset;
+		if (this.isWithinMapAt(x2, y2)) this.flip(x2, y2);
 		else throw new MapOutOfBoundsException("BooleanMap does not contain coordinates " + x2 + ", " + y2);
+		this.touch(x2, y2, x2 + 1, y2 + 1);
 	}
 	
 	public void invertMapAt(int x, int y)
 	{
-		if (this.isWithinMapAt(x, y)) this.map[y][x] = !this.map[y][x];
+		if (this.isWithinMapAt(x, y)) this.flip(x, y);
 		else throw new MapOutOfBoundsException("BooleanMap does not contain coordinates " + x + ", " + y);
+		this.touch(x, y, x + 1, y + 1);
 	}
 	
+	/**
+	 * Unpacks the map into a new {@code boolean[][]}. As the map is stored as
+	 * packed words, modifications to the returned array WILL NOT affect the object.
+	 *
+	 * @return a copy of the map, indexed {@code [y][x]}
+	 */
 	public boolean[][] getMap()
-	{ return this.map; }
+	{
+		boolean[][] output = new boolean[this.yCapacity][this.xCapacity];
+		for (int y = 0; y < this.yCapacity; y++) for (int x = 0; x < this.xCapacity; x++) output[y][x] = this.get(x, y);
+		return output;
+	}
 	
 	public boolean getAt(int x, int y)
 	{
-		int x2 = x - this.offset.getX();
-		int y2 = y - this.offset.getY();
-		if (this.isWithinMapAt(x2, y2)) return this.map[y2][x2];
+		int x2 = x - this.xOffset;
+		int y2 = y - this.yOffset;
+		if (this.isWithinMapAt(x2, y2)) return this.get(x2, y2);
 		else throw new MapOutOfBoundsException("BooleanMap does not contain coordinates " + x2 + ", " + y2);
 	}
 	
 	public boolean getMapAt(int x, int y)
 	{
-		if (this.isWithinMapAt(x, y)) return this.map[y][x];
+		if (this.isWithinMapAt(x, y)) return this.get(x, y);
 		else throw new MapOutOfBoundsException("BooleanMap does not contain coordinates " + x + ", " + y);
 	}
 	
 	public boolean isWithinBoundsAt(int x, int y)
 	{
-		int x2 = x - this.offset.getX();
-		int y2 = y - this.offset.getY();
+		int x2 = x - this.xOffset;
+		int y2 = y - this.yOffset;
 		if (x2 < 0 || x2 >= this.xCapacity || y2 < 0 || y2 >= this.yCapacity) return false;
 		else return true;
 	}
@@ -213,8 +310,9 @@ public class BooleanMap implements Cloneable
 	
 	public double getMapAreaCoefficient()
 	{
-		int i = 0;
-		for (int y = 0; y < this.yCapacity; y++) for (int x = 0; x < this.xCapacity; x++) if (this.map[y][x]) i++;
+		long i = 0;
+		if (this.words == null) for (int[] row : this.runs) for (int j = 0; j < row.length; j += 2) i += row[j + 1] - row[j];
+		else for (long word : this.words) i += Long.bitCount(word);
 		return i / ((double) this.xCapacity * this.yCapacity);
 	}
 	
@@ -228,97 +326,202 @@ public class BooleanMap implements Cloneable
 	{ return this.yCapacity; }
 	
 	public void setXCapacity(int xCapacity, int xOffset, boolean b)
+	{ this.resize(xCapacity, this.yCapacity, xOffset, 0, b); }
+	
+	public void setYCapacity(int yCapacity, int yOffset, boolean b)
+	{ this.resize(this.xCapacity, yCapacity, 0, yOffset, b); }
+	
+	public void setCapacity(int xCapacity, int yCapacity, ReferencePoint offset, boolean b)
+	{ this.resize(xCapacity, yCapacity, offset.getX(), offset.getY(), b); }
+	
+	public void setCapacity(int xCapacity, int yCapacity, int xOffset, int yOffset, boolean b)
+	{ this.resize(xCapacity, yCapacity, xOffset, yOffset, b); }
+	
+	// ------------------------------------------------ OFFSET METHODS
+	// ------------------------------------------------ //
+	
+	// The offset is held as two ints. The ReferencePoint returned by getOffset()
+	// is only built when asked for after the offset changes
+	
+	public void setOffset(ReferencePoint offset)
 	{
-		boolean[][] tempMap = new boolean[this.yCapacity][xCapacity];
-		
-		if (b)
-		{
-			for (int y = 0; y < this.yCapacity; y++) for (int x = 0, x2 = -xOffset; x < xCapacity; x++, x2++)
-				if (x2 < 0 || x2 >= this.xCapacity) tempMap[y][x] = true;
-				else tempMap[y][x] = this.map[y][x2];
-		}
-		else for (int y = 0; y < this.yCapacity; y++) for (int x = 0, x2 = -xOffset; x < xCapacity; x++, x2++)
-			if (x2 >= 0 && x2 < this.xCapacity) tempMap[y][x] = this.map[y][x2];
-		
-		this.map = tempMap;
-		this.xCapacity = xCapacity;
+		this.xOffset = offset.getX();
+		this.yOffset = offset.getY();
+		this.offset = offset;
+		this.touchAll();
 	}
 	
-	public void setYCapacity(int yCapacity, int yOffset, boolean b)
+	public void setOffset(int x, int y)
 	{
-		boolean[][] tempMap = new boolean[yCapacity][];
-		
-		if (b)
-		{
-			for (int y = 0, y2 = -yOffset; y < yCapacity; y++, y2++) if (y2 < 0 || y2 >= this.yCapacity)
-			{
-				tempMap[y] = new boolean[this.xCapacity];
-				Arrays.fill(tempMap[y], true);
-			}
-			else tempMap[y] = this.map[y2];
-		}
-		else for (int y = 0, y2 = -yOffset; y < yCapacity; y++, y2++)
-			if (y2 >= 0 && y2 < this.yCapacity) tempMap[y] = this.map[y2];
-		
-		this.map = tempMap;
-		this.yCapacity = yCapacity;
+		if (x == this.xOffset && y == this.yOffset) return;
+		this.xOffset = x;
+		this.yOffset = y;
+		this.offset = null;
+		this.touchAll();
 	}
 	
-	public void setCapacity(int xCapacity, int yCapacity, ReferencePoint offset, boolean b)
+	public ReferencePoint getOffset()
 	{
-		boolean[][] tempMap = new boolean[yCapacity][xCapacity];
-		
-		if (b)
-		{
-			for (int y = 0, y2 = -offset.getY(); y < yCapacity; y++, y2++)
-				if (y < 0 || y2 >= this.yCapacity) Arrays.fill(tempMap[y], true);
-				else for (int x = 0, x2 = -offset.getX(); x < xCapacity; x++, x2++)
-					if (x2 < 0 || x2 >= this.xCapacity) tempMap[y][x] = true;
-					else tempMap[y][x] = this.map[y2][x2];
-		}
-		else for (int y = 0, y2 = -offset.getY(); y < yCapacity; y++, y2++)
-			if (y2 >= 0 && y2 < this.yCapacity) for (int x = 0, x2 = -offset.getX(); x < xCapacity; x++, x2++)
-				if (x2 >= 0 && x2 < this.xCapacity) tempMap[y][x] = this.map[y2][x2];
-		
-		this.map = tempMap;
-		this.xCapacity = xCapacity;
-		this.yCapacity = yCapacity;
+		if (this.offset == null) this.offset = new ReferencePoint(this.xOffset, this.yOffset);
+		return this.offset;
 	}
 	
-	// ------------------------------------------------ OFFSET METHODS
+	public int getXOffset()
+	{ return this.xOffset; }
+	
+	public int getYOffset()
+	{ return this.yOffset; }
+	
+	// ------------------------------------------------ CHANGE TRACKING METHODS
 	// ------------------------------------------------ //
 	
-	public void setOffset(ReferencePoint offset)
-	{ this.offset = offset; }
+	/**
+	 * Gets the number of changes made to this map. The count only ever rises, so
+	 * a cache built from the map is current as long as the count is the same as
+	 * when it was built.
+	 */
+	public long getModCount()
+	{ return this.modCount; }
 	
-	public ReferencePoint getOffset()
-	{ return this.offset; }
+	/**
+	 * Gets whether any cell has changed since the last call to
+	 * {@link #clearTouched()}. The touched cells are bounded by a box in the same
+	 * coordinates as {@link #setMapAt(int, int, boolean)}, given by
+	 * {@link #getTouchedX0()} to {@link #getTouchedX1()} and
+	 * {@link #getTouchedY0()} to {@link #getTouchedY1()}, exclusive. Changes to
+	 * capacity or offset touch the whole map.
+	 */
+	public boolean isTouched()
+	{ return this.touchedX0 < this.touchedX1 && this.touchedY0 < this.touchedY1; }
+	
+	public int getTouchedX0()
+	{ return this.touchedX0; }
+	
+	public int getTouchedY0()
+	{ return this.touchedY0; }
+	
+	public int getTouchedX1()
+	{ return this.touchedX1; }
+	
+	public int getTouchedY1()
+	{ return this.touchedY1; }
+	
+	public void clearTouched()
+	{
+		this.touchedX1 = this.touchedX0;
+		this.touchedY1 = this.touchedY0;
+	}
+	
+	// Counts a change to the cells from x0, y0 to x1, y1. Writes through setWord()
+	// are not counted, so compositors in this package call this once they are done
+	
+	void touch(int x0, int y0, int x1, int y1)
+	{
+		this.modCount++;
+		if (x0 >= x1 || y0 >= y1) return;
+		if (!this.isTouched())
+		{
+			this.touchedX0 = x0;
+			this.touchedY0 = y0;
+			this.touchedX1 = x1;
+			this.touchedY1 = y1;
+		}
+		else
+		{
+			this.touchedX0 = Math.min(this.touchedX0, x0);
+			this.touchedY0 = Math.min(this.touchedY0, y0);
+			this.touchedX1 = Math.max(this.touchedX1, x1);
+			this.touchedY1 = Math.max(this.touchedY1, y1);
+		}
+	}
+	
+	// Touches every cell. Replaces rather than grows the box, which may lie outside
+	// a map that has just shrunk
+	
+	private void touchAll()
+	{
+		this.modCount++;
+		this.touchedX0 = 0;
+		this.touchedY0 = 0;
+		this.touchedX1 = this.xCapacity;
+		this.touchedY1 = this.yCapacity;
+	}
 	
 	// ------------------------------------------------ PRINTING METHODS
 	// ------------------------------------------------ //
 	
 	@Override
 	public String toString()
-	{ return Arrays.deepToString(this.map); }
+	{ return Arrays.deepToString(this.getMap()); }
 	
 	public String toCleanString()
+	{ return this.toCleanString(false); }
+	
+	public String toCleanGridString()
+	{ return this.toCleanString(true); }
+	
+	/**
+	 * Writes the same chars as {@link #toCleanString()} to {@code out}, a row at a
+	 * time, without building a {@link String}.
+	 *
+	 * @param out where to write the chars
+	 * @throws IOException if {@code out} does
+	 */
+	public void writeCleanString(Appendable out) throws IOException
+	{ this.writeRows(out, false); }
+	
+	public void writeCleanGridString(Appendable out) throws IOException
+	{ this.writeRows(out, true); }
+	
+	/**
+	 * Writes the same chars as {@link #toCleanString()} to {@code out}.
+	 *
+	 * @param out where to write the chars
+	 * @throws java.nio.BufferOverflowException if {@code out} does not have room
+	 */
+	public void writeCleanString(CharBuffer out)
+	{ this.writeTo(out, false); }
+	
+	public void writeCleanGridString(CharBuffer out)
+	{ this.writeTo(out, true); }
+	
+	private String toCleanString(boolean grid)
 	{
-		String s = "";
-		for (int y = 0; y < this.yCapacity; y++) for (int x = 0; x < this.xCapacity; x++) if (this.map[y][x]) s += "1";
-		else s += "0";
-		return s;
+		int separators = grid ? Math.max(0, this.yCapacity - 1) * System.lineSeparator().length() : 0;
+		StringBuilder s = new StringBuilder(this.xCapacity * this.yCapacity + separators);
+		this.writeTo(s, grid);
+		return s.toString();
 	}
 	
-	public String toCleanGridString()
+	// Neither StringBuilder nor CharBuffer throw IOException
+	
+	private void writeTo(Appendable out, boolean grid)
 	{
-		String s = "";
+		try
+		{
+			this.writeRows(out, grid);
+		}
+		catch (IOException e)
+		{
+			throw new AssertionError(e);
+		}
+	}
+	
+	private void writeRows(Appendable out, boolean grid) throws IOException
+	{
+		String separator = System.lineSeparator();
+		char[] row = new char[this.xCapacity];
 		for (int y = 0; y < this.yCapacity; y++)
 		{
-			for (int x = 0; x < this.xCapacity; x++) if (this.map[y][x]) s += "1";
-			else s += "0";
-			if (y != this.yCapacity - 1) s += System.lineSeparator();
+			if (grid && y > 0) out.append(separator);
+			for (int i = 0; i < this.stride; i++)
+			{
+				long word = this.getWord(y, i);
+				for (int x = i << 6, end = Math.min(this.xCapacity, x + 64); x < end; x++)
+					row[x] = (word & (1L << x)) != 0 ? '1' : '0';
+			}
+			Appendables.write(out, row, 0, row.length);
 		}
-		return s;
 	}
 	
 	// ------------------------------------------------ CLONING, TRANSLATION AND
@@ -326,131 +529,611 @@ public class BooleanMap implements Cloneable
 	
 	public static BooleanMap intersectionOf(BooleanMap a, BooleanMap b, ReferencePoint r)
 	{
-		int xCapacity = Math.max(0,
-				Math.min(a.getOffset().getX() + a.getXCapacity(),
-						r.getX() + b.getOffset().getX() + b.getXCapacity()) - Math.max(a.getOffset().getX(),
-								r.getX() + b.getOffset().getX()));
-		int yCapacity = Math.max(0,
-				Math.min(a.getOffset().getY() + a.getYCapacity(),
-						r.getY() + b.getOffset().getY() + b.getYCapacity()) - Math.max(a.getOffset().getY(),
-								r.getY() + b.getOffset().getY()));
-		BooleanMap output = new BooleanMap(xCapacity, yCapacity, false);
-		output.setOffset(new ReferencePoint(Math.max(a.getOffset().getX(), r.getX() + b.getOffset().getX()),
-				Math.max(a.getOffset().getY(), r.getY() + b.getOffset().getY())));
+		ClipRect clip = BooleanMap.intersectionOf(a, b, r.getX(), r.getY(), new ClipRect());
+		BooleanMap output = new BooleanMap(clip.getXCapacity(), clip.getYCapacity(), false);
+		output.setOffset(clip.getX(), clip.getY());
 		return output;
 	}
 	
+	/**
+	 * Finds the area covered by both {@code a} and {@code b}, with b moved by
+	 * {@code x, y}, without allocating a map to hold it.
+	 * 
+	 * @param a the first map
+	 * @param b the second map
+	 * @param x how far b is moved along x
+	 * @param y how far b is moved along y
+	 * @param output the rectangle to write the intersection to
+	 * @return {@code output}
+	 */
+	public static ClipRect intersectionOf(BooleanMap a, BooleanMap b, int x, int y, ClipRect output)
+	{
+		output.set(a.xOffset, a.yOffset, a.xCapacity, a.yCapacity);
+		return output.intersect(x + b.xOffset, y + b.yOffset, b.xCapacity, b.yCapacity);
+	}
+	
+	// Moves every cell by x, y without changing the capacity. Cells moved in from
+	// outside the map are false
+	
 	public void translate(int x, int y)
+	{ this.resize(this.xCapacity, this.yCapacity, x, y, false); }
+	
+	public void merge(BooleanMap b, ReferencePoint offset)
+	{ this.merge(b, offset, BooleanMap.OR); }
+	
+	/**
+	 * Merges {@code b}, placed at {@code offset}, into this map. {@code mode} is a
+	 * 4-bit truth table: bit 3 gives the result where neither cell is set, bit 2
+	 * where only b's cell is set, bit 1 where only this map's cell is set and bit
+	 * 0 where both are set. The named constants are the common cases, but any
+	 * table from {@code 0b0000} to {@code 0b1111} is accepted. Cells of this map
+	 * which lie outside {@code b} are merged as if b's cell were not set.
+	 *
+	 * @param b the map to merge into this one, which is not modified
+	 * @param offset the position of b relative to this map's offset
+	 * @param mode the truth table to merge with
+	 */
+	public void merge(BooleanMap b, ReferencePoint offset, byte mode)
+	{ this.merge(b, offset.getX(), offset.getY(), mode); }
+	
+	public void merge(BooleanMap b, int x, int y)
+	{ this.merge(b, x, y, BooleanMap.OR); }
+	
+	/**
+	 * Merges {@code b}, placed at {@code x, y}, into this map, as in
+	 * {@link #merge(BooleanMap, ReferencePoint, byte)}.
+	 */
+	public void merge(BooleanMap b, int x, int y, byte mode)
 	{
-		boolean[][] a = this.getMap();
-		boolean[][] b = BooleanMap.copOf(this).map;
-		for (int y2 = 0; y2 < this.yCapacity; y2++)
+		if ((mode & ~0b1111) != 0)
+			throw new IllegalArgumentException("The specified mode is not a 4-bit BooleanMap truth table");
+		if (this.stride == 0) return;
+		
+		// Reading b while writing its storage in place would shift already merged cells back in
+		if (b == this || (this.words != null ? b.words == this.words : b.runs == this.runs)) b = BooleanMap.copOf(b);
+		
+		int dx = x + b.xOffset - this.xOffset;
+		int dy = y + b.yOffset - this.yOffset;
+		
+		// Clip to the cells covered by b once, rather than testing each cell
+		int x0 = Math.max(0, dx);
+		int x1 = Math.min(this.xCapacity, dx + b.xCapacity);
+		int y0 = Math.max(0, dy);
+		int y1 = Math.min(this.yCapacity, dy + b.yCapacity);
+		if (x0 >= x1) y1 = y0;
+		
+		// Modes which leave a cell alone where b is not set need only visit the overlap
+		boolean identity = (mode & 0b1010) == 0b0010;
+		if (identity) this.touch(x0, y0, x1, y1);
+		else this.touchAll();
+		this.own();
+		
+		if (this.words == null)
 		{
-			int y3 = y2 - y;
-			for (int x2 = 0; x2 < this.xCapacity; x2++)
+			this.mergeRows(b, dx, dy, y0, y1, identity, mode);
+			return;
+		}
+		
+		int w0 = identity ? x0 >>> 6 : 0;
+		int w1 = identity ? BooleanMap.strideOf(x1) : this.stride;
+		long last = this.lastWordMask();
+		if (this.wordScratch == null || this.wordScratch.length < this.stride) this.wordScratch = new long[this.stride];
+		long[] bits = this.wordScratch;
+		
+		// Line each row of b up with this map's words, then merge the words in bulk
+		for (int row = 0, base = 0; row < this.yCapacity; row++, base += this.stride)
+		{
+			if (row >= y0 && row < y1)
+			{
+				for (int i = w0; i < w1; i++) bits[i] = b.bitsAt(row - dy, (i << 6) - dx);
+				Kernels.INSTANCE.merge(mode, this.words, base + w0, bits, w0, w1 - w0);
+			}
+			else if (!identity)
 			{
-				int x3 = x2 - x;
-				if (y3 < 0 || y3 > 53 || x3 < 0 || x3 > 95) a[y2][x2] = false;
-				else a[y2][x2] = b[y3][x3];
+				Arrays.fill(bits, 0, this.stride, 0L);
+				Kernels.INSTANCE.merge(mode, this.words, base, bits, 0, this.stride);
 			}
+			else continue;
+			this.words[base + this.stride - 1] &= last;
 		}
-		this.setMap(a);
-	}
-	
-	/*
-	 * public void mergeUpto(BooleanMap b, int dx, int dy, byte mode) { switch
-	 * (mode) { case BooleanMap.AND: { for (int y = 0, y2 = -dy; y < this.yCapacity;
-	 * y++, y2++) for (int x = 0, x2 = -dx; x < this.xCapacity; x++, x2++)
-	 * this.map[y][x] = this.map[y][x] & b.map[y2][x2]; break; } case BooleanMap.OR:
-	 * { for (int y = 0, y2 = -dy; y < this.yCapacity; y++, y2++) for (int x = 0, x2
-	 * = -dx; x < this.xCapacity; x++, x2++) this.map[y][x] = this.map[y][x] |
-	 * b.map[y2][x2]; break; } case BooleanMap.NAND: { for (int y = 0, y2 = -dy; y <
-	 * this.yCapacity; y++, y2++) for (int x = 0, x2 = -dx; x < this.xCapacity; x++,
-	 * x2++) this.map[y][x] = !(this.map[y][x] & b.map[y2][x2]); break; } case
-	 * BooleanMap.NOR: { for (int y = 0, y2 = -dy; y < this.yCapacity; y++, y2++)
-	 * for (int x = 0, x2 = -dx; x < this.xCapacity; x++, x2++) this.map[y][x] =
-	 * !(this.map[y][x] | b.map[y2][x2]); break; } case BooleanMap.XOR: { for (int y
-	 * = 0, y2 = -dy; y < this.yCapacity; y++, y2++) for (int x = 0, x2 = -dx; x <
-	 * this.xCapacity; x++, x2++) this.map[y][x] = this.map[y][x] ^ b.map[y2][x2];
-	 * break; } case BooleanMap.XNOR: { for (int y = 0, y2 = -dy; y <
-	 * this.yCapacity; y++, y2++) for (int x = 0, x2 = -dx; x < this.xCapacity; x++,
-	 * x2++) this.map[y][x] = !(this.map[y][x] ^ b.map[y2][x2]); break; } default: {
-	 * boolean[] mask = {(mode & 0b1000) == 8, (mode & 0b0100) == 4, (mode & 0b0010)
-	 * == 2, (mode & 0b0001) == 1}; for (int y = 0, y2 = -dy; y < this.yCapacity;
-	 * y++, y2++) for (int x = 0, x2 = -dx; x < this.xCapacity; x++, x2++) { byte c
-	 * = 0; if (this.map[y][x]) c += 2; if (b.map[y2][x2]) c++; this.map[y][x] =
-	 * mask[c]; } } } }
-	 */
+	}
 	
-	public void merge(BooleanMap b, ReferencePoint offset)
-	{ this.merge(b, offset, BooleanMap.OR); }
+	private void mergeRows(BooleanMap b, int dx, int dy, int y0, int y1, boolean identity, byte mode)
+	{
+		int[] scratch = new int[b.xCapacity + 2];
+		int[] output = BooleanMap.NO_RUNS;
+		for (int row = 0; row < this.yCapacity; row++)
+		{
+			boolean inside = row >= y0 && row < y1;
+			if (identity && !inside) continue;
+			
+			int[] a = this.runs[row];
+			int n = inside ? b.runsOf(row - dy, scratch) : 0;
+			if (output.length < a.length + n + 2) output = new int[a.length + n + 2];
+			int length = BooleanMap.mergeRuns(a, a.length, 0, scratch, n, dx, mode, this.xCapacity, output);
+			if (!BooleanMap.equalRuns(a, output, length)) this.setRow(row, BooleanMap.trimRuns(output, length));
+		}
+	}
 	
-	public void merge(BooleanMap b, ReferencePoint offset, byte mode)
+	/**
+	 * Applies a merge truth table to 64 pairs of cells at once.
+	 */
+	static long apply(byte mode, long a, long b)
 	{
-		BooleanMap c = BooleanMap.copOf(this);
 		switch (mode)
 		{
 			case BooleanMap.AND:
+				return a & b;
+			case BooleanMap.OR:
+				return a | b;
+			case BooleanMap.XOR:
+				return a ^ b;
+			case BooleanMap.NAND:
+				return ~(a & b);
+			case BooleanMap.NOR:
+				return ~(a | b);
+			case BooleanMap.XNOR:
+				return ~(a ^ b);
+			default:
 			{
-				for (int y = 0, y2 = this.offset.getY() - offset.getY() - b.offset.getY(); y < this.yCapacity;
-						y++, y2++)
-					for (int x = 0, x2 = this.offset.getX() - offset.getX() - b.offset.getX(); x < this.xCapacity;
-							x++, x2++)
-						if (!b.isWithinMapAt(x2, y2)) this.map[y][x] = false;
-						else this.map[y][x] = c.map[y][x] & b.map[y2][x2];
-				break;
+				long output = 0L;
+				if ((mode & 0b1000) != 0) output |= ~a & ~b;
+				if ((mode & 0b0100) != 0) output |= ~a & b;
+				if ((mode & 0b0010) != 0) output |= a & ~b;
+				if ((mode & 0b0001) != 0) output |= a & b;
+				return output;
 			}
-			case BooleanMap.OR:
+		}
+	}
+	
+	// ------------------------------------------------ WORD METHODS
+	// ------------------------------------------------ //
+	
+	private void allocate(int xCapacity, int yCapacity)
+	{
+		this.xCapacity = xCapacity;
+		this.yCapacity = yCapacity;
+		this.stride = BooleanMap.strideOf(xCapacity);
+		this.words = new long[this.stride * yCapacity];
+		this.runs = null;
+		this.shared = false;
+		this.boundaryCount = 0;
+	}
+	
+	private boolean get(int x, int y)
+	{
+		if (this.words == null) return BooleanMap.runsContain(this.runs[y], x);
+		return (this.words[y * this.stride + (x >>> 6)] & (1L << x)) != 0;
+	}
+	
+	private void set(int x, int y)
+	{ this.put(x, y, true); }
+	
+	private void put(int x, int y, boolean b)
+	{
+		this.own();
+		if (this.words == null) this.putCell(y, x, b);
+		else if (b) this.words[y * this.stride + (x >>> 6)] |= 1L << x;
+		else this.words[y * this.stride + (x >>> 6)] &= ~(1L << x);
+	}
+	
+	private void flip(int x, int y)
+	{
+		this.own();
+		if (this.words == null) this.putCell(y, x, !this.get(x, y));
+		else this.words[y * this.stride + (x >>> 6)] ^= 1L << x;
+	}
+	
+	private void fillRow(int y, boolean b)
+	{
+		this.own();
+		int base = y * this.stride;
+		Arrays.fill(this.words, base, base + this.stride, b ? -1L : 0L);
+		if (b && this.stride > 0) this.words[base + this.stride - 1] = this.lastWordMask();
+	}
+	
+	private long lastWordMask()
+	{ return BooleanMap.spanMask(this.stride - 1, 0, this.xCapacity); }
+	
+	/**
+	 * Reallocates the map at a new capacity, moving each cell by
+	 * {@code xOffset, yOffset}. Cells which do not come from the old map are set
+	 * to {@code b}.
+	 */
+	private void resize(int xCapacity, int yCapacity, int xOffset, int yOffset, boolean b)
+	{
+		if (this.words == null)
+		{
+			this.resizeRuns(xCapacity, yCapacity, xOffset, yOffset, b);
+			this.touchAll();
+			return;
+		}
+		
+		int stride = BooleanMap.strideOf(xCapacity);
+		long[] words = new long[stride * yCapacity];
+		
+		for (int y = 0, y2 = -yOffset; y < yCapacity; y++, y2++)
+			for (int i = 0, base = y * stride; i < stride; i++)
 			{
-				for (int y = 0, y2 = this.offset.getY() - offset.getY() - b.offset.getY(); y < this.yCapacity;
-						y++, y2++)
-					for (int x = 0, x2 = this.offset.getX() - offset.getX() - b.offset.getX(); x < this.xCapacity;
-							x++, x2++)
-						if (b.isWithinBoundsAt(x2, y2)) this.map[y][x] = c.map[y][x] | b.map[y2][x2];
-				break;
+				long valid = BooleanMap.spanMask(i, 0, xCapacity);
+				long inside = y2 < 0 || y2 >= this.yCapacity ? 0L
+						: BooleanMap.spanMask(i, xOffset, xOffset + this.xCapacity) & valid;
+				long word = inside == 0L ? 0L : this.bitsAt(y2, (i << 6) - xOffset) & inside;
+				if (b) word |= valid & ~inside;
+				words[base + i] = word;
 			}
-			case BooleanMap.XOR:
+		
+		this.xCapacity = xCapacity;
+		this.yCapacity = yCapacity;
+		this.stride = stride;
+		this.words = words;
+		this.shared = false;
+		this.compact();
+		this.touchAll();
+	}
+	
+	private void resizeRuns(int xCapacity, int yCapacity, int xOffset, int yOffset, boolean b)
+	{
+		// The cells of each row which do not come from the old map, as two runs
+		int[] outside = {Math.min(0, xOffset), xOffset, xOffset + this.xCapacity,
+				Math.max(xCapacity, xOffset + this.xCapacity)};
+		int[] full = xCapacity > 0 ? new int[] {0, xCapacity} : BooleanMap.NO_RUNS;
+		int[][] runs = new int[yCapacity][];
+		int[] output = BooleanMap.NO_RUNS;
+		int count = 0;
+		
+		for (int y = 0, y2 = -yOffset; y < yCapacity; y++, y2++)
+		{
+			if (y2 < 0 || y2 >= this.yCapacity) runs[y] = b ? full : BooleanMap.NO_RUNS;
+			else
 			{
-				for (int y = 0, y2 = this.offset.getY() - offset.getY() - b.offset.getY(); y < this.yCapacity;
-						y++, y2++)
-					for (int x = 0, x2 = this.offset.getX() - offset.getX() - b.offset.getX(); x < this.xCapacity;
-							x++, x2++)
-						if (b.isWithinBoundsAt(x2, y2)) this.map[y][x] = c.map[y][x] ^ b.map[y2][x2];
-				break;
+				int[] a = this.runs[y2];
+				if (output.length < a.length + 6) output = new int[a.length + 6];
+				int length = BooleanMap.mergeRuns(a, a.length, xOffset, outside, b ? 4 : 0, 0, BooleanMap.OR, xCapacity,
+						output);
+				runs[y] = BooleanMap.trimRuns(output, length);
 			}
-			case BooleanMap.NAND:
+			count += runs[y].length;
+		}
+		
+		this.xCapacity = xCapacity;
+		this.yCapacity = yCapacity;
+		this.stride = BooleanMap.strideOf(xCapacity);
+		this.runs = runs;
+		this.boundaryCount = count;
+		this.shared = false;
+		this.compact();
+	}
+	
+	/**
+	 * Reads 64 cells of row {@code y}, starting at column {@code x}, into a single
+	 * word. Cells outside the row read as {@code false}.
+	 *
+	 * @param y a row within the map
+	 * @param x the first column to read, which may lie outside the map
+	 * @return the cells from {@code x} to {@code x + 63}, lowest bit first
+	 */
+	long bitsAt(int y, int x)
+	{
+		if (x <= -64 || x >= this.xCapacity) return 0L;
+		if (this.words == null)
+		{
+			// Start from the run holding x, or the first run after it
+			int[] row = this.runs[y];
+			int j = Arrays.binarySearch(row, x);
+			j = (j >= 0 ? j + 1 : -j - 1) & ~1;
+			long word = 0L;
+			for (; j < row.length && row[j] < x + 64; j += 2) word |= BooleanMap.spanMask(0, row[j] - x, row[j + 1] - x);
+			return word;
+		}
+		
+		int base = y * this.stride;
+		if (x < 0) return this.words[base] << -x;
+		
+		int i = x >>> 6;
+		int shift = x & 63;
+		long word = this.words[base + i] >>> shift;
+		if (shift != 0 && i + 1 < this.stride) word |= this.words[base + i + 1] << (64 - shift);
+		return word;
+	}
+	
+	/**
+	 * Reads word {@code i} of row {@code y}, holding cells {@code 64 * i} to
+	 * {@code 64 * i + 63}.
+	 */
+	long getWord(int y, int i)
+	{
+		if (this.words == null) return this.bitsAt(y, i << 6);
+		return this.words[y * this.stride + i];
+	}
+	
+	/**
+	 * Replaces word {@code i} of row {@code y}. Bits past the end of the row must
+	 * be clear. A map held as runs is packed first.
+	 */
+	void setWord(int y, int i, long word)
+	{
+		if (this.words == null) this.toDense();
+		this.own();
+		this.words[y * this.stride + i] = word;
+	}
+	
+	static int strideOf(int xCapacity)
+	{ return (xCapacity + 63) >>> 6; }
+	
+	/**
+	 * Builds the bits of word {@code i} of a row which fall between columns
+	 * {@code from} (inclusive) and {@code to} (exclusive).
+	 */
+	static long spanMask(int i, int from, int to)
+	{
+		int lo = Math.max(from - (i << 6), 0);
+		int hi = Math.min(to - (i << 6), 64);
+		if (lo >= hi) return 0L;
+		long upper = hi == 64 ? -1L : (1L << hi) - 1;
+		return upper & (-1L << lo);
+	}
+	
+	// ------------------------------------------------ SHARING METHODS
+	// ------------------------------------------------ //
+	
+	// Makes a new map holding the same cells as this one without copying them.
+	// Both maps copy their words or runs before they next write them
+	
+	BooleanMap share()
+	{
+		BooleanMap output = new BooleanMap();
+		output.setTo(this);
+		output.shared = true;
+		this.shared = true;
+		return output;
+	}
+	
+	private void own()
+	{
+		if (!this.shared) return;
+		if (this.words != null) this.words = this.words.clone();
+		// Rows are never modified in place, so only the array of rows is copied
+		else this.runs = this.runs.clone();
+		this.shared = false;
+	}
+	
+	// ------------------------------------------------ RUN-LENGTH METHODS
+	// ------------------------------------------------ //
+	
+	public boolean isRunLengthEncoded()
+	{ return this.words == null; }
+	
+	/**
+	 * Packs a map held as runs into words. Callers about to write words from
+	 * several threads must call this first, so that nothing is copied on write
+	 * while they run.
+	 */
+	void toDense()
+	{
+		this.own();
+		if (this.words != null) return;
+		long[] words = new long[this.stride * this.yCapacity];
+		for (int y = 0, base = 0; y < this.yCapacity; y++, base += this.stride)
+		{
+			int[] row = this.runs[y];
+			for (int j = 0; j < row.length; j += 2) for (int i = row[j] >>> 6; i < BooleanMap.strideOf(row[j + 1]); i++)
+				words[base + i] |= BooleanMap.spanMask(i, row[j], row[j + 1]);
+		}
+		this.words = words;
+		this.runs = null;
+		this.boundaryCount = 0;
+		this.shared = false;
+	}
+	
+	private void toRunLength()
+	{
+		int[][] runs = new int[this.yCapacity][];
+		int[] scratch = new int[this.xCapacity + 2];
+		int count = 0;
+		for (int y = 0; y < this.yCapacity; y++)
+		{
+			int n = this.runsOf(y, scratch);
+			runs[y] = BooleanMap.trimRuns(scratch, n);
+			count += n;
+		}
+		this.runs = runs;
+		this.words = null;
+		this.boundaryCount = count;
+		this.shared = false;
+	}
+	
+	/**
+	 * Switches to whichever form is much smaller. Each form needs the other to be
+	 * half its size before switching, so a map near the line does not flip back
+	 * and forth. Costs a pass over the map when it is packed, so it is best called
+	 * once a map is built rather than after each change. A map which switches
+	 * stops sharing its storage with maps it was {@link #setTo(BooleanMap) set}
+	 * to.
+	 */
+	public void compact()
+	{
+		long packed = (long) this.stride * this.yCapacity;
+		if (packed < BooleanMap.MIN_RUN_LENGTH_WORDS)
+		{
+			if (this.words == null) this.toDense();
+		}
+		else if (this.words == null)
+		{
+			if (this.runLengthCost(this.boundaryCount) >= packed) this.toDense();
+		}
+		else if (this.runLengthCost(this.countBoundaries()) * 2 <= packed) this.toRunLength();
+	}
+	
+	// Estimates the size of the run-length form in longs: two boundaries to a
+	// long, and a header and reference for each row
+	
+	private long runLengthCost(long boundaries)
+	{ return boundaries / 2 + 3L * this.yCapacity; }
+	
+	private long countBoundaries()
+	{
+		long count = 0;
+		for (int y = 0, base = 0; y < this.yCapacity; y++, base += this.stride)
+		{
+			long carry = 0L;
+			for (int i = base; i < base + this.stride; i++)
 			{
-				for (int y = 0, y2 = this.offset.getY() - offset.getY() - b.offset.getY(); y < this.yCapacity;
-						y++, y2++)
-					for (int x = 0, x2 = this.offset.getX() - offset.getX() - b.offset.getX(); x < this.xCapacity;
-							x++, x2++)
-						if (!b.isWithinBoundsAt(x2, y2)) this.map[y][x] = true;
-						else this.map[y][x] = !(c.map[y][x] & b.map[y2][x2]);
-				break;
+				long word = this.words[i];
+				count += Long.bitCount(word ^ (word << 1 | carry));
+				carry = word >>> 63;
 			}
-			case BooleanMap.NOR:
+			count += carry;
+		}
+		return count;
+	}
+	
+	private void setRow(int y, int[] row)
+	{
+		this.own();
+		this.boundaryCount += row.length - this.runs[y].length;
+		this.runs[y] = row;
+	}
+	
+	private void putCell(int y, int x, boolean b)
+	{
+		int[] row = this.runs[y];
+		if (this.rowScratch == null || this.rowScratch.length < row.length + 4) this.rowScratch = new int[row.length + 4];
+		int length = BooleanMap.mergeRuns(row, row.length, 0, BooleanMap.CELL, 2, x, b ? BooleanMap.OR : 0b0010,
+				this.xCapacity, this.rowScratch);
+		if (!BooleanMap.equalRuns(row, this.rowScratch, length))
+			this.setRow(y, BooleanMap.trimRuns(this.rowScratch, length));
+	}
+	
+	/**
+	 * Writes the boundaries of the runs of row {@code y} to {@code output}, which
+	 * must hold at least {@code xCapacity + 2} ints.
+	 *
+	 * @return the number of boundaries written
+	 */
+	private int runsOf(int y, int[] output)
+	{
+		if (this.words == null)
+		{
+			System.arraycopy(this.runs[y], 0, output, 0, this.runs[y].length);
+			return this.runs[y].length;
+		}
+		
+		int n = 0;
+		int start = -1;
+		int end = -1;
+		for (int i = 0, base = y * this.stride; i < this.stride; i++)
+		{
+			long word = this.words[base + i];
+			int column = i << 6;
+			while (word != 0)
 			{
-				for (int y = 0, y2 = this.offset.getY() - offset.getY() - b.offset.getY(); y < this.yCapacity;
-						y++, y2++)
-					for (int x = 0, x2 = this.offset.getX() - offset.getX() - b.offset.getX(); x < this.xCapacity;
-							x++, x2++)
-						if (!b.isWithinBoundsAt(x2, y2)) this.map[y][x] = !c.map[y][x];
-						else this.map[y][x] = !(c.map[y][x] | b.map[y2][x2]);
-				break;
+				int from = Long.numberOfTrailingZeros(word);
+				int to = from + Long.numberOfTrailingZeros(~(word >>> from));
+				if (column + from == end) end = column + to;
+				else
+				{
+					if (start >= 0)
+					{
+						output[n++] = start;
+						output[n++] = end;
+					}
+					start = column + from;
+					end = column + to;
+				}
+				word = to == 64 ? 0 : word & (-1L << to);
 			}
-			case BooleanMap.XNOR:
+		}
+		if (start >= 0)
+		{
+			output[n++] = start;
+			output[n++] = end;
+		}
+		return n;
+	}
+	
+	/**
+	 * Merges two rows of runs under a truth table, as in
+	 * {@link #merge(BooleanMap, ReferencePoint, byte)}, by sweeping across their
+	 * boundaries. Each row is moved by its shift, and the result is clipped to
+	 * the columns from 0 to {@code xCapacity}.
+	 *
+	 * @return the number of boundaries written to {@code output}, which must hold
+	 *         at least {@code na + nb + 2}
+	 */
+	static int mergeRuns(int[] a, int na, int aShift, int[] b, int nb, int bShift, int mode, int xCapacity,
+			int[] output)
+	{
+		if (xCapacity <= 0) return 0;
+		int n = 0;
+		int ia = 0;
+		int ib = 0;
+		boolean inA = false;
+		boolean inB = false;
+		boolean set = false;
+		
+		for (int x = 0;;)
+		{
+			while (ia < na && a[ia] + aShift <= x)
 			{
-				for (int y = 0, y2 = this.offset.getY() - offset.getY() - b.offset.getY(); y < this.yCapacity;
-						y++, y2++)
-					for (int x = 0, x2 = this.offset.getX() - offset.getX() - b.offset.getX(); x < this.xCapacity;
-							x++, x2++)
-						if (!b.isWithinBoundsAt(x2, y2)) this.map[y][x] = !c.map[y][x];
-						else this.map[y][x] = !(c.map[y][x] ^ b.map[y2][x2]);
-				break;
+				inA = !inA;
+				ia++;
 			}
-			default:
-				throw new IllegalArgumentException("The specified mode is not a BooleanMap constant");
+			while (ib < nb && b[ib] + bShift <= x)
+			{
+				inB = !inB;
+				ib++;
+			}
+			
+			boolean cell = (mode >>> (3 - (inA ? 2 : 0) - (inB ? 1 : 0)) & 1) != 0;
+			if (cell != set)
+			{
+				output[n++] = x;
+				set = cell;
+			}
+			
+			int next = Integer.MAX_VALUE;
+			if (ia < na) next = a[ia] + aShift;
+			if (ib < nb) next = Math.min(next, b[ib] + bShift);
+			if (next >= xCapacity) break;
+			x = next;
 		}
+		
+		if (set) output[n++] = xCapacity;
+		return n;
+	}
+	
+	private static int[] invertRuns(int[] row, int xCapacity)
+	{
+		if (xCapacity == 0) return row;
+		boolean head = row.length > 0 && row[0] == 0;
+		boolean tail = row.length > 0 && row[row.length - 1] == xCapacity;
+		int from = head ? 1 : 0;
+		int to = tail ? row.length - 1 : row.length;
+		
+		int[] output = new int[to - from + (head ? 0 : 1) + (tail ? 0 : 1)];
+		int n = 0;
+		if (!head) output[n++] = 0;
+		System.arraycopy(row, from, output, n, to - from);
+		n += to - from;
+		if (!tail) output[n] = xCapacity;
+		return output;
+	}
+	
+	private static boolean runsContain(int[] row, int x)
+	{
+		int i = Arrays.binarySearch(row, x);
+		return i >= 0 ? (i & 1) == 0 : (-i - 1 & 1) == 1;
 	}
 	
+	private static boolean equalRuns(int[] row, int[] runs, int length)
+	{
+		if (row.length != length) return false;
+		for (int i = 0; i < length; i++) if (row[i] != runs[i]) return false;
+		return true;
+	}
+	
+	private static int[] trimRuns(int[] runs, int length)
+	{ return length == 0 ? BooleanMap.NO_RUNS : Arrays.copyOf(runs, length); }
+	
 }
\ No newline at end of file
@@ -1,21 +1,62 @@
 package com.gmeister.temp.maps;
 
+import java.io.IOException;
+import java.nio.CharBuffer;
 import java.util.Arrays;
 
 import com.gmeister.temp.pipe.render.textmap.TextArray;
 import com.gmeister.temp.pipe.render.textmap.TextSource;
 
+/**
+ * A grid of chars with an alpha {@link BooleanMap} marking which of them are
+ * rendered. The chars are held in a single row-major array, with row {@code y}
+ * starting at index {@code y * stride}.
+ * <p>
+ * A map loaded with {@link CharMapFile#map(java.nio.file.Path)} instead reads
+ * its chars straight from the mapped file, so it takes no heap however large it
+ * is. It is copied onto the heap the first time its chars are changed.
+ *
+ * @author The_G_Meister
+ */
 public class CharMap implements TextSource
 {
 	
 	private int xCapacity;
 	private int yCapacity;
-	private char[][] map;
+	private int stride;
+	private char[] map;
+	// Set in place of map while the chars are read from a mapped file
+	private CharBuffer cells;
+	// Set while map is shared with another map, so it is copied before it is written
+	private boolean shared;
 	private BooleanMap alpha;
 	
+	private int mapXOffset;
+	private int mapYOffset;
 	private ReferencePoint mapOffset;
+	private int alphaXOffset;
+	private int alphaYOffset;
 	private ReferencePoint alphaOffset;
 	
+	private int damageX0;
+	private int damageY0;
+	private int damageX1;
+	private int damageY1;
+	private long modCount;
+	private int touchedX0;
+	private int touchedY0;
+	private int touchedX1;
+	private int touchedY1;
+	
+	// The rows handed out by pourText(), and the box of map coordinates in which
+	// they are out of date
+	private char[][] rows;
+	private TextArray text;
+	private int staleX0;
+	private int staleY0;
+	private int staleX1;
+	private int staleY1;
+	
 	// ------------------------------------------------ CONTRUCTORS
 	// ------------------------------------------------ //
 	
@@ -23,19 +64,20 @@ public class CharMap implements TextSource
 	{
 		this.xCapacity = 0;
 		this.yCapacity = 0;
-		this.map = new char[0][0];
+		this.stride = 0;
+		this.map = new char[0];
 		this.alpha = new BooleanMap();
 		
-		this.mapOffset = new ReferencePoint();
-		this.alphaOffset = new ReferencePoint();
+		this.mapOffset = ReferencePoint.ORIGIN;
+		this.alphaOffset = ReferencePoint.ORIGIN;
 	}
 	
 	public CharMap(int xCapacity, int yCapacity, char c, boolean b)
 	{
 		this.setMap(xCapacity, yCapacity, c);
 		this.alpha = new BooleanMap(xCapacity, yCapacity, b);
-		this.mapOffset = new ReferencePoint();
-		this.alphaOffset = new ReferencePoint();
+		this.mapOffset = ReferencePoint.ORIGIN;
+		this.alphaOffset = ReferencePoint.ORIGIN;
 	}
 	
 	public CharMap(int xCapacity, int yCapacity, String s)
@@ -46,8 +88,8 @@ public class CharMap implements TextSource
 		if (s == null || b == null) throw new IllegalArgumentException();
 		this.setMap(xCapacity, yCapacity, s);
 		this.alpha = b;
-		this.mapOffset = new ReferencePoint();
-		this.alphaOffset = new ReferencePoint();
+		this.mapOffset = ReferencePoint.ORIGIN;
+		this.alphaOffset = ReferencePoint.ORIGIN;
 	}
 	
 	public CharMap(int xCapacity, int yCapacity, char[] c, BooleanMap b)
@@ -55,8 +97,8 @@ public class CharMap implements TextSource
 		if (b == null) throw new IllegalArgumentException();
 		this.setMap(xCapacity, yCapacity, c);
 		this.alpha = b;
-		this.mapOffset = new ReferencePoint();
-		this.alphaOffset = new ReferencePoint();
+		this.mapOffset = ReferencePoint.ORIGIN;
+		this.alphaOffset = ReferencePoint.ORIGIN;
 	}
 	
 	// ------------------------------------------------ MAP REFACTORING METHODS
@@ -64,71 +106,97 @@ public class CharMap implements TextSource
 	
 	public void setMap(int xCapacity, int yCapacity, char c)
 	{
-		this.xCapacity = xCapacity;
-		this.yCapacity = yCapacity;
-		this.map = new char[this.yCapacity][xCapacity];
+		this.damageExtent();
+		this.allocate(xCapacity, yCapacity);
 		this.fill(c);
 	}
 	
 	public void setMap(int xCapacity, int yCapacity, String s)
 	{ this.setMap(xCapacity, yCapacity, s.toCharArray()); }
 	
+	// Cells past the end of c are filled with spaces
+	
 	public void setMap(int xCapacity, int yCapacity, char c[])
 	{
-		this.xCapacity = xCapacity;
-		this.yCapacity = yCapacity;
-		this.map = new char[this.yCapacity][];
+		this.damageExtent();
+		this.allocate(xCapacity, yCapacity);
 		
-		int l = (int) Math.floor(c.length / this.xCapacity);
-		int y = 0;
-		for (; y < l && y < this.yCapacity; y++)
-			this.map[y] = Arrays.copyOfRange(c, y * this.xCapacity, (y + 1) * this.xCapacity);
-		int i = y * this.xCapacity;
-		for (; y < this.yCapacity; y++)
-		{
-			this.map[y] = new char[this.xCapacity];
-			for (int x = 0; x < this.xCapacity; x++, i++) if (i < c.length) this.map[y][x] = c[i];
-			else this.map[y][x] = ' ';
-		}
+		int l = Math.min(c.length, this.map.length);
+		System.arraycopy(c, 0, this.map, 0, l);
+		Arrays.fill(this.map, l, this.map.length, ' ');
+		this.damageExtent();
 	}
 	
+	// Copies c's chars into the object, meaning modifications in c's chars WILL NOT
+	// affect the object
+	
 	public void setMap(char[][] c)
 	{
-		for (int i = 1; i < this.yCapacity; i++)
-			if (c[i].length != this.xCapacity) throw new IllegalArgumentException("Inner char[] length is not uniform");
+		for (int i = 1; i < c.length; i++)
+			if (c[i].length != c[0].length) throw new IllegalArgumentException("Inner char[] length is not uniform");
 		
-		this.xCapacity = c[0].length;
-		this.yCapacity = c.length;
-		this.map = c;
+		this.damageExtent();
+		this.allocate(c[0].length, c.length);
+		for (int y = 0; y < this.yCapacity; y++) System.arraycopy(c[y], 0, this.map, y * this.stride, this.xCapacity);
+		this.damageExtent();
 	}
 	
 	public void fill(char c)
-	{ for (int y = 0; y < this.yCapacity; y++) Arrays.fill(this.map[y], c); }
+	{
+		if (this.map == null || this.shared) this.allocate(this.xCapacity, this.yCapacity);
+		Kernels.INSTANCE.fill(this.map, 0, this.map.length, c);
+		this.damageExtent();
+	}
 	
 	// ------------------------------------------------ OBJECT REPLACEMENT METHODS
 	// ------------------------------------------------ //
 	
 	public void copyFrom(CharMap c)
 	{
+		this.damageExtent();
 		this.xCapacity = c.xCapacity;
 		this.yCapacity = c.yCapacity;
+		this.mapXOffset = c.mapXOffset;
+		this.mapYOffset = c.mapYOffset;
 		this.mapOffset = c.mapOffset;
-		this.map = new char[this.yCapacity][];
-		for (int y = 0; y < this.yCapacity; y++) this.map[y] = Arrays.copyOf(c.map[y], this.xCapacity);
+		this.stride = c.stride;
+		// A mapped file is never written, so it can be shared
+		this.map = c.map == null ? null : c.map.clone();
+		this.cells = c.cells;
+		this.shared = false;
 		
+		this.alphaXOffset = c.alphaXOffset;
+		this.alphaYOffset = c.alphaYOffset;
 		this.alphaOffset = c.alphaOffset;
 		this.alpha = BooleanMap.copOf(c.alpha);
+		this.damageExtent();
 	}
 	
+	/**
+	 * Makes this map hold the same cells as {@code c} without copying them. Each
+	 * map copies its chars or alpha words before it next changes them, so changes
+	 * to one never show in the other.
+	 */
 	public void setTo(CharMap c)
 	{
+		this.damageExtent();
 		this.xCapacity = c.xCapacity;
 		this.yCapacity = c.yCapacity;
+		this.mapXOffset = c.mapXOffset;
+		this.mapYOffset = c.mapYOffset;
 		this.mapOffset = c.mapOffset;
+		this.stride = c.stride;
 		this.map = c.map;
+		this.cells = c.cells;
+		// A mapped file is never written, so only an array needs copying later
+		this.shared = c.map != null;
+		if (c.map != null) c.shared = true;
 		
+		this.alphaXOffset = c.alphaXOffset;
+		this.alphaYOffset = c.alphaYOffset;
 		this.alphaOffset = c.alphaOffset;
-		this.alpha = c.alpha;
+		this.alpha = c.alpha.share();
+		this.damageExtent();
 	}
 	
 	// ------------------------------------------------ COPYING FACTORY
@@ -153,41 +221,63 @@ public class CharMap implements TextSource
 	
 	public void setAt(int x, int y, char c)
 	{
-		int x2 = x - this.mapOffset.getX();
-		int y2 = y - this.mapOffset.getY();
-		if (this.isWithinBoundsAt(x2, y2)) this.map[y2][x2] = c;
-		else throw new MapOutOfBoundsException("CharMap does not contain coordinates " + x2 + ", " + y2);
+		int x2 = x - this.mapXOffset;
+		int y2 = y - this.mapYOffset;
+		if (!this.isWithinMapAt(x2, y2))
+			throw new MapOutOfBoundsException("CharMap does not contain coordinates " + x2 + ", " + y2);
+		if (this.map == null || this.shared) this.own();
+		this.map[y2 * this.stride + x2] = c;
+		this.damage(x, y, x + 1, y + 1);
 	}
 	
 	public void setMapAt(int x, int y, char c)
 	{
-		if (this.isWithinMapAt(x, y)) this.map[y][x] = c;
-		else throw new MapOutOfBoundsException("CharMap does not contain coordinates " + x + ", " + y);
+		if (!this.isWithinMapAt(x, y))
+			throw new MapOutOfBoundsException("CharMap does not contain coordinates " + x + ", " + y);
+		if (this.map == null || this.shared) this.own();
+		this.map[y * this.stride + x] = c;
+		int x2 = x + this.mapXOffset;
+		int y2 = y + this.mapYOffset;
+		this.damage(x2, y2, x2 + 1, y2 + 1);
 	}
 	
+	/**
+	 * Copies the map into a new {@code char[][]}. The map is stored as a single
+	 * array, so unlike when it was stored as rows, this is a copy rather than the
+	 * map itself: modifications to the returned array WILL NOT affect the object.
+	 * Write through {@link #setMapAt(int, int, char)} or
+	 * {@link #setMap(char[][])} instead. Callers which only read the rows should
+	 * use {@link #pourText()}, which does not copy the whole map each time.
+	 *
+	 * @return a copy of the map, indexed {@code [y][x]}
+	 */
 	public char[][] getMap()
-	{ return this.map; }
+	{
+		char[][] output = new char[this.yCapacity][this.xCapacity];
+		for (int y = 0; y < this.yCapacity; y++) this.readRun(y * this.stride, output[y], 0, this.xCapacity);
+		return output;
+	}
 	
 	public char getAt(int x, int y)
 	{
-		int x2 = x - this.mapOffset.getX();
-		int y2 = y - this.mapOffset.getY();
-		if (this.alpha.getAt(x - this.alphaOffset.getX(), y - this.alphaOffset.getY()))
-			if (this.isWithinBoundsAt(x2, y2)) return this.map[y2][x2];
+		int x2 = x - this.mapXOffset;
+		int y2 = y - this.mapYOffset;
+		if (this.alpha.getAt(x - this.alphaXOffset, y - this.alphaYOffset))
+			if (this.isWithinMapAt(x2, y2)) return this.charAt(y2 * this.stride + x2);
 			else throw new MapOutOfBoundsException("CharMap does not contain coordinates " + x2 + ", " + y2);
 		else throw new NotRenderedException("CharMap is not rendered at " + x2 + ", " + y2);
 	}
 	
 	public char getMapAt(int x, int y)
 	{
-		if (this.isWithinMapAt(x, y)) return this.map[y][x];
+		if (this.isWithinMapAt(x, y)) return this.charAt(y * this.stride + x);
 		else throw new MapOutOfBoundsException("CharMap does not contain coordinates " + x + ", " + y);
 	}
 	
 	public boolean isWithinBoundsAt(int x, int y)
 	{
-		int x2 = x - this.mapOffset.getX();
-		int y2 = y - this.mapOffset.getY();
+		int x2 = x - this.mapXOffset;
+		int y2 = y - this.mapYOffset;
 		if (x2 < 0 || x2 >= this.xCapacity || y2 < 0 || y2 >= this.yCapacity) return false;
 		else return true;
 	}
@@ -208,129 +298,282 @@ public class CharMap implements TextSource
 	{ return this.yCapacity; }
 	
 	public void setXCapacity(int xCapacity, int xOffset, char c)
-	{
-		char[][] tempMap = new char[this.yCapacity][xCapacity];
-		
-		for (int y = 0; y < this.yCapacity; y++) for (int x = 0, x2 = -xOffset; x < xCapacity; x++, x2++)
-			if (x2 < 0 || x2 >= this.xCapacity) tempMap[y][x] = c;
-			else tempMap[y][x] = this.map[y][x2];
-			
-		this.map = tempMap;
-		this.xCapacity = xCapacity;
-	}
+	{ this.resize(xCapacity, this.yCapacity, xOffset, 0, c); }
 	
 	public void setYCapacity(int yCapacity, int yOffset, char c)
+	{ this.resize(this.xCapacity, yCapacity, 0, yOffset, c); }
+	
+	public void setCapacity(int xCapacity, int yCapacity, ReferencePoint offset, char c)
+	{ this.resize(xCapacity, yCapacity, offset.getX(), offset.getY(), c); }
+	
+	public void setCapacity(int xCapacity, int yCapacity, int xOffset, int yOffset, char c)
+	{ this.resize(xCapacity, yCapacity, xOffset, yOffset, c); }
+	
+	private void allocate(int xCapacity, int yCapacity)
 	{
-		char[][] tempMap = new char[yCapacity][];
-		
-		for (int y = 0, y2 = -yOffset; y < yCapacity; y++, y2++) if (y2 < 0 || y2 >= this.yCapacity)
-		{
-			tempMap[y] = new char[this.xCapacity];
-			Arrays.fill(tempMap[y], c);
-		}
-		else tempMap[y] = this.map[y2];
-		
-		this.map = tempMap;
+		this.xCapacity = xCapacity;
 		this.yCapacity = yCapacity;
+		this.stride = xCapacity;
+		this.map = new char[this.stride * yCapacity];
+		this.cells = null;
+		this.shared = false;
 	}
 	
-	public void setCapacity(int xCapacity, int yCapacity, ReferencePoint offset, char c)
+	/**
+	 * Reallocates the map at a new capacity, moving each char by
+	 * {@code xOffset, yOffset}. Cells which do not come from the old map are set
+	 * to {@code c}. Each row is moved with a single copy.
+	 */
+	private void resize(int xCapacity, int yCapacity, int xOffset, int yOffset, char c)
 	{
-		char[][] tempMap = new char[yCapacity][xCapacity];
+		this.damageExtent();
+		char[] map = new char[xCapacity * yCapacity];
+		int x0 = Math.max(0, xOffset);
+		int x1 = Math.max(x0, Math.min(xCapacity, xOffset + this.xCapacity));
+		
+		for (int y = 0, y2 = -yOffset, base = 0; y < yCapacity; y++, y2++, base += xCapacity)
+			if (y2 < 0 || y2 >= this.yCapacity || x0 == x1) Arrays.fill(map, base, base + xCapacity, c);
+			else
+			{
+				Arrays.fill(map, base, base + x0, c);
+				this.readRun(y2 * this.stride + x0 - xOffset, map, base + x0, x1 - x0);
+				Arrays.fill(map, base + x1, base + xCapacity, c);
+			}
 		
-		for (int y = 0, y2 = -offset.getY(); y < yCapacity; y++, y2++)
-			if (y < 0 || y2 >= this.yCapacity) Arrays.fill(tempMap[y], c);
-			else for (int x = 0, x2 = -offset.getX(); x < xCapacity; x++, x2++)
-				if (x2 < 0 || x2 >= this.xCapacity) tempMap[y][x] = c;
-				else tempMap[y][x] = this.map[y2][x2];
-				
-		this.map = tempMap;
 		this.xCapacity = xCapacity;
 		this.yCapacity = yCapacity;
+		this.stride = xCapacity;
+		this.map = map;
+		this.cells = null;
+		this.shared = false;
+		this.damageExtent();
 	}
 	
 	// ------------------------------------------------ BOOLEANMAP METHODS
 	// ------------------------------------------------ //
 	
 	public void setBooleanMap(BooleanMap b)
-	{ this.alpha = b; }
+	{
+		this.damageExtent();
+		this.alpha = b;
+		this.damageExtent();
+	}
 	
 	public BooleanMap getAlphaMap()
 	{ return this.alpha; }
 	
 	public void setAlphaOffset(ReferencePoint alphaOffset)
-	{ this.alphaOffset = alphaOffset; }
+	{
+		this.damageExtent();
+		this.alphaXOffset = alphaOffset.getX();
+		this.alphaYOffset = alphaOffset.getY();
+		this.alphaOffset = alphaOffset;
+		this.damageExtent();
+	}
+	
+	public void setAlphaOffset(int x, int y)
+	{
+		if (x == this.alphaXOffset && y == this.alphaYOffset) return;
+		this.damageExtent();
+		this.alphaXOffset = x;
+		this.alphaYOffset = y;
+		this.alphaOffset = null;
+		this.damageExtent();
+	}
 	
 	public ReferencePoint getAlphaOffset()
-	{ return this.alphaOffset; }
+	{
+		if (this.alphaOffset == null) this.alphaOffset = new ReferencePoint(this.alphaXOffset, this.alphaYOffset);
+		return this.alphaOffset;
+	}
+	
+	public int getAlphaXOffset()
+	{ return this.alphaXOffset; }
+	
+	public int getAlphaYOffset()
+	{ return this.alphaYOffset; }
 	
 	public void setAlphaAt(int x, int y, boolean b)
-	{ this.alpha.setAt(x - this.alphaOffset.getX(), y - this.alphaOffset.getY(), b); }
+	{
+		this.alpha.setAt(x - this.alphaXOffset, y - this.alphaYOffset, b);
+		this.damage(x, y, x + 1, y + 1);
+	}
 	
 	public void invertAlphaAt(int x, int y)
-	{ this.alpha.invertAt(x - this.alphaOffset.getX(), y - this.alphaOffset.getY()); }
+	{
+		this.alpha.invertAt(x - this.alphaXOffset, y - this.alphaYOffset);
+		this.damage(x, y, x + 1, y + 1);
+	}
 	
 	public boolean getAlphaAt(int x, int y)
-	{ return this.alpha.getAt(x - this.alphaOffset.getX(), y - this.alphaOffset.getY()); }
+	{ return this.alpha.getAt(x - this.alphaXOffset, y - this.alphaYOffset); }
 	
 	public boolean isWithinAlphaBoundsAt(int x, int y)
-	{ return this.alpha.isWithinBoundsAt(x - this.alphaOffset.getX(), y - this.alphaOffset.getY()); }
+	{ return this.alpha.isWithinBoundsAt(x - this.alphaXOffset, y - this.alphaYOffset); }
 	
 	// ------------------------------------------------ OFFSET METHODS
 	// ------------------------------------------------ //
 	
+	// Offsets are held as ints. The ReferencePoints returned by getOffset() and
+	// getAlphaOffset() are only built when asked for after an offset changes
+	
 	public void setMapOffset(ReferencePoint mapOffset)
-	{ this.mapOffset = mapOffset; }
+	{
+		this.damageExtent();
+		this.mapXOffset = mapOffset.getX();
+		this.mapYOffset = mapOffset.getY();
+		this.mapOffset = mapOffset;
+		this.damageExtent();
+	}
+	
+	public void setMapOffset(int x, int y)
+	{
+		if (x == this.mapXOffset && y == this.mapYOffset) return;
+		this.damageExtent();
+		this.mapXOffset = x;
+		this.mapYOffset = y;
+		this.mapOffset = null;
+		this.damageExtent();
+	}
 	
 	public ReferencePoint getOffset()
-	{ return this.mapOffset; }
+	{
+		if (this.mapOffset == null) this.mapOffset = new ReferencePoint(this.mapXOffset, this.mapYOffset);
+		return this.mapOffset;
+	}
+	
+	public int getXOffset()
+	{ return this.mapXOffset; }
+	
+	public int getYOffset()
+	{ return this.mapYOffset; }
 	
 	// ------------------------------------------------ PRINTING METHODS
 	// ------------------------------------------------ //
 	
 	@Override
 	public String toString()
-	{ return Arrays.deepToString(this.map); }
+	{ return Arrays.deepToString(this.getMap()); }
 	
 	public String toCleanString()
+	{ return this.toCleanString(false, false); }
+	
+	public String toCleanGridString()
+	{ return this.toCleanString(false, true); }
+	
+	public String toCleanAlphaString()
+	{ return this.toCleanString(true, false); }
+	
+	public String toCleanAlphaGridString()
+	{ return this.toCleanString(true, true); }
+	
+	/**
+	 * Writes the same chars as {@link #toCleanString()} to {@code out}, without
+	 * building a {@link String}. {@link StringBuilder}s, {@link java.io.Writer}s
+	 * and {@link CharBuffer}s are written a row at a time.
+	 *
+	 * @param out where to write the chars
+	 * @throws IOException if {@code out} does
+	 */
+	public void writeCleanString(Appendable out) throws IOException
+	{ this.writeRows(out, false); }
+	
+	public void writeCleanGridString(Appendable out) throws IOException
+	{ this.writeRows(out, true); }
+	
+	public void writeCleanAlphaString(Appendable out) throws IOException
+	{ this.writeAlphaRows(out, false); }
+	
+	public void writeCleanAlphaGridString(Appendable out) throws IOException
+	{ this.writeAlphaRows(out, true); }
+	
+	/**
+	 * Writes the same chars as {@link #toCleanString()} to {@code out}.
+	 *
+	 * @param out where to write the chars
+	 * @throws java.nio.BufferOverflowException if {@code out} does not have room
+	 */
+	public void writeCleanString(CharBuffer out)
+	{ this.writeTo(out, false, false); }
+	
+	public void writeCleanGridString(CharBuffer out)
+	{ this.writeTo(out, false, true); }
+	
+	public void writeCleanAlphaString(CharBuffer out)
+	{ this.writeTo(out, true, false); }
+	
+	public void writeCleanAlphaGridString(CharBuffer out)
+	{ this.writeTo(out, true, true); }
+	
+	private String toCleanString(boolean alpha, boolean grid)
 	{
-		String s = "";
-		for (int y = 0; y < this.yCapacity; y++) s += new String(this.map[y]);
-		return s;
+		int xCapacity = alpha ? this.alpha.getXCapacity() : this.xCapacity;
+		int yCapacity = alpha ? this.alpha.getYCapacity() : this.yCapacity;
+		int separators = grid ? Math.max(0, yCapacity - 1) * System.lineSeparator().length() : 0;
+		StringBuilder s = new StringBuilder(xCapacity * yCapacity + separators);
+		this.writeTo(s, alpha, grid);
+		return s.toString();
 	}
 	
-	public String toCleanGridString()
+	// Neither StringBuilder nor CharBuffer throw IOException
+	
+	private void writeTo(Appendable out, boolean alpha, boolean grid)
 	{
-		String s = "";
-		for (int y = 0; y < this.yCapacity; y++)
+		try
 		{
-			s += new String(this.map[y]);
-			if (y != this.yCapacity - 1) s += System.lineSeparator();
+			if (alpha) this.writeAlphaRows(out, grid);
+			else this.writeRows(out, grid);
+		}
+		catch (IOException e)
+		{
+			throw new AssertionError(e);
 		}
-		return s;
 	}
 	
-	public String toCleanAlphaString()
+	private void writeRows(Appendable out, boolean grid) throws IOException
 	{
-		String s = "";
-		for (int y = 0, y2 = -this.alphaOffset.getY(); y < this.alpha.getYCapacity(); y++, y2++)
-			for (int x = 0, x2 = -this.alphaOffset.getX(); x < this.alpha.getXCapacity(); x++, x2++)
-				if (this.alpha.getAt(x, y)) s += this.getMapAt(x2, y2);
-				else s += ' ';
-		return s;
+		String separator = System.lineSeparator();
+		for (int y = 0; y < this.yCapacity; y++)
+		{
+			if (grid && y > 0) out.append(separator);
+			if (this.map != null) Appendables.write(out, this.map, y * this.stride, this.xCapacity);
+			else out.append(this.cells, y * this.stride, y * this.stride + this.xCapacity);
+		}
 	}
 	
-	public String toCleanAlphaGridString()
+	// Writes a row per row of the alpha map, with the chars it renders and spaces
+	// elsewhere. Rendered runs are copied from the map in bulk.
+	
+	private void writeAlphaRows(Appendable out, boolean grid) throws IOException
 	{
-		String s = "";
-		for (int y = 0, y2 = -this.alphaOffset.getY(); y < this.alpha.getYCapacity(); y++, y2++)
+		String separator = System.lineSeparator();
+		BooleanMap alpha = this.alpha;
+		int dx = this.alphaXOffset + alpha.getXOffset() - this.mapXOffset;
+		int dy = this.alphaYOffset + alpha.getYOffset() - this.mapYOffset;
+		char[] row = new char[alpha.getXCapacity()];
+		
+		for (int y = 0; y < alpha.getYCapacity(); y++)
 		{
-			for (int x = 0, x2 = -this.alphaOffset.getX(); x < this.alpha.getXCapacity(); x++, x2++)
-				if (this.alpha.getAt(x, y)) s += this.getMapAt(x2, y2);
-				else s += ' ';
-			if (y != this.yCapacity - 1) s += System.lineSeparator();
+			if (grid && y > 0) out.append(separator);
+			Arrays.fill(row, ' ');
+			for (int x = 0; x < row.length; x += 64)
+			{
+				long bits = alpha.bitsAt(y, x);
+				while (bits != 0)
+				{
+					int start = Long.numberOfTrailingZeros(bits);
+					int end = start + Long.numberOfTrailingZeros(~(bits >>> start));
+					int x2 = x + start + dx;
+					int y2 = y + dy;
+					if (!this.isWithinMapAt(x2, y2) || !this.isWithinMapAt(x2 + end - start - 1, y2))
+						throw new MapOutOfBoundsException("CharMap does not contain coordinates " + x2 + ", " + y2
+								+ " to " + (x2 + end - start - 1) + ", " + y2);
+					this.readRun(y2 * this.stride + x2, row, x + start, end - start);
+					bits = end == 64 ? 0 : bits & (-1L << end);
+				}
+			}
+			Appendables.write(out, row, 0, row.length);
 		}
-		return s;
 	}
 	
 	// ------------------------------------------------ MERGING
@@ -339,14 +582,309 @@ public class CharMap implements TextSource
 	// Merge the map of the current object with the rendered characters in c.
 	
 	public void merge(CharMap c, ReferencePoint offset)
+	{ this.merge(c, offset.getX(), offset.getY()); }
+	
+	public void merge(CharMap c, int x, int y)
 	{
-		for (int y = 0, y2 = -offset.getY() - this.mapOffset.getY(); y < this.yCapacity; y++, y2++)
-			for (int x = 0, x2 = -offset.getX() - this.mapOffset.getX(); x < this.xCapacity; x++, x2++)
-				if (c.isWithinAlphaBoundsAt(x2, y2) && c.getAlphaAt(x2, y2)) this.map[y][x] = c.getAt(x2, y2);
+		if (this.map == null || this.shared) this.own();
+		BooleanMap alpha = c.alpha;
+		int ax = x + this.mapXOffset + c.alphaXOffset + alpha.getXOffset();
+		int ay = y + this.mapYOffset + c.alphaYOffset + alpha.getYOffset();
+		int mx = x + this.mapXOffset + c.mapXOffset;
+		int my = y + this.mapYOffset + c.mapYOffset;
+		
+		// Only the cells covered by c's alpha map can change, so clip to them once
+		int x0 = Math.max(0, ax);
+		int x1 = Math.min(this.xCapacity, ax + alpha.getXCapacity());
+		int y0 = Math.max(0, ay);
+		int y1 = Math.min(this.yCapacity, ay + alpha.getYCapacity());
+		
+		// Walk the alpha map 64 cells at a time. Where c's chars are on the heap and
+		// cover all 64, blend them in by the alpha bits, otherwise copy each run of
+		// rendered cells in bulk
+		for (int y2 = y0; y2 < y1; y2++) for (int x2 = x0; x2 < x1; x2 += 64)
+		{
+			long bits = alpha.bitsAt(y2 - ay, x2 - ax);
+			int length = Math.min(64, x1 - x2);
+			if (length < 64) bits &= (1L << length) - 1;
+			if (bits != 0 && c.map != null && c.map != this.map && c.isWithinMapAt(x2 - mx, y2 - my)
+					&& c.isWithinMapAt(x2 + length - 1 - mx, y2 - my))
+			{
+				Kernels.INSTANCE.blend(this.map, y2 * this.stride + x2, c.map, (y2 - my) * c.stride + x2 - mx, bits, length);
+				continue;
+			}
+			while (bits != 0)
+			{
+				int start = Long.numberOfTrailingZeros(bits);
+				int end = start + Long.numberOfTrailingZeros(~(bits >>> start));
+				this.copyRun(c, x2 + start, y2, end - start, x2 + start - mx, y2 - my);
+				bits = end == 64 ? 0 : bits & (-1L << end);
+			}
+		}
+		
+		if (x0 < x1 && y0 < y1) this.damage(x0 + this.mapXOffset, y0 + this.mapYOffset,
+				x1 + this.mapXOffset, y1 + this.mapYOffset);
 	}
-
+	
+	// Copies length chars of c, starting at its map coordinates x2, y2, to this
+	// object's map coordinates x, y
+	
+	void copyRun(CharMap c, int x, int y, int length, int x2, int y2)
+	{
+		if (!c.isWithinMapAt(x2, y2) || !c.isWithinMapAt(x2 + length - 1, y2)) throw new MapOutOfBoundsException(
+				"CharMap does not contain coordinates " + x2 + ", " + y2 + " to " + (x2 + length - 1) + ", " + y2);
+		c.readRun(y2 * c.stride + x2, this.map, y * this.stride + x, length);
+	}
+	
+	/**
+	 * Gets the map as rows, without copying it. The rows are held by the map and
+	 * brought up to date on each call, copying only the cells changed since the
+	 * last one, so once the capacity settles nothing is allocated. The rows must
+	 * not be modified, and are changed by the next call.
+	 */
 	@Override
 	public TextArray pourText()
-	{ return new TextArray(this.map); }
+	{
+		if (this.rows == null || this.rows.length != this.yCapacity
+				|| (this.yCapacity > 0 && this.rows[0].length != this.xCapacity))
+		{
+			this.rows = new char[this.yCapacity][this.xCapacity];
+			this.text = new TextArray(this.rows);
+			this.staleX0 = 0;
+			this.staleY0 = 0;
+			this.staleX1 = this.xCapacity;
+			this.staleY1 = this.yCapacity;
+		}
+		
+		int x0 = Math.max(0, this.staleX0);
+		int x1 = Math.min(this.xCapacity, this.staleX1);
+		int y1 = Math.min(this.yCapacity, this.staleY1);
+		for (int y = Math.max(0, this.staleY0); y < y1 && x0 < x1; y++)
+			this.readRun(y * this.stride + x0, this.rows[y], x0, x1 - x0);
+		this.staleX1 = this.staleX0;
+		this.staleY1 = this.staleY0;
+		return this.text;
+	}
+	
+	// ------------------------------------------------ CHANGE TRACKING METHODS
+	// ------------------------------------------------ //
+	
+	/**
+	 * Gets the number of changes made to this map. The count only ever rises, so
+	 * a cache built from the map is current as long as the count is the same as
+	 * when it was built. Changes made directly to the alpha map returned by
+	 * {@link #getAlphaMap()} are counted by {@link BooleanMap#getModCount()}
+	 * instead.
+	 */
+	public long getModCount()
+	{ return this.modCount; }
+	
+	/**
+	 * Gets whether any cell has changed since the last call to
+	 * {@link #clearTouched()}. The touched cells are bounded by a box in the same
+	 * coordinates as {@link #setAt(int, int, char)}, given by
+	 * {@link #getTouchedX0()} to {@link #getTouchedX1()} and
+	 * {@link #getTouchedY0()} to {@link #getTouchedY1()}, exclusive.
+	 */
+	public boolean isTouched()
+	{ return this.touchedX0 < this.touchedX1 && this.touchedY0 < this.touchedY1; }
+	
+	public int getTouchedX0()
+	{ return this.touchedX0; }
+	
+	public int getTouchedY0()
+	{ return this.touchedY0; }
+	
+	public int getTouchedX1()
+	{ return this.touchedX1; }
+	
+	public int getTouchedY1()
+	{ return this.touchedY1; }
+	
+	public void clearTouched()
+	{
+		this.touchedX1 = this.touchedX0;
+		this.touchedY1 = this.touchedY0;
+	}
+	
+	// ------------------------------------------------ DAMAGE METHODS
+	// ------------------------------------------------ //
+	
+	// The damaged area is the bounding box of every cell changed since the last
+	// clearDamage(), in the same coordinates as setAt. Changes made directly to
+	// the alpha map returned by getAlphaMap() are not seen. Every change also
+	// bumps the mod count and grows the touched box, which are kept apart from
+	// the damage so that clearing one does not clear the other.
+	
+	void damage(int x0, int y0, int x1, int y1)
+	{
+		this.modCount++;
+		if (x0 >= x1 || y0 >= y1) return;
+		if (!this.isTouched())
+		{
+			this.touchedX0 = x0;
+			this.touchedY0 = y0;
+			this.touchedX1 = x1;
+			this.touchedY1 = y1;
+		}
+		else
+		{
+			this.touchedX0 = Math.min(this.touchedX0, x0);
+			this.touchedY0 = Math.min(this.touchedY0, y0);
+			this.touchedX1 = Math.max(this.touchedX1, x1);
+			this.touchedY1 = Math.max(this.touchedY1, y1);
+		}
+		
+		// Only tracked once rows have been poured, in map coordinates, so the box
+		// stays put if the map's offset changes before the next pour
+		if (this.rows != null)
+		{
+			int sx0 = x0 - this.mapXOffset;
+			int sy0 = y0 - this.mapYOffset;
+			int sx1 = x1 - this.mapXOffset;
+			int sy1 = y1 - this.mapYOffset;
+			if (this.staleX0 >= this.staleX1 || this.staleY0 >= this.staleY1)
+			{
+				this.staleX0 = sx0;
+				this.staleY0 = sy0;
+				this.staleX1 = sx1;
+				this.staleY1 = sy1;
+			}
+			else
+			{
+				this.staleX0 = Math.min(this.staleX0, sx0);
+				this.staleY0 = Math.min(this.staleY0, sy0);
+				this.staleX1 = Math.max(this.staleX1, sx1);
+				this.staleY1 = Math.max(this.staleY1, sy1);
+			}
+		}
+		
+		if (!this.isDamaged())
+		{
+			this.damageX0 = x0;
+			this.damageY0 = y0;
+			this.damageX1 = x1;
+			this.damageY1 = y1;
+			this.damaged();
+		}
+		else
+		{
+			this.damageX0 = Math.min(this.damageX0, x0);
+			this.damageY0 = Math.min(this.damageY0, y0);
+			this.damageX1 = Math.max(this.damageX1, x1);
+			this.damageY1 = Math.max(this.damageY1, y1);
+		}
+	}
+	
+	// Called when a map with no damage is first damaged
+	
+	void damaged()
+	{}
+	
+	// Damages every cell the char map or alpha map currently covers. Called before
+	// and after any change to capacity or offsets, so both the old and new areas
+	// are redrawn
+	
+	void damageExtent()
+	{
+		this.damage(this.mapXOffset, this.mapYOffset, this.mapXOffset + this.xCapacity,
+				this.mapYOffset + this.yCapacity);
+		if (this.alpha != null)
+		{
+			int x = this.alphaXOffset + this.alpha.getXOffset();
+			int y = this.alphaYOffset + this.alpha.getYOffset();
+			this.damage(x, y, x + this.alpha.getXCapacity(), y + this.alpha.getYCapacity());
+		}
+	}
+	
+	boolean isDamaged()
+	{ return this.damageX0 < this.damageX1 && this.damageY0 < this.damageY1; }
+	
+	int getDamageX0()
+	{ return this.damageX0; }
+	
+	int getDamageY0()
+	{ return this.damageY0; }
+	
+	int getDamageX1()
+	{ return this.damageX1; }
+	
+	int getDamageY1()
+	{ return this.damageY1; }
+	
+	void clearDamage()
+	{
+		this.damageX1 = this.damageX0;
+		this.damageY1 = this.damageY0;
+	}
+	
+	// ------------------------------------------------ RAW ACCESS
+	// ------------------------------------------------ //
+	
+	// Row y of the map starts at y * getStride() in the array returned by
+	// getFlatMap(). For use by compositors in this package only. A mapped map is
+	// copied onto the heap first, so callers which only read should use readRun
+	
+	char[] getFlatMap()
+	{
+		if (this.map == null || this.shared) this.own();
+		return this.map;
+	}
+	
+	/**
+	 * Copies {@code length} chars, starting at {@code index} of the flat map, into
+	 * {@code output}. Reads a mapped map without copying it onto the heap, and may
+	 * be called from several threads at once.
+	 */
+	void readRun(int index, char[] output, int offset, int length)
+	{
+		if (this.map != null)
+		{
+			System.arraycopy(this.map, index, output, offset, length);
+			return;
+		}
+		// A view of its own for each call, so the shared buffer's position is left
+		// alone and one bulk get copies the run
+		CharBuffer cells = this.cells.duplicate();
+		cells.position(index);
+		cells.get(output, offset, length);
+	}
+	
+	private char charAt(int index)
+	{ return this.map != null ? this.map[index] : this.cells.get(index); }
+	
+	/**
+	 * Makes the map read its chars from {@code cells}, which holds
+	 * {@code xCapacity} chars per row and is never written to.
+	 */
+	void setMapped(int xCapacity, int yCapacity, CharBuffer cells)
+	{
+		this.damageExtent();
+		this.xCapacity = xCapacity;
+		this.yCapacity = yCapacity;
+		this.stride = xCapacity;
+		this.map = null;
+		this.cells = cells;
+		this.shared = false;
+		this.damageExtent();
+	}
+	
+	public boolean isMapped()
+	{ return this.map == null; }
+	
+	// Copies the chars of a mapped file or a shared map into an array of the
+	// map's own, before they are changed
+	
+	private void own()
+	{
+		char[] map = new char[this.stride * this.yCapacity];
+		this.readRun(0, map, 0, map.length);
+		this.map = map;
+		this.cells = null;
+		this.shared = false;
+	}
+	
+	int getStride()
+	{ return this.stride; }
 	
 }
\ No newline at end of file
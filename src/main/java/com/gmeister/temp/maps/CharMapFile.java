@@ -0,0 +1,158 @@
+package com.gmeister.temp.maps;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes {@link CharMap}s in a layout which can be memory-mapped, for
+ * large static layers such as background art and map tiles. A mapped map reads
+ * its chars straight from the file, so loading it takes no time and no heap
+ * however many cells it has; the OS pages cells in as they are drawn.
+ * <p>
+ * A file holds a header of ten big-endian ints: a magic number, the version,
+ * the capacity and offset of the map, and the offset and capacity of the alpha
+ * map. Then come the chars, as UTF-16, row by row, and then the alpha map, as
+ * the packed words of {@link BooleanMap}, starting on an 8-byte boundary.
+ * <p>
+ * The alpha map takes one bit per cell to the chars' sixteen, and is read onto
+ * the heap, where a blocky one is held as runs. To draw a mapped map in a
+ * {@link CharMapStack}, wrap it with {@link RenderedCharMap#convert(CharMap)},
+ * which shares the mapping rather than copying it.
+ *
+ * @author The_G_Meister
+ */
+public final class CharMapFile
+{
+	
+	private static final int MAGIC = 0x474D434D;
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 40;
+	private static final int BUFFER_BYTES = 1 << 16;
+	
+	private CharMapFile()
+	{}
+	
+	// ------------------------------------------------ READING
+	// ------------------------------------------------ //
+	
+	/**
+	 * Maps a file written by {@link #write(CharMap, Path)}. The returned map
+	 * reads its chars from the file until they are first changed, when they are
+	 * copied onto the heap. The file must not be changed while it is mapped.
+	 *
+	 * @param path the file to map
+	 * @return a map of the file
+	 * @throws IOException if the file cannot be read or is not a char map file
+	 */
+	public static CharMap map(Path path) throws IOException
+	{
+		// The mapping stays valid once the channel is closed
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			if (channel.size() > Integer.MAX_VALUE) throw new IOException(path + " is too large to map");
+			return CharMapFile.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), path);
+		}
+	}
+	
+	private static CharMap read(MappedByteBuffer buffer, Path path) throws IOException
+	{
+		if (buffer.capacity() < CharMapFile.HEADER_BYTES || buffer.getInt(0) != CharMapFile.MAGIC)
+			throw new IOException(path + " is not a char map file");
+		if (buffer.getInt(4) != CharMapFile.VERSION)
+			throw new IOException(path + " has unsupported version " + buffer.getInt(4));
+		
+		int xCapacity = buffer.getInt(8);
+		int yCapacity = buffer.getInt(12);
+		int alphaXCapacity = buffer.getInt(32);
+		int alphaYCapacity = buffer.getInt(36);
+		long cellBytes = 2L * xCapacity * yCapacity;
+		long alphaStart = CharMapFile.alphaStartOf(cellBytes);
+		if (xCapacity < 0 || yCapacity < 0 || alphaXCapacity < 0 || alphaYCapacity < 0 || alphaStart
+				+ 8L * BooleanMap.strideOf(alphaXCapacity) * alphaYCapacity > buffer.capacity())
+			throw new IOException(path + " is truncated");
+		
+		ByteBuffer chars = buffer.duplicate();
+		chars.position(CharMapFile.HEADER_BYTES);
+		chars.limit(CharMapFile.HEADER_BYTES + (int) cellBytes);
+		CharBuffer cells = chars.slice().asCharBuffer();
+		
+		BooleanMap alpha = new BooleanMap(alphaXCapacity, alphaYCapacity, false);
+		int stride = BooleanMap.strideOf(alphaXCapacity);
+		for (int y = 0, p = (int) alphaStart; y < alphaYCapacity; y++) for (int i = 0; i < stride; i++, p += 8)
+			alpha.setWord(y, i, buffer.getLong(p) & BooleanMap.spanMask(i, 0, alphaXCapacity));
+		alpha.compact();
+		
+		CharMap output = new CharMap();
+		output.setMapped(xCapacity, yCapacity, cells);
+		output.setBooleanMap(alpha);
+		output.setMapOffset(buffer.getInt(16), buffer.getInt(20));
+		output.setAlphaOffset(buffer.getInt(24), buffer.getInt(28));
+		return output;
+	}
+	
+	// ------------------------------------------------ WRITING
+	// ------------------------------------------------ //
+	
+	/**
+	 * Writes {@code c} to a file which can be loaded with {@link #map(Path)},
+	 * replacing the file if it exists. The offset of c's alpha map is folded into
+	 * its alpha offset.
+	 *
+	 * @param c the map to write
+	 * @param path the file to write to
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(CharMap c, Path path) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			BooleanMap alpha = c.getAlphaMap();
+			ByteBuffer buffer = ByteBuffer.allocate(CharMapFile.BUFFER_BYTES);
+			buffer.putInt(CharMapFile.MAGIC).putInt(CharMapFile.VERSION);
+			buffer.putInt(c.getXCapacity()).putInt(c.getYCapacity());
+			buffer.putInt(c.getXOffset()).putInt(c.getYOffset());
+			buffer.putInt(c.getAlphaXOffset() + alpha.getXOffset()).putInt(c.getAlphaYOffset() + alpha.getYOffset());
+			buffer.putInt(alpha.getXCapacity()).putInt(alpha.getYCapacity());
+			
+			char[] row = new char[c.getXCapacity()];
+			for (int y = 0; y < c.getYCapacity(); y++)
+			{
+				c.readRun(y * c.getStride(), row, 0, row.length);
+				for (int x = 0; x < row.length; x++)
+				{
+					if (buffer.remaining() < 2) CharMapFile.drain(channel, buffer);
+					buffer.putChar(row[x]);
+				}
+			}
+			
+			long padding = CharMapFile.alphaStartOf(2L * row.length * c.getYCapacity()) - CharMapFile.HEADER_BYTES
+					- 2L * row.length * c.getYCapacity();
+			if (buffer.remaining() < 8) CharMapFile.drain(channel, buffer);
+			for (int i = 0; i < padding; i++) buffer.put((byte) 0);
+			
+			for (int y = 0; y < alpha.getYCapacity(); y++) for (int i = 0; i < BooleanMap.strideOf(alpha.getXCapacity()); i++)
+			{
+				if (buffer.remaining() < 8) CharMapFile.drain(channel, buffer);
+				buffer.putLong(alpha.getWord(y, i));
+			}
+			CharMapFile.drain(channel, buffer);
+		}
+	}
+	
+	private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+	
+	private static long alphaStartOf(long cellBytes)
+	{ return CharMapFile.HEADER_BYTES + cellBytes + 7 & ~7L; }
+	
+}
\ No newline at end of file
@@ -2,14 +2,58 @@ package com.gmeister.temp.maps;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import com.gmeister.temp.pipe.render.textmap.TextArray;
 import com.gmeister.temp.pipe.time.TimeData;
 import com.gmeister.temp.pipe.time.TimeManager;
 import com.gmeister.temp.pipe.time.TimeSink;
 
 /**
  * Provides utilities for vertically stacking RenderedCharMaps.
+ * <p>
+ * {@link #update()} only recomposites cells which may have changed since the
+ * previous update. Changes are picked up from layer offsets set through this
+ * class, maps added or replaced through this class, and any cell a layer
+ * reports as damaged (see {@link CharMap#setAt(int, int, char)},
+ * {@link CharMap#setTo(CharMap)} and the other mutators of {@link CharMap}).
+ * Changes which bypass these, such as editing the lists returned by
+ * {@link #getMaps()} and {@link #getOffsets()} in place or editing a layer's
+ * alpha map directly, should be followed by a call to {@link #invalidate()} or
+ * {@link #invalidate(int, int, int, int)}.
+ * <p>
+ * Maps are found in the stack through an identity index rather than by
+ * searching the list, so the methods taking a {@link RenderedCharMap} run in
+ * constant time. The index is rebuilt lazily after maps are inserted or
+ * removed. Callers which track their own positions can use the methods taking
+ * an index instead.
+ * <p>
+ * Given a {@link ForkJoinPool} through {@link #setPool(ForkJoinPool)}, large
+ * regions are split into bands of rows and composited in parallel. Each cell
+ * only depends on the layers above it, so bands never share any state. Layers
+ * must not be modified by other threads while {@link #update()} runs.
+ * <p>
+ * Each {@link #update()} publishes the composited frame to a
+ * {@link FrameBuffer}, and {@link #pourText()} hands out the latest published
+ * frame, or the stack's own chars until the first update. The renderer can read
+ * a frame on another thread while the next one is composited.
+ * <p>
+ * The layer drawn at each cell is recorded as the stack is composited, so
+ * {@link #getLayerAt(int, int)} finds the layer under a cell in constant time.
+ * {@link #getLayersIn(int, int, int, int)} finds every layer whose alpha map
+ * overlaps a rectangle through a grid of buckets over the stack, each holding
+ * the layers which overlap it. Both answer for the stack as of the last
+ * {@link #update()}.
+ * <p>
+ * A stack can be a layer of another stack. Any change to a layer, or to the
+ * layers or offsets of a stack, marks every stack above it as stale, so
+ * {@link #update()} brings stale stacks among its layers up to date first and
+ * reuses the last composited result of the rest without looking inside them.
+ * The mod count of each map, bumped by every change, serves as its version.
  *
  * @author The_G_Meister
  */
@@ -17,9 +61,73 @@ import com.gmeister.temp.pipe.time.TimeSink;
 public class CharMapStack extends RenderedCharMap implements TimeManager
 {
 	
+	// The number of cells below which a band is composited on the calling thread
+	private static final int BAND_CELLS = 1 << 14;
+	// The width and height of the buckets of the layer grid
+	private static final int GRID_CELLS = 16;
+	
+	private class CompositeTask extends RecursiveAction
+	{
+		
+		private static final long serialVersionUID = 2380460497461235178L;
+		
+		private final char[] chars;
+		private final int x0;
+		private final int y0;
+		private final int x1;
+		private final int y1;
+		
+		public CompositeTask(char[] chars, int x0, int y0, int x1, int y1)
+		{
+			this.chars = chars;
+			this.x0 = x0;
+			this.y0 = y0;
+			this.x1 = x1;
+			this.y1 = y1;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			if (this.y1 - this.y0 < 2 || (long) (this.x1 - this.x0) * (this.y1 - this.y0) <= CharMapStack.BAND_CELLS)
+				CharMapStack.this.composite(this.chars, this.x0, this.y0, this.x1, this.y1);
+			else
+			{
+				int y = (this.y0 + this.y1) >>> 1;
+				RecursiveAction.invokeAll(new CompositeTask(this.chars, this.x0, this.y0, this.x1, y),
+						new CompositeTask(this.chars, this.x0, y, this.x1, this.y1));
+			}
+		}
+		
+	}
+	
 	private List<RenderedCharMap> maps;
-	private List<ReferencePoint> offsets;
+	private OffsetList offsets;
 	private int[][] contourMap;
+	private DirtyRegion dirty;
+	private boolean fullyDirty;
+	private int lastSize;
+	private int[] openCells;
+	private ForkJoinPool pool;
+	private Map<RenderedCharMap, Integer> index;
+	private boolean indexStale;
+	private int duplicates;
+	private int indexedSize;
+	private final FrameBuffer frames;
+	// Set once update() has published a frame. Until then the stack's own chars
+	// are poured
+	private volatile boolean published;
+	private TimeData time;
+	private int[] changedLayers;
+	private int changedCount;
+	private int[][] grid;
+	private int[] gridCounts;
+	private int gridColumns;
+	private int gridRows;
+	private boolean gridStale;
+	private int[] hits;
+	// Whether anything below this stack has changed since it was last updated
+	private boolean stale;
 	
 	// ------------------------------------------------ CONSTRUCTORS
 	// ------------------------------------------------ //
@@ -32,8 +140,19 @@ public class CharMapStack extends RenderedCharMap implements TimeManager
 		super(new CharMap(xCapacity, yCapacity, ' ', false));
 		
 		this.maps = new ArrayList<>(size);
-		this.offsets = new ArrayList<>(size);
+		this.offsets = new OffsetList(size);
 		this.contourMap = new int[yCapacity][xCapacity];
+		this.dirty = new DirtyRegion();
+		this.fullyDirty = true;
+		this.openCells = new int[yCapacity];
+		this.index = new IdentityHashMap<>(size);
+		this.indexStale = true;
+		this.frames = new FrameBuffer();
+		this.changedLayers = new int[size];
+		this.grid = new int[0][];
+		this.gridCounts = new int[0];
+		this.gridStale = true;
+		this.hits = new int[size];
 	}
 	
 	public CharMapStack(int xCapacity, int yCapacity, RenderedCharMap... maps)
@@ -63,6 +182,9 @@ public class CharMapStack extends RenderedCharMap implements TimeManager
 			if (i < this.offsets.size()) this.offsets.remove(i);
 		}
 		else i++;
+		// Nulls are never drawn, so removing them only moves the index
+		if (this.maps.size() != oldLength) this.indexStale = true;
+		this.lastSize = this.maps.size();
 		return this.maps.size() - oldLength;
 	}
 	
@@ -78,54 +200,139 @@ public class CharMapStack extends RenderedCharMap implements TimeManager
 	}
 	
 	public void addMapsBefore(RenderedCharMap map, RenderedCharMap... maps)
-	{
-		if (!this.maps.contains(map))
-			throw new IllegalArgumentException("Map list does not contain this RenderedCharMap");
-		this.addMapsAt(this.maps.indexOf(map), maps);
-	}
+	{ this.addMapsAt(this.indexOf(map), maps); }
 	
 	public void addMapsAfter(RenderedCharMap map, RenderedCharMap... maps)
-	{
-		if (!this.maps.contains(map))
-			throw new IllegalArgumentException("Map list does not contain this RenderedCharMap");
-		this.addMapsAt(this.maps.indexOf(map) + 1, maps);
-	}
+	{ this.addMapsAt(this.indexOf(map) + 1, maps); }
 	
 	public void addMapsAt(int index, RenderedCharMap... maps)
 	{
-		if (index > this.offsets.size()) throw new IndexOutOfBoundsException("Index is greater than map list size");
-		if (this.offsets.size() <= index)
-			for (int i = 0; i < maps.length; i++) this.offsets.add(index, new ReferencePoint());
+		if (index > this.maps.size()) throw new IndexOutOfBoundsException("Index is greater than map list size");
+		// Maps past the end of the list of offsets are already at (0,0)
+		if (index <= this.offsets.size())
+			for (int i = 0; i < maps.length; i++) this.offsets.add(index, 0, 0);
 		this.maps.addAll(index, Arrays.asList(maps));
+		
+		for (RenderedCharMap map : maps) if (map != null)
+		{
+			map.addOwner(this);
+			this.invalidateLayer(map, 0, 0);
+		}
+		this.lastSize = this.maps.size();
+		this.indexStale = true;
 	}
 	
 	public void replaceMap(RenderedCharMap map, RenderedCharMap replacement)
+	{ this.replaceMapAt(this.indexOf(map), replacement); }
+	
+	public void replaceMapAt(int index, RenderedCharMap replacement)
 	{
-		if (!this.maps.contains(map))
-			throw new IllegalArgumentException("Map list does not contain this RenderedCharMap");
-		this.maps.set(this.maps.indexOf(map), replacement);
+		RenderedCharMap map = this.maps.get(index);
+		int x = this.offsets.getX(index);
+		int y = this.offsets.getY(index);
+		this.invalidateLayer(map, x, y);
+		this.maps.set(index, replacement);
+		this.invalidateLayer(replacement, x, y);
+		if (map != null) map.removeOwner(this);
+		if (replacement != null) replacement.addOwner(this);
+		
+		// With every map held once, the index can be patched rather than rebuilt
+		if (this.indexStale || this.duplicates > 0 || map == replacement) return;
+		if (map != null) this.index.remove(map);
+		if (replacement != null && this.index.put(replacement, index) != null) this.indexStale = true;
 	}
 	
 	public ReferencePoint getOffsetOf(RenderedCharMap map)
+	{ return this.getOffsetAt(this.indexOf(map)); }
+	
+	/**
+	 * Gets the offset of the map at {@code index}. Maps past the end of the list
+	 * of offsets are at (0,0). Offsets are held as ints, so the
+	 * {@link ReferencePoint} is built when asked for.
+	 * 
+	 * @param index the position of the map in the list of maps
+	 * @return the offset of the map
+	 */
+	public ReferencePoint getOffsetAt(int index)
 	{
-		if (!this.maps.contains(map))
-			throw new IllegalArgumentException("Map list does not contain this RenderedCharMap");
-		return this.offsets.get(this.maps.indexOf(map));
+		if (index >= this.offsets.size()) return ReferencePoint.ORIGIN;
+		else return this.offsets.get(index);
 	}
 	
+	public int getXOffsetAt(int index)
+	{ return this.offsets.getX(index); }
+	
+	public int getYOffsetAt(int index)
+	{ return this.offsets.getY(index); }
+	
 	public void setOffsetOf(RenderedCharMap map, ReferencePoint offset)
+	{ this.setOffsetAt(this.indexOf(map), offset); }
+	
+	public void setOffsetAt(int index, ReferencePoint offset)
+	{ this.setOffsetAt(index, offset.getX(), offset.getY()); }
+	
+	public void setOffsetOf(RenderedCharMap map, int x, int y)
+	{ this.setOffsetAt(this.indexOf(map), x, y); }
+	
+	/**
+	 * Moves the map at {@code index} to {@code x, y}. Nothing is allocated, so a
+	 * layer can be moved every frame for free, and nothing is invalidated when
+	 * the map is already there.
+	 */
+	public void setOffsetAt(int index, int x, int y)
+	{
+		RenderedCharMap map = this.maps.get(index);
+		int oldX = this.offsets.getX(index);
+		int oldY = this.offsets.getY(index);
+		if (oldX == x && oldY == y) return;
+		this.invalidateLayer(map, oldX, oldY);
+		if (index >= this.offsets.size()) this.trimOffsets(index + 1);
+		this.offsets.set(index, x, y);
+		this.invalidateLayer(map, x, y);
+	}
+	
+	/**
+	 * Finds the first position of {@code map} in the list of maps, comparing by
+	 * identity.
+	 * 
+	 * @param map the map to find
+	 * @return the index of the map in the list of maps
+	 * @throws IllegalArgumentException if the map is not in the list
+	 */
+	public int indexOf(RenderedCharMap map)
 	{
-		if (!this.maps.contains(map))
-			throw new IllegalArgumentException("Map list does not contain this RenderedCharMap");
-		int index = this.maps.indexOf(map);
-		if (index >= this.offsets.size())
+		if (this.indexStale || this.indexedSize != this.maps.size())
+			this.rebuildIndex();
+		Integer index = this.index.get(map);
+		// Guard against the list having been edited in place since the index was built
+		if (index == null || index >= this.maps.size() || this.maps.get(index) != map)
 		{
-			this.trimOffsets(index);
-			this.offsets.add(offset);
+			this.rebuildIndex();
+			index = this.index.get(map);
 		}
-		else this.offsets.set(index, offset);
+		if (index == null) throw new IllegalArgumentException("Map list does not contain this RenderedCharMap");
+		return index;
 	}
 	
+	private void rebuildIndex()
+	{
+		this.index.clear();
+		this.duplicates = 0;
+		for (int i = 0; i < this.maps.size(); i++)
+		{
+			RenderedCharMap map = this.maps.get(i);
+			if (map == null) continue;
+			else if (this.index.containsKey(map)) this.duplicates++;
+			else this.index.put(map, i);
+		}
+		this.indexedSize = this.maps.size();
+		this.indexStale = false;
+	}
+	
+	/**
+	 * Gets the list of offsets, backed by the stack. Offsets are held as ints, so
+	 * each {@link ReferencePoint} is built as it is read.
+	 */
 	public List<ReferencePoint> getOffsets()
 	{ return this.offsets; }
 	
@@ -153,8 +360,14 @@ public class CharMapStack extends RenderedCharMap implements TimeManager
 	{
 		if (this.offsets.size() == length) return 0;
 		int oldSize = this.offsets.size();
-		while (this.offsets.size() > length) this.offsets.remove(this.offsets.size() - 1);
-		while (this.offsets.size() < length) this.offsets.add(new ReferencePoint());
+		// Removed offsets send their maps back to (0,0), whereas added ones leave them there
+		if (this.offsets.size() > length)
+		{
+			this.fullyDirty = true;
+			this.markStale();
+		}
+		this.offsets.truncate(length);
+		while (this.offsets.size() < length) this.offsets.add(this.offsets.size(), 0, 0);
 		return this.offsets.size() - oldSize;
 	}
 	
@@ -163,64 +376,508 @@ public class CharMapStack extends RenderedCharMap implements TimeManager
 	{
 		super.setTo(c);
 		this.contourMap = new int[c.getYCapacity()][c.getXCapacity()];
+		this.fullyDirty = true;
+		this.gridStale = true;
+		this.markStale();
 	}
 	
 	public void setTo(CharMapStack c)
 	{
 		super.setTo(c);
+		for (RenderedCharMap map : this.maps) if (map != null) map.removeOwner(this);
+		for (RenderedCharMap map : c.maps) if (map != null) map.addOwner(this);
 		this.maps = c.maps;
 		this.offsets = c.offsets;
 		this.contourMap = c.contourMap;
+		this.fullyDirty = true;
+		this.indexStale = true;
+		this.gridStale = true;
+		this.markStale();
 	}
 	
+	/**
+	 * Marks every cell as needing recompositing on the next {@link #update()}, and
+	 * the index of maps as needing rebuilding.
+	 */
+	public void invalidate()
+	{
+		this.fullyDirty = true;
+		this.indexStale = true;
+		this.markStale();
+	}
+	
+	/**
+	 * Marks a rectangle of cells as needing recompositing on the next
+	 * {@link #update()}.
+	 * 
+	 * @param x the x coordinate of the top left cell
+	 * @param y the y coordinate of the top left cell
+	 * @param xCapacity the width of the rectangle
+	 * @param yCapacity the height of the rectangle
+	 */
+	public void invalidate(int x, int y, int xCapacity, int yCapacity)
+	{ this.invalidateRect(x, y, x + xCapacity, y + yCapacity); }
+	
+	private void invalidateRect(int x0, int y0, int x1, int y1)
+	{
+		this.dirty.add(Math.max(0, x0), Math.max(0, y0), Math.min(this.getComposedXCapacity(), x1),
+				Math.min(this.getComposedYCapacity(), y1));
+		this.markStale();
+	}
+	
+	// Marks this stack and every stack above it as needing an update. Stops at a
+	// stack which is already stale, as the ones above it already are too
+	
+	void markStale()
+	{
+		if (this.stale) return;
+		this.stale = true;
+		this.notifyOwners();
+	}
+	
+	/**
+	 * Gets whether anything in this stack, or in any stack among its layers, has
+	 * changed since the last {@link #update()}.
+	 */
+	public boolean isStale()
+	{ return this.stale; }
+	
+	// A layer can only render where its alpha map lies, so that is all that needs
+	// redrawing when it appears, disappears or moves
+	
+	private void invalidateLayer(RenderedCharMap c, int xOffset, int yOffset)
+	{
+		if (c == null) return;
+		BooleanMap alpha = c.getAlphaMap();
+		int x = xOffset + c.getAlphaXOffset() + alpha.getXOffset();
+		int y = yOffset + c.getAlphaYOffset() + alpha.getYOffset();
+		this.invalidateRect(x, y, x + alpha.getXCapacity(), y + alpha.getYCapacity());
+	}
+	
+	private int getComposedXCapacity()
+	{
+		return Math.min(Math.min(this.getXCapacity(), this.getAlphaMap().getXCapacity()),
+				this.contourMap.length == 0 ? 0 : this.contourMap[0].length);
+	}
+	
+	private int getComposedYCapacity()
+	{ return Math.min(Math.min(this.getYCapacity(), this.getAlphaMap().getYCapacity()), this.contourMap.length); }
+	
+	/**
+	 * Recomposites every cell which may have changed since the last update. Cells
+	 * are taken from the topmost layer whose alpha map renders them, and the
+	 * index of that layer is recorded in the contour map. Once the stack has
+	 * settled to a size, an update run without a pool allocates nothing; with a
+	 * pool, only the tasks splitting up large regions are allocated.
+	 * <p>
+	 * Stacks among the layers are updated first if they are stale. The others
+	 * are composited from as they were last updated.
+	 */
 	public void update()
 	{
-		for (int y = 0; y < this.getYCapacity(); y++) Arrays.fill(this.contourMap[y], 0);
-		this.fill(' ');
-		this.getAlphaMap().fill(false);
+		if (this.maps.size() != this.lastSize) this.fullyDirty = true;
+		this.lastSize = this.maps.size();
 		
-		for (int z = this.maps.size() - 1; z > -1; z--)
+		for (int z = 0; z < this.maps.size(); z++)
+		{
+			RenderedCharMap c = this.maps.get(z);
+			if (c instanceof CharMapStack && !c.isHidden() && ((CharMapStack) c).stale) ((CharMapStack) c).update();
+		}
+		
+		// Gather the damage of every placement of a layer before clearing any of it
+		for (int z = 0; z < this.maps.size(); z++)
+		{
+			RenderedCharMap c = this.maps.get(z);
+			if (c != null && c.isDamaged())
+			{
+				int x = this.offsets.getX(z);
+				int y = this.offsets.getY(z);
+				this.invalidateRect(c.getDamageX0() + x, c.getDamageY0() + y, c.getDamageX1() + x, c.getDamageY1() + y);
+			}
+		}
+		for (int z = 0; z < this.maps.size(); z++) if (this.maps.get(z) != null) this.maps.get(z).clearDamage();
+		
+		if (this.fullyDirty)
+		{
+			this.dirty.clear();
+			this.dirty.add(0, 0, this.getComposedXCapacity(), this.getComposedYCapacity());
+			this.fullyDirty = false;
+		}
+		if (this.openCells.length < this.getComposedYCapacity()) this.openCells = new int[this.getComposedYCapacity()];
+		// The stack's chars and alpha map are written from possibly several threads, so
+		// anything copied on write is copied here, once
+		this.getAlphaMap().toDense();
+		char[] chars = this.getFlatMap();
+		
+		for (int i = 0; i < this.dirty.size(); i++)
+		{
+			int x0 = this.dirty.getX0(i);
+			int y0 = this.dirty.getY0(i);
+			int x1 = this.dirty.getX1(i);
+			int y1 = this.dirty.getY1(i);
+			if (this.pool != null && (long) (x1 - x0) * (y1 - y0) > CharMapStack.BAND_CELLS)
+				this.pool.invoke(new CompositeTask(chars, x0, y0, x1, y1));
+			else this.composite(chars, x0, y0, x1, y1);
+			this.getAlphaMap().touch(x0, y0, x1, y1);
+			this.damage(x0 + this.getXOffset(), y0 + this.getYOffset(), x1 + this.getXOffset(), y1 + this.getYOffset());
+		}
+		// Anything which moved a layer also damaged the cells it left and entered
+		if (!this.dirty.isEmpty()) this.gridStale = true;
+		this.frames.publish(chars, this.getStride(), this.getXCapacity(), this.getYCapacity(), this.dirty);
+		this.published = true;
+		this.dirty.clear();
+		// Cleared last, as gathering and publishing damage marks the stack again
+		this.stale = false;
+	}
+	
+	// Layers are drawn from the top down, so once a cell is drawn nothing below
+	// can change it. openCells counts the undrawn cells of each row, and layers
+	// are only clipped against the band of rows which still has some. Only rows
+	// y0 to y1 of any array are touched, so bands of rows can run concurrently.
+	// chars must be the stack's own flat map, taken once before any band starts
+	
+	private void composite(char[] chars, int x0, int y0, int x1, int y1)
+	{
+		BooleanMap alpha = this.getAlphaMap();
+		for (int y = y0, base = y0 * this.getStride(); y < y1; y++, base += this.getStride())
+		{
+			Arrays.fill(chars, base + x0, base + x1, ' ');
+			Arrays.fill(this.contourMap[y], x0, x1, 0);
+			for (int i = x0 >>> 6; i < BooleanMap.strideOf(x1); i++)
+				alpha.setWord(y, i, alpha.getWord(y, i) & ~BooleanMap.spanMask(i, x0, x1));
+			this.openCells[y] = x1 - x0;
+		}
+		
+		int openY0 = y0;
+		int openY1 = y1;
+		for (int z = this.maps.size() - 1; z > -1 && openY0 < openY1; z--)
 		{
 			RenderedCharMap c = this.maps.get(z);
 			if (c != null)
 			{
-				ReferencePoint layerExt;
-				if (z >= this.offsets.size()) layerExt = new ReferencePoint();
-				else layerExt = this.offsets.get(z);
-				ReferencePoint layerInt = c.getOffset();
-				ReferencePoint alphaExt = c.getAlphaOffset();
-				ReferencePoint alphaInt = c.getAlphaMap().getOffset();
-				BooleanMap intersection = BooleanMap.intersectionOf(this.getAlphaMap(), c.getAlphaMap(),
-						new ReferencePoint(layerExt.getX() + alphaExt.getX(), layerExt.getY() + alphaExt.getY()));
-				int tempY = intersection.getOffset().getY() + this.getAlphaOffset().getY() - layerExt.getY();
-				int tempX = intersection.getOffset().getX() + this.getAlphaOffset().getX() - layerExt.getX();
+				int lx = this.offsets.getX(z);
+				int ly = this.offsets.getY(z);
+				BooleanMap layerAlpha = c.getAlphaMap();
+				int ax = lx + c.getAlphaXOffset() + layerAlpha.getXOffset();
+				int ay = ly + c.getAlphaYOffset() + layerAlpha.getYOffset();
+				int mx = lx + c.getXOffset();
+				int my = ly + c.getYOffset();
+				int cx0 = Math.max(x0, ax);
+				int cx1 = Math.min(x1, ax + layerAlpha.getXCapacity());
+				int cy0 = Math.max(openY0, ay);
+				int cy1 = Math.min(openY1, ay + layerAlpha.getYCapacity());
 				
-				for (int y = 0, y2 = intersection.getOffset().getY() - this.getAlphaMap().getOffset().getY(), y3 = tempY - alphaExt.getY() - alphaInt.getY(), y4 = tempY - layerInt.getY();
-						y < intersection.getYCapacity(); y++, y2++, y3++, y4++)
-					for (int x = 0, x2 = intersection.getOffset().getX() - this.getAlphaMap().getOffset().getX(), x3 = tempX - alphaExt.getX() - alphaInt.getX(), x4 = tempX - layerInt.getX();
-							x < intersection.getXCapacity(); x++, x2++, x3++, x4++)
-						if (!this.getAlphaMap().getAt(x2, y2) && c.getAlphaMap().getMapAt(x3, y3))
-				{
-					this.getAlphaMap().setAt(x2, y2, true);
-					if (this.contourMap[y2][x2] == 0) this.contourMap[y2][x2] = z;
-					this.setMapAt(x2, y2, c.getMapAt(x4, y4));
-				}
+				if (cx0 < cx1) for (int y = cy0; y < cy1; y++)
+					if (this.openCells[y] > 0) this.openCells[y] -= this.compositeRow(c, z, y, cx0, cx1, ax, ay, mx, my);
+				
+				while (openY0 < openY1 && this.openCells[openY0] == 0) openY0++;
+				while (openY0 < openY1 && this.openCells[openY1 - 1] == 0) openY1--;
 			}
 		}
 	}
 	
+	// Draws the cells of layer z in row y between x0 and x1 which are rendered by
+	// the layer and not yet covered by a higher one, 64 cells at a time. Returns
+	// the number of cells drawn
+	
+	private int compositeRow(RenderedCharMap c, int z, int y, int x0, int x1, int ax, int ay, int mx, int my)
+	{
+		BooleanMap alpha = this.getAlphaMap();
+		BooleanMap layerAlpha = c.getAlphaMap();
+		int drawn = 0;
+		for (int i = x0 >>> 6; i < BooleanMap.strideOf(x1); i++)
+		{
+			long word = alpha.getWord(y, i);
+			long open = ~word & BooleanMap.spanMask(i, x0, x1);
+			if (open == 0) continue;
+			long bits = layerAlpha.bitsAt(y - ay, (i << 6) - ax) & open;
+			if (bits == 0) continue;
+			alpha.setWord(y, i, word | bits);
+			drawn += Long.bitCount(bits);
+			while (bits != 0)
+			{
+				int start = Long.numberOfTrailingZeros(bits);
+				int end = start + Long.numberOfTrailingZeros(~(bits >>> start));
+				int x = (i << 6) + start;
+				this.copyRun(c, x, y, end - start, x - mx, y - my);
+				Arrays.fill(this.contourMap[y], x, x + end - start, z);
+				bits = end == 64 ? 0 : bits & (-1L << end);
+			}
+		}
+		return drawn;
+	}
+	
+	/**
+	 * Sets the pool used to composite large regions in parallel.
+	 * 
+	 * @param pool the pool to use, or {@code null} to composite on the calling
+	 *        thread only
+	 */
+	public void setPool(ForkJoinPool pool)
+	{ this.pool = pool; }
+	
+	public ForkJoinPool getPool()
+	{ return this.pool; }
+	
 	/**
 	 * Empties the lists of {@link RenderedCharMap}s and {@link ReferencePoint}s
 	 */
 	public void clear()
 	{
+		for (RenderedCharMap map : this.maps) if (map != null) map.removeOwner(this);
 		this.maps.clear();
 		this.offsets.clear();
 		for (int y = 0; y < this.getYCapacity(); y++) Arrays.fill(this.contourMap[y], 0);
+		this.fullyDirty = true;
+		this.indexStale = true;
+		this.gridStale = true;
+		this.markStale();
 	}
-
+	
+	public FrameBuffer getFrameBuffer()
+	{ return this.frames; }
+	
+	/**
+	 * Gets the frame published by the latest {@link #update()}, without copying
+	 * it. See {@link FrameBuffer#pourText()}. Before the first update, the
+	 * stack's current chars are poured as they would be from any
+	 * {@link CharMap}, on the calling thread.
+	 */
+	@Override
+	public TextArray pourText()
+	{ return this.published ? this.frames.pourText() : super.pourText(); }
+	
+	// ------------------------------------------------ HIT TEST METHODS
+	// ------------------------------------------------ //
+	
+	/**
+	 * Finds the position in the list of maps of the layer drawn at {@code x, y} by
+	 * the last {@link #update()}.
+	 *
+	 * @return the position of the layer, or {@code -1} if no layer was drawn there
+	 */
+	public int getLayerIndexAt(int x, int y)
+	{
+		if (x < 0 || y < 0 || x >= this.getComposedXCapacity() || y >= this.getComposedYCapacity()) return -1;
+		// The stack's alpha map tells a cell drawn by layer 0 from an empty one
+		if ((this.getAlphaMap().bitsAt(y, x) & 1L) == 0) return -1;
+		return this.contourMap[y][x];
+	}
+	
+	/**
+	 * Finds the layer drawn at {@code x, y} by the last {@link #update()}, such as
+	 * the layer under a cursor.
+	 *
+	 * @return the layer, or {@code null} if no layer was drawn there
+	 */
+	public RenderedCharMap getLayerAt(int x, int y)
+	{
+		int z = this.getLayerIndexAt(x, y);
+		return z == -1 || z >= this.maps.size() ? null : this.maps.get(z);
+	}
+	
+	/**
+	 * Finds every layer whose alpha map overlaps a rectangle of the stack, whether
+	 * or not it is covered by the layers above. Only the layers near the rectangle
+	 * are looked at.
+	 *
+	 * @param x the x coordinate of the top left cell
+	 * @param y the y coordinate of the top left cell
+	 * @param xCapacity the width of the rectangle
+	 * @param yCapacity the height of the rectangle
+	 * @return the layers, from the bottom up
+	 */
+	public List<RenderedCharMap> getLayersIn(int x, int y, int xCapacity, int yCapacity)
+	{
+		if (this.gridStale) this.rebuildGrid();
+		int x0 = Math.max(0, x);
+		int y0 = Math.max(0, y);
+		// The grid may be smaller than the stack until the next update
+		int x1 = Math.min(Math.min(this.getComposedXCapacity(), this.gridColumns * CharMapStack.GRID_CELLS), x + xCapacity);
+		int y1 = Math.min(Math.min(this.getComposedYCapacity(), this.gridRows * CharMapStack.GRID_CELLS), y + yCapacity);
+		List<RenderedCharMap> layers = new ArrayList<>();
+		if (x0 >= x1 || y0 >= y1) return layers;
+		
+		int count = 0;
+		for (int row = y0 / CharMapStack.GRID_CELLS; row <= (y1 - 1) / CharMapStack.GRID_CELLS; row++)
+			for (int column = x0 / CharMapStack.GRID_CELLS; column <= (x1 - 1) / CharMapStack.GRID_CELLS; column++)
+			{
+				int bucket = row * this.gridColumns + column;
+				for (int i = 0; i < this.gridCounts[bucket]; i++)
+				{
+					int z = this.grid[bucket][i];
+					if (z >= this.maps.size() || !this.overlaps(z, x0, y0, x1, y1)) continue;
+					if (count == this.hits.length) this.hits = Arrays.copyOf(this.hits, Math.max(4, count * 2));
+					this.hits[count++] = z;
+				}
+			}
+		
+		// A layer spanning several buckets is found in each of them
+		Arrays.sort(this.hits, 0, count);
+		for (int i = 0; i < count; i++)
+			if (i == 0 || this.hits[i] != this.hits[i - 1]) layers.add(this.maps.get(this.hits[i]));
+		return layers;
+	}
+	
+	private boolean overlaps(int z, int x0, int y0, int x1, int y1)
+	{
+		RenderedCharMap c = this.maps.get(z);
+		if (c == null) return false;
+		BooleanMap alpha = c.getAlphaMap();
+		int ax = this.offsets.getX(z) + c.getAlphaXOffset() + alpha.getXOffset();
+		int ay = this.offsets.getY(z) + c.getAlphaYOffset() + alpha.getYOffset();
+		return ax < x1 && ay < y1 && ax + alpha.getXCapacity() > x0 && ay + alpha.getYCapacity() > y0;
+	}
+	
+	private void rebuildGrid()
+	{
+		this.gridColumns = (this.getComposedXCapacity() + CharMapStack.GRID_CELLS - 1) / CharMapStack.GRID_CELLS;
+		this.gridRows = (this.getComposedYCapacity() + CharMapStack.GRID_CELLS - 1) / CharMapStack.GRID_CELLS;
+		int buckets = this.gridColumns * this.gridRows;
+		if (this.grid.length < buckets)
+		{
+			this.grid = Arrays.copyOf(this.grid, buckets);
+			this.gridCounts = new int[buckets];
+		}
+		else Arrays.fill(this.gridCounts, 0);
+		
+		for (int z = 0; z < this.maps.size(); z++)
+		{
+			RenderedCharMap c = this.maps.get(z);
+			if (c == null) continue;
+			BooleanMap alpha = c.getAlphaMap();
+			int ax = this.offsets.getX(z) + c.getAlphaXOffset() + alpha.getXOffset();
+			int ay = this.offsets.getY(z) + c.getAlphaYOffset() + alpha.getYOffset();
+			int x0 = Math.max(0, ax);
+			int y0 = Math.max(0, ay);
+			int x1 = Math.min(this.gridColumns * CharMapStack.GRID_CELLS, ax + alpha.getXCapacity());
+			int y1 = Math.min(this.gridRows * CharMapStack.GRID_CELLS, ay + alpha.getYCapacity());
+			if (x0 >= x1 || y0 >= y1) continue;
+			
+			for (int row = y0 / CharMapStack.GRID_CELLS; row <= (y1 - 1) / CharMapStack.GRID_CELLS; row++)
+				for (int column = x0 / CharMapStack.GRID_CELLS; column <= (x1 - 1) / CharMapStack.GRID_CELLS; column++)
+				{
+					int bucket = row * this.gridColumns + column;
+					int count = this.gridCounts[bucket];
+					if (this.grid[bucket] == null) this.grid[bucket] = new int[4];
+					else if (count == this.grid[bucket].length) this.grid[bucket] = Arrays.copyOf(this.grid[bucket], count * 2);
+					this.grid[bucket][count] = z;
+					this.gridCounts[bucket] = count + 1;
+				}
+		}
+		this.gridStale = false;
+	}
+	
+	// ------------------------------------------------ TIME METHODS
+	// ------------------------------------------------ //
+	
+	/**
+	 * Passes queued input and time to every layer in one pass, then updates the
+	 * stack if any layer changed. Hidden layers and layers with no frame due are skipped, and a
+	 * stack with no changed layers is not updated, so ticking an idle stack costs
+	 * one check per layer. Layers which are themselves stacks tick their own
+	 * layers in turn.
+	 */
+	@Override
+	public void poolTimeData(TimeData data)
+	{
+		this.time = data;
+		this.tick(System.nanoTime());
+	}
+	
+	/**
+	 * Ticks the layers as {@link #poolTimeData(TimeData)} does, for callers not
+	 * driven by a {@link TimeManager}.
+	 *
+	 * @return whether the stack was updated
+	 */
+	public boolean tick()
+	{ return this.tick(System.nanoTime()); }
+	
+	@Override
+	boolean tick(long now)
+	{
+		this.dispatchInput();
+		if (this.indexStale || this.indexedSize != this.maps.size()) this.rebuildIndex();
+		this.changedCount = 0;
+		// Offsets, insertions and removals since the last update count as changes too
+		boolean changed = this.fullyDirty || !this.dirty.isEmpty() || this.maps.size() != this.lastSize;
+		
+		for (int z = 0; z < this.maps.size(); z++)
+		{
+			RenderedCharMap c = this.maps.get(z);
+			if (c == null) continue;
+			// A map placed more than once is only ticked at its first placement.
+			// Hidden maps still take their input
+			if (this.duplicates == 0 || this.indexOf(c) == z)
+			{
+				if (c.isHidden()) c.dispatchInput();
+				else c.tick(now);
+			}
+			if (c.isDamaged())
+			{
+				if (this.changedCount == this.changedLayers.length)
+					this.changedLayers = Arrays.copyOf(this.changedLayers, Math.max(4, this.changedCount * 2));
+				this.changedLayers[this.changedCount++] = z;
+				changed = true;
+			}
+		}
+		
+		if (changed) this.update();
+		return changed;
+	}
+	
+	/**
+	 * Gets the number of layers which changed during the last tick.
+	 */
+	public int getChangedLayerCount()
+	{ return this.changedCount; }
+	
+	/**
+	 * Gets the position in the list of maps of the {@code i}th layer which changed
+	 * during the last tick, from the bottom up.
+	 */
+	public int getChangedLayerAt(int i)
+	{
+		if (i >= this.changedCount) throw new IndexOutOfBoundsException("Only " + this.changedCount + " layers changed");
+		return this.changedLayers[i];
+	}
+	
+	// A stack has a frame due whenever one of its visible layers does
+	
+	@Override
+	boolean isDueAt(long now)
+	{
+		if (super.isDueAt(now)) return true;
+		for (int z = 0; z < this.maps.size(); z++)
+		{
+			RenderedCharMap c = this.maps.get(z);
+			if (c != null && !c.isHidden() && c.isDueAt(now)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Gets the time until the next frame of any visible layer is due.
+	 */
+	@Override
+	public long getCooldownNanos()
+	{
+		long cooldown = Long.MAX_VALUE;
+		for (int z = 0; z < this.maps.size() && cooldown > 0; z++)
+		{
+			RenderedCharMap c = this.maps.get(z);
+			if (c != null && !c.isHidden()) cooldown = Math.min(cooldown, c.getCooldownNanos());
+		}
+		return cooldown;
+	}
+	
+	/**
+	 * Gets the {@link TimeData} last passed to this stack, which is the time its
+	 * layers were last ticked with.
+	 */
 	@Override
 	public TimeData pourTime(TimeSink caller)
-	{ return null; }
+	{ return this.time; }
 	
 }
\ No newline at end of file
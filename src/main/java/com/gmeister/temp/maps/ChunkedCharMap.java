@@ -0,0 +1,517 @@
+package com.gmeister.temp.maps;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.gmeister.temp.pipe.render.textmap.TextArray;
+import com.gmeister.temp.pipe.render.textmap.TextSource;
+
+/**
+ * A grid of chars for very large or growing canvases, such as scrolling logs
+ * and maps. Cells are held in 64x64 chunks, keyed by their chunk coordinates,
+ * and a chunk is only allocated once something is drawn in it. Until then its
+ * cells hold the background char and are not rendered. Memory is therefore
+ * proportional to what has been drawn, not to the capacity.
+ * <p>
+ * Each chunk holds its own alpha, one bit per cell, so unlike {@link CharMap}
+ * there is no separate alpha map or alpha offset. Growing the map with
+ * {@link #setCapacity(int, int, int, int)} takes constant time, as cells are
+ * never moved: the map only records where its first cell now lies. Shrinking
+ * it clears the cells which fall outside.
+ * <p>
+ * A window of the map can be copied into a {@link CharMap} with
+ * {@link #copyRegion(int, int, CharMap)}, for example to show it as a layer of a
+ * {@link CharMapStack}. {@link #pourText()} likewise pours only the window set
+ * by {@link #setWindow(int, int, int, int)}, and pours the whole map only if no
+ * window is set, which is not meant for maps of a large capacity.
+ *
+ * @author The_G_Meister
+ */
+public class ChunkedCharMap implements TextSource
+{
+	
+	private static final int CHUNK_BITS = 6;
+	private static final int CHUNK_SIZE = 1 << ChunkedCharMap.CHUNK_BITS;
+	private static final int CHUNK_MASK = ChunkedCharMap.CHUNK_SIZE - 1;
+	
+	private static final class Chunk
+	{
+		
+		private final char[] chars;
+		// One word per row of the chunk, with cell x in bit x
+		private final long[] alpha;
+		
+		private Chunk(char background)
+		{
+			this.chars = new char[ChunkedCharMap.CHUNK_SIZE * ChunkedCharMap.CHUNK_SIZE];
+			this.alpha = new long[ChunkedCharMap.CHUNK_SIZE];
+			if (background != 0) Arrays.fill(this.chars, background);
+		}
+		
+	}
+	
+	private final char background;
+	private final Map<Long, Chunk> chunks;
+	private int xCapacity;
+	private int yCapacity;
+	
+	// Cells are held at fixed canvas coordinates. Map cell x, y is canvas cell
+	// x + xOrigin, y + yOrigin
+	private int xOrigin;
+	private int yOrigin;
+	
+	private int mapXOffset;
+	private int mapYOffset;
+	private ReferencePoint mapOffset;
+	
+	// The chunk found by the last lookup, as most accesses fall in the same chunk
+	private long lastKey;
+	private Chunk lastChunk;
+	
+	// The cells poured by pourText(), and the map they are copied into, which is
+	// kept while the window keeps its size
+	private boolean windowed;
+	private int windowX;
+	private int windowY;
+	private int windowXCapacity;
+	private int windowYCapacity;
+	private CharMap window;
+	
+	// ------------------------------------------------ CONSTRUCTORS
+	// ------------------------------------------------ //
+	
+	public ChunkedCharMap(int xCapacity, int yCapacity)
+	{ this(xCapacity, yCapacity, ' '); }
+	
+	public ChunkedCharMap(int xCapacity, int yCapacity, char background)
+	{
+		this.background = background;
+		this.chunks = new HashMap<>();
+		this.xCapacity = xCapacity;
+		this.yCapacity = yCapacity;
+		this.mapOffset = ReferencePoint.ORIGIN;
+	}
+	
+	// ------------------------------------------------ MAP RETRIEVAL AND
+	// MODIFICATION METHODS ------------------------------------------------ //
+	
+	public void setAt(int x, int y, char c)
+	{ this.setMapAt(x - this.mapXOffset, y - this.mapYOffset, c); }
+	
+	public void setMapAt(int x, int y, char c)
+	{
+		this.checkWithinMapAt(x, y);
+		Chunk chunk = this.chunkAt(x + this.xOrigin, y + this.yOrigin, c != this.background);
+		if (chunk != null) chunk.chars[ChunkedCharMap.cellOf(x + this.xOrigin, y + this.yOrigin)] = c;
+	}
+	
+	public char getAt(int x, int y)
+	{
+		int x2 = x - this.mapXOffset;
+		int y2 = y - this.mapYOffset;
+		if (this.getAlphaMapAt(x2, y2)) return this.getMapAt(x2, y2);
+		else throw new NotRenderedException("ChunkedCharMap is not rendered at " + x2 + ", " + y2);
+	}
+	
+	public char getMapAt(int x, int y)
+	{
+		this.checkWithinMapAt(x, y);
+		Chunk chunk = this.chunkAt(x + this.xOrigin, y + this.yOrigin, false);
+		return chunk == null ? this.background : chunk.chars[ChunkedCharMap.cellOf(x + this.xOrigin, y + this.yOrigin)];
+	}
+	
+	public void setAlphaAt(int x, int y, boolean b)
+	{ this.setAlphaMapAt(x - this.mapXOffset, y - this.mapYOffset, b); }
+	
+	public void setAlphaMapAt(int x, int y, boolean b)
+	{
+		this.checkWithinMapAt(x, y);
+		int x2 = x + this.xOrigin;
+		int y2 = y + this.yOrigin;
+		Chunk chunk = this.chunkAt(x2, y2, b);
+		if (chunk == null) return;
+		if (b) chunk.alpha[y2 & ChunkedCharMap.CHUNK_MASK] |= 1L << x2;
+		else chunk.alpha[y2 & ChunkedCharMap.CHUNK_MASK] &= ~(1L << x2);
+	}
+	
+	public boolean getAlphaAt(int x, int y)
+	{ return this.getAlphaMapAt(x - this.mapXOffset, y - this.mapYOffset); }
+	
+	public boolean getAlphaMapAt(int x, int y)
+	{
+		this.checkWithinMapAt(x, y);
+		return (this.alphaBitsAt(y, x) & 1L) != 0;
+	}
+	
+	/**
+	 * Draws {@code c} at {@code x, y} and marks the cell as rendered.
+	 */
+	public void drawAt(int x, int y, char c)
+	{
+		this.setAt(x, y, c);
+		this.setAlphaAt(x, y, true);
+	}
+	
+	public boolean isWithinBoundsAt(int x, int y)
+	{ return this.isWithinMapAt(x - this.mapXOffset, y - this.mapYOffset); }
+	
+	public boolean isWithinMapAt(int x, int y)
+	{
+		if (x < 0 || x >= this.xCapacity || y < 0 || y >= this.yCapacity) return false;
+		else return true;
+	}
+	
+	/**
+	 * Copies the map into a new {@code char[][]}, with the background char
+	 * wherever nothing has been drawn. This materialises every cell, so is only
+	 * suitable for maps of a modest capacity.
+	 *
+	 * @return a copy of the map, indexed {@code [y][x]}
+	 */
+	public char[][] getMap()
+	{
+		char[][] output = new char[this.yCapacity][this.xCapacity];
+		for (int y = 0; y < this.yCapacity; y++) this.readRow(y, 0, output[y], 0, this.xCapacity);
+		return output;
+	}
+	
+	/**
+	 * Removes every chunk, leaving every cell as the background char and not
+	 * rendered.
+	 */
+	public void clear()
+	{
+		this.chunks.clear();
+		this.lastChunk = null;
+	}
+	
+	public char getBackground()
+	{ return this.background; }
+	
+	public int getChunkCount()
+	{ return this.chunks.size(); }
+	
+	// ------------------------------------------------ CAPACITY METHODS
+	// ------------------------------------------------ //
+	
+	public int getXCapacity()
+	{ return this.xCapacity; }
+	
+	public int getYCapacity()
+	{ return this.yCapacity; }
+	
+	public void setXCapacity(int xCapacity, int xOffset)
+	{ this.setCapacity(xCapacity, this.yCapacity, xOffset, 0); }
+	
+	public void setYCapacity(int yCapacity, int yOffset)
+	{ this.setCapacity(this.xCapacity, yCapacity, 0, yOffset); }
+	
+	public void setCapacity(int xCapacity, int yCapacity, ReferencePoint offset)
+	{ this.setCapacity(xCapacity, yCapacity, offset.getX(), offset.getY()); }
+	
+	/**
+	 * Changes the capacity, moving each cell by {@code xOffset, yOffset}. Cells
+	 * which do not come from the old map are the background char and are not
+	 * rendered. When every old cell is still within the map this takes constant
+	 * time, otherwise the cells which fall outside are cleared.
+	 */
+	public void setCapacity(int xCapacity, int yCapacity, int xOffset, int yOffset)
+	{
+		int oldX0 = this.xOrigin;
+		int oldY0 = this.yOrigin;
+		int oldX1 = oldX0 + this.xCapacity;
+		int oldY1 = oldY0 + this.yCapacity;
+		
+		this.xOrigin -= xOffset;
+		this.yOrigin -= yOffset;
+		this.xCapacity = xCapacity;
+		this.yCapacity = yCapacity;
+		
+		int x0 = this.xOrigin;
+		int y0 = this.yOrigin;
+		int x1 = x0 + xCapacity;
+		int y1 = y0 + yCapacity;
+		if (oldX0 >= x0 && oldY0 >= y0 && oldX1 <= x1 && oldY1 <= y1) return;
+		this.clearOutside(x0, y0, x1, y1);
+	}
+	
+	// Clears every cell outside canvas cells x0, y0 (inclusive) to x1, y1
+	// (exclusive), dropping chunks which lie wholly outside
+	
+	private void clearOutside(int x0, int y0, int x1, int y1)
+	{
+		this.lastChunk = null;
+		for (Iterator<Map.Entry<Long, Chunk>> i = this.chunks.entrySet().iterator(); i.hasNext();)
+		{
+			Map.Entry<Long, Chunk> entry = i.next();
+			int cx = (int) (entry.getKey() >> 32) << ChunkedCharMap.CHUNK_BITS;
+			int cy = (int) (long) entry.getKey() << ChunkedCharMap.CHUNK_BITS;
+			if (cx >= x0 && cy >= y0 && cx + ChunkedCharMap.CHUNK_SIZE <= x1 && cy + ChunkedCharMap.CHUNK_SIZE <= y1)
+				continue;
+			if (cx >= x1 || cy >= y1 || cx + ChunkedCharMap.CHUNK_SIZE <= x0 || cy + ChunkedCharMap.CHUNK_SIZE <= y0)
+			{
+				i.remove();
+				continue;
+			}
+			
+			Chunk chunk = entry.getValue();
+			for (int y = 0; y < ChunkedCharMap.CHUNK_SIZE; y++)
+			{
+				long keep = cy + y < y0 || cy + y >= y1 ? 0L : BooleanMap.spanMask(0, x0 - cx, x1 - cx);
+				chunk.alpha[y] &= keep;
+				for (int x = 0; x < ChunkedCharMap.CHUNK_SIZE; x++)
+					if ((keep & 1L << x) == 0) chunk.chars[y << ChunkedCharMap.CHUNK_BITS | x] = this.background;
+			}
+		}
+	}
+	
+	// ------------------------------------------------ OFFSET METHODS
+	// ------------------------------------------------ //
+	
+	public void setMapOffset(ReferencePoint mapOffset)
+	{
+		this.mapXOffset = mapOffset.getX();
+		this.mapYOffset = mapOffset.getY();
+		this.mapOffset = mapOffset;
+	}
+	
+	public void setMapOffset(int x, int y)
+	{
+		if (x == this.mapXOffset && y == this.mapYOffset) return;
+		this.mapXOffset = x;
+		this.mapYOffset = y;
+		this.mapOffset = null;
+	}
+	
+	public ReferencePoint getOffset()
+	{
+		if (this.mapOffset == null) this.mapOffset = new ReferencePoint(this.mapXOffset, this.mapYOffset);
+		return this.mapOffset;
+	}
+	
+	public int getXOffset()
+	{ return this.mapXOffset; }
+	
+	public int getYOffset()
+	{ return this.mapYOffset; }
+	
+	// ------------------------------------------------ MERGING
+	// ------------------------------------------------ //
+	
+	// Merge the map of the current object with the rendered characters in c.
+	
+	public void merge(CharMap c, ReferencePoint offset)
+	{ this.merge(c, offset.getX(), offset.getY()); }
+	
+	/**
+	 * Copies the rendered chars of {@code c}, placed at {@code x, y}, into this
+	 * map, as {@link CharMap#merge(CharMap, int, int)} does. Only the chunks under
+	 * rendered cells of c are touched.
+	 */
+	public void merge(CharMap c, int x, int y)
+	{
+		BooleanMap alpha = c.getAlphaMap();
+		int ax = x + this.mapXOffset + c.getAlphaXOffset() + alpha.getXOffset();
+		int ay = y + this.mapYOffset + c.getAlphaYOffset() + alpha.getYOffset();
+		int mx = x + this.mapXOffset + c.getXOffset();
+		int my = y + this.mapYOffset + c.getYOffset();
+		
+		int x0 = Math.max(0, ax);
+		int x1 = Math.min(this.xCapacity, ax + alpha.getXCapacity());
+		int y0 = Math.max(0, ay);
+		int y1 = Math.min(this.yCapacity, ay + alpha.getYCapacity());
+		
+		for (int y2 = y0; y2 < y1; y2++) for (int x2 = x0; x2 < x1; x2 += 64)
+		{
+			long bits = alpha.bitsAt(y2 - ay, x2 - ax);
+			if (x1 - x2 < 64) bits &= (1L << (x1 - x2)) - 1;
+			while (bits != 0)
+			{
+				int start = Long.numberOfTrailingZeros(bits);
+				int end = start + Long.numberOfTrailingZeros(~(bits >>> start));
+				int x3 = x2 + start - mx;
+				int y3 = y2 - my;
+				if (!c.isWithinMapAt(x3, y3) || !c.isWithinMapAt(x3 + end - start - 1, y3))
+					throw new MapOutOfBoundsException("CharMap does not contain coordinates " + x3 + ", " + y3 + " to "
+							+ (x3 + end - start - 1) + ", " + y3);
+				this.writeRow(y2, x2 + start, c, y3 * c.getStride() + x3, end - start);
+				bits = end == 64 ? 0 : bits & (-1L << end);
+			}
+		}
+	}
+	
+	/**
+	 * Copies the cells of this map from {@code x, y} onwards into the whole of
+	 * {@code output}: its chars, and its alpha map, which is taken to cover its
+	 * chars from its first cell. Cells outside this map are copied as the
+	 * background char, not rendered.
+	 *
+	 * @param x the column of this map copied to the first column of output
+	 * @param y the row of this map copied to the first row of output
+	 * @param output the map to copy into
+	 */
+	public void copyRegion(int x, int y, CharMap output)
+	{
+		char[] chars = output.getFlatMap();
+		BooleanMap alpha = output.getAlphaMap();
+		int xCapacity = output.getXCapacity();
+		int alphaXCapacity = Math.min(xCapacity, alpha.getXCapacity());
+		
+		for (int y2 = 0; y2 < output.getYCapacity(); y2++)
+		{
+			int row = y + y2;
+			int base = y2 * output.getStride();
+			if (row < 0 || row >= this.yCapacity) Arrays.fill(chars, base, base + xCapacity, this.background);
+			else
+			{
+				int from = Math.min(xCapacity, Math.max(0, -x));
+				int to = Math.max(from, Math.min(xCapacity, this.xCapacity - x));
+				Arrays.fill(chars, base, base + from, this.background);
+				this.readRow(row, x + from, chars, base + from, to - from);
+				Arrays.fill(chars, base + to, base + xCapacity, this.background);
+			}
+			
+			if (y2 >= alpha.getYCapacity()) continue;
+			for (int i = 0; i < BooleanMap.strideOf(alpha.getXCapacity()); i++)
+			{
+				long bits = row < 0 || row >= this.yCapacity ? 0L : this.alphaBitsAt(row, x + (i << 6));
+				alpha.setWord(y2, i, bits & BooleanMap.spanMask(i, Math.max(0, -x), Math.min(alphaXCapacity, this.xCapacity - x)));
+			}
+		}
+		
+		alpha.touch(0, 0, Math.min(alpha.getXCapacity(), xCapacity), alpha.getYCapacity());
+		output.damage(output.getXOffset(), output.getYOffset(), output.getXOffset() + xCapacity,
+				output.getYOffset() + output.getYCapacity());
+	}
+	
+	/**
+	 * Sets the cells poured by {@link #pourText()} to the window
+	 * {@code xCapacity} cells wide and {@code yCapacity} high whose first cell is
+	 * column {@code x}, row {@code y} of this map. Cells of the window outside the
+	 * map pour as the background char.
+	 */
+	public void setWindow(int x, int y, int xCapacity, int yCapacity)
+	{
+		this.windowed = true;
+		this.windowX = x;
+		this.windowY = y;
+		this.windowXCapacity = xCapacity;
+		this.windowYCapacity = yCapacity;
+	}
+	
+	/**
+	 * Gets the window set by {@link #setWindow(int, int, int, int)} as rows, or
+	 * the whole map if no window is set. The rows are held by the map and reused
+	 * while the window keeps its size, so they must not be modified, and are
+	 * changed by the next call. Each call copies every cell of the window, so
+	 * without a window this materialises the whole map, and is only suitable for
+	 * maps of a modest capacity.
+	 */
+	@Override
+	public TextArray pourText()
+	{
+		int xCapacity = this.windowed ? this.windowXCapacity : this.xCapacity;
+		int yCapacity = this.windowed ? this.windowYCapacity : this.yCapacity;
+		if (this.window == null || this.window.getXCapacity() != xCapacity || this.window.getYCapacity() != yCapacity)
+			this.window = new CharMap(xCapacity, yCapacity, this.background, false);
+		this.copyRegion(this.windowed ? this.windowX : 0, this.windowed ? this.windowY : 0, this.window);
+		return this.window.pourText();
+	}
+	
+	// ------------------------------------------------ CHUNK METHODS
+	// ------------------------------------------------ //
+	
+	private void checkWithinMapAt(int x, int y)
+	{
+		if (!this.isWithinMapAt(x, y))
+			throw new MapOutOfBoundsException("ChunkedCharMap does not contain coordinates " + x + ", " + y);
+	}
+	
+	private static long keyOf(int x, int y)
+	{ return (long) (x >> ChunkedCharMap.CHUNK_BITS) << 32 | (y >> ChunkedCharMap.CHUNK_BITS) & 0xFFFFFFFFL; }
+	
+	private static int cellOf(int x, int y)
+	{ return (y & ChunkedCharMap.CHUNK_MASK) << ChunkedCharMap.CHUNK_BITS | x & ChunkedCharMap.CHUNK_MASK; }
+	
+	/**
+	 * Finds the chunk holding canvas cell {@code x, y}, creating it if it does
+	 * not exist and {@code create} is set.
+	 *
+	 * @return the chunk, or {@code null} if it does not exist and was not created
+	 */
+	private Chunk chunkAt(int x, int y, boolean create)
+	{
+		long key = ChunkedCharMap.keyOf(x, y);
+		if (this.lastChunk != null && this.lastKey == key) return this.lastChunk;
+		
+		Chunk chunk = this.chunks.get(key);
+		if (chunk == null && create)
+		{
+			chunk = new Chunk(this.background);
+			this.chunks.put(key, chunk);
+		}
+		if (chunk != null)
+		{
+			this.lastKey = key;
+			this.lastChunk = chunk;
+		}
+		return chunk;
+	}
+	
+	// Copies length chars from map row y, starting at column x, a chunk at a time
+	
+	private void readRow(int y, int x, char[] output, int offset, int length)
+	{
+		int y2 = y + this.yOrigin;
+		for (int x2 = x + this.xOrigin, end = x2 + length; x2 < end;)
+		{
+			int run = Math.min(end - x2, ChunkedCharMap.CHUNK_SIZE - (x2 & ChunkedCharMap.CHUNK_MASK));
+			Chunk chunk = this.chunkAt(x2, y2, false);
+			if (chunk == null) Arrays.fill(output, offset, offset + run, this.background);
+			else System.arraycopy(chunk.chars, ChunkedCharMap.cellOf(x2, y2), output, offset, run);
+			x2 += run;
+			offset += run;
+		}
+	}
+	
+	// Copies length chars of c's flat map, starting at index, into map row y from
+	// column x
+	
+	private void writeRow(int y, int x, CharMap c, int index, int length)
+	{
+		int y2 = y + this.yOrigin;
+		for (int x2 = x + this.xOrigin, end = x2 + length; x2 < end;)
+		{
+			int run = Math.min(end - x2, ChunkedCharMap.CHUNK_SIZE - (x2 & ChunkedCharMap.CHUNK_MASK));
+			c.readRun(index, this.chunkAt(x2, y2, true).chars, ChunkedCharMap.cellOf(x2, y2), run);
+			x2 += run;
+			index += run;
+		}
+	}
+	
+	/**
+	 * Reads the alpha of 64 cells of map row {@code y}, starting at column
+	 * {@code x}, into a single word. Cells outside the row read as not rendered.
+	 */
+	private long alphaBitsAt(int y, int x)
+	{
+		if (x <= -64 || x >= this.xCapacity) return 0L;
+		int y2 = y + this.yOrigin;
+		int x2 = x + this.xOrigin;
+		int shift = x2 & ChunkedCharMap.CHUNK_MASK;
+		
+		Chunk chunk = this.chunkAt(x2, y2, false);
+		long word = chunk == null ? 0L : chunk.alpha[y2 & ChunkedCharMap.CHUNK_MASK] >>> shift;
+		if (shift != 0)
+		{
+			chunk = this.chunkAt(x2 + ChunkedCharMap.CHUNK_SIZE, y2, false);
+			if (chunk != null) word |= chunk.alpha[y2 & ChunkedCharMap.CHUNK_MASK] << (64 - shift);
+		}
+		
+		// Clip to the columns of the map
+		return word & BooleanMap.spanMask(0, -x, this.xCapacity - x);
+	}
+	
+}
\ No newline at end of file
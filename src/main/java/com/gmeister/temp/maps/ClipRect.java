@@ -0,0 +1,72 @@
+package com.gmeister.temp.maps;
+
+/**
+ * A mutable rectangle of cells, used to return clipping results without
+ * allocating. A single instance can be reused for every clip in a loop.
+ *
+ * @author The_G_Meister
+ */
+public final class ClipRect
+{
+	
+	private int x0;
+	private int y0;
+	private int x1;
+	private int y1;
+	
+	// ------------------------------------------------ CONSTRUCTORS
+	// ------------------------------------------------ //
+	
+	public ClipRect()
+	{}
+	
+	public ClipRect(int x, int y, int xCapacity, int yCapacity)
+	{ this.set(x, y, xCapacity, yCapacity); }
+	
+	// ------------------------------------------------ GENERAL METHODS
+	// ------------------------------------------------ //
+	
+	public ClipRect set(int x, int y, int xCapacity, int yCapacity)
+	{
+		this.x0 = x;
+		this.y0 = y;
+		this.x1 = x + Math.max(0, xCapacity);
+		this.y1 = y + Math.max(0, yCapacity);
+		return this;
+	}
+	
+	/**
+	 * Shrinks this rectangle to the part which is also inside the given one. An
+	 * empty result keeps its top left corner and has a capacity of 0.
+	 *
+	 * @return this object
+	 */
+	public ClipRect intersect(int x, int y, int xCapacity, int yCapacity)
+	{
+		this.x0 = Math.max(this.x0, x);
+		this.y0 = Math.max(this.y0, y);
+		this.x1 = Math.max(this.x0, Math.min(this.x1, x + xCapacity));
+		this.y1 = Math.max(this.y0, Math.min(this.y1, y + yCapacity));
+		return this;
+	}
+	
+	public boolean isEmpty()
+	{ return this.x0 == this.x1 || this.y0 == this.y1; }
+	
+	public int getX()
+	{ return this.x0; }
+	
+	public int getY()
+	{ return this.y0; }
+	
+	public int getXCapacity()
+	{ return this.x1 - this.x0; }
+	
+	public int getYCapacity()
+	{ return this.y1 - this.y0; }
+	
+	@Override
+	public String toString()
+	{ return "[" + this.x0 + ", " + this.y0 + ", " + this.getXCapacity() + ", " + this.getYCapacity() + "]"; }
+	
+}
\ No newline at end of file
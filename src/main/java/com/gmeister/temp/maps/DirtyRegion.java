@@ -0,0 +1,93 @@
+package com.gmeister.temp.maps;
+
+/**
+ * A small set of rectangles marking the cells of a {@link CharMapStack} which
+ * need recompositing. Rectangles which overlap or touch are merged as they are
+ * added, and once {@link #MAX_RECTS} separate rectangles are held they are all
+ * merged into their bounding box, so the set never grows and never allocates.
+ *
+ * @author The_G_Meister
+ */
+final class DirtyRegion
+{
+	
+	static final int MAX_RECTS = 16;
+	
+	private final int[] x0 = new int[DirtyRegion.MAX_RECTS];
+	private final int[] y0 = new int[DirtyRegion.MAX_RECTS];
+	private final int[] x1 = new int[DirtyRegion.MAX_RECTS];
+	private final int[] y1 = new int[DirtyRegion.MAX_RECTS];
+	private int size;
+	
+	// ------------------------------------------------ GENERAL METHODS
+	// ------------------------------------------------ //
+	
+	/**
+	 * Adds the cells from {@code x0, y0} (inclusive) to {@code x1, y1} (exclusive).
+	 */
+	void add(int x0, int y0, int x1, int y1)
+	{
+		if (x0 >= x1 || y0 >= y1) return;
+		
+		for (int i = 0; i < this.size;)
+			if (x0 <= this.x1[i] && this.x0[i] <= x1 && y0 <= this.y1[i] && this.y0[i] <= y1)
+		{
+			x0 = Math.min(x0, this.x0[i]);
+			y0 = Math.min(y0, this.y0[i]);
+			x1 = Math.max(x1, this.x1[i]);
+			y1 = Math.max(y1, this.y1[i]);
+			this.remove(i);
+			i = 0;
+		}
+		else i++;
+		
+		if (this.size == DirtyRegion.MAX_RECTS)
+		{
+			for (int i = 0; i < this.size; i++)
+			{
+				x0 = Math.min(x0, this.x0[i]);
+				y0 = Math.min(y0, this.y0[i]);
+				x1 = Math.max(x1, this.x1[i]);
+				y1 = Math.max(y1, this.y1[i]);
+			}
+			this.size = 0;
+		}
+		
+		this.x0[this.size] = x0;
+		this.y0[this.size] = y0;
+		this.x1[this.size] = x1;
+		this.y1[this.size] = y1;
+		this.size++;
+	}
+	
+	private void remove(int i)
+	{
+		this.size--;
+		this.x0[i] = this.x0[this.size];
+		this.y0[i] = this.y0[this.size];
+		this.x1[i] = this.x1[this.size];
+		this.y1[i] = this.y1[this.size];
+	}
+	
+	void clear()
+	{ this.size = 0; }
+	
+	boolean isEmpty()
+	{ return this.size == 0; }
+	
+	int size()
+	{ return this.size; }
+	
+	int getX0(int i)
+	{ return this.x0[i]; }
+	
+	int getY0(int i)
+	{ return this.y0[i]; }
+	
+	int getX1(int i)
+	{ return this.x1[i]; }
+	
+	int getY1(int i)
+	{ return this.y1[i]; }
+	
+}
\ No newline at end of file
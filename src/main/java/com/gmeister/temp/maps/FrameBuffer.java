@@ -0,0 +1,133 @@
+package com.gmeister.temp.maps;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.gmeister.temp.pipe.render.textmap.TextArray;
+import com.gmeister.temp.pipe.render.textmap.TextSource;
+
+/**
+ * A triple buffer of frames, handing frames from the thread which composites
+ * them to a thread which renders them without either waiting on the other.
+ * <p>
+ * The writer fills its back buffer and publishes it by swapping it for the
+ * ready buffer, and {@link #pourText()} swaps the reader's front buffer for the
+ * ready buffer whenever a newer frame has been published. Each buffer is only
+ * ever held by one side at once, so nothing is locked. Each buffer keeps the
+ * {@link TextArray} wrapping it, so once the frame size settles publishing and
+ * pouring allocate nothing.
+ * <p>
+ * A buffer is brought up to date by copying only the regions which have
+ * changed since it was last written, so a frame which changes a few cells
+ * copies a few cells.
+ *
+ * @author The_G_Meister
+ */
+public final class FrameBuffer implements TextSource
+{
+	
+	private static final int INDEX = 0b011;
+	private static final int FRESH = 0b100;
+	
+	private final char[][][] buffers;
+	private final TextArray[] texts;
+	private final DirtyRegion[] stale;
+	private final AtomicInteger ready;
+	private int back;
+	private int front;
+	private int xCapacity;
+	private int yCapacity;
+	
+	// ------------------------------------------------ CONSTRUCTORS
+	// ------------------------------------------------ //
+	
+	public FrameBuffer()
+	{
+		this.buffers = new char[3][0][];
+		this.texts = new TextArray[3];
+		this.stale = new DirtyRegion[3];
+		for (int i = 0; i < 3; i++)
+		{
+			this.texts[i] = new TextArray(this.buffers[i]);
+			this.stale[i] = new DirtyRegion();
+		}
+		this.back = 0;
+		this.front = 1;
+		this.ready = new AtomicInteger(2);
+	}
+	
+	// ------------------------------------------------ WRITER METHODS
+	// ------------------------------------------------ //
+	
+	/**
+	 * Copies a map into the back buffer and publishes it. Only the cells in
+	 * {@code damage}, and any damage published since the back buffer was last
+	 * written, are copied. Must only be called from one thread at a time.
+	 *
+	 * @param map the chars of the frame, row-major
+	 * @param stride the distance between the starts of rows in {@code map}
+	 * @param xCapacity the width of the frame
+	 * @param yCapacity the height of the frame
+	 * @param damage the cells which have changed since the last publish
+	 */
+	void publish(char[] map, int stride, int xCapacity, int yCapacity, DirtyRegion damage)
+	{
+		boolean resized = xCapacity != this.xCapacity || yCapacity != this.yCapacity;
+		if (damage.isEmpty() && !resized) return;
+		this.xCapacity = xCapacity;
+		this.yCapacity = yCapacity;
+		
+		for (int i = 0; i < 3; i++) for (int r = 0; r < damage.size(); r++)
+			this.stale[i].add(damage.getX0(r), damage.getY0(r), damage.getX1(r), damage.getY1(r));
+		
+		char[][] buffer = this.buffers[this.back];
+		DirtyRegion stale = this.stale[this.back];
+		if (buffer.length != yCapacity || (yCapacity > 0 && buffer[0].length != xCapacity))
+		{
+			buffer = new char[yCapacity][xCapacity];
+			this.buffers[this.back] = buffer;
+			this.texts[this.back] = new TextArray(buffer);
+			stale.clear();
+			stale.add(0, 0, xCapacity, yCapacity);
+		}
+		
+		for (int r = 0; r < stale.size(); r++)
+		{
+			int x0 = Math.max(0, stale.getX0(r));
+			int x1 = Math.min(xCapacity, stale.getX1(r));
+			int y1 = Math.min(yCapacity, stale.getY1(r));
+			for (int y = Math.max(0, stale.getY0(r)); y < y1 && x0 < x1; y++)
+				System.arraycopy(map, y * stride + x0, buffer[y], x0, x1 - x0);
+		}
+		stale.clear();
+		
+		this.back = this.ready.getAndSet(this.back | FrameBuffer.FRESH) & FrameBuffer.INDEX;
+	}
+	
+	// ------------------------------------------------ READER METHODS
+	// ------------------------------------------------ //
+	
+	/**
+	 * Gets the most recently published frame. The frame is not modified until
+	 * the next call, so it can be read while the next frame is being written.
+	 * Must only be called from one thread at a time.
+	 *
+	 * @return the latest frame, which must not be used after the next call
+	 */
+	@Override
+	public TextArray pourText()
+	{
+		if ((this.ready.get() & FrameBuffer.FRESH) != 0)
+			this.front = this.ready.getAndSet(this.front) & FrameBuffer.INDEX;
+		return this.texts[this.front];
+	}
+	
+	/**
+	 * Gets the chars of the frame last returned by {@link #pourText()}, indexed
+	 * {@code [y][x]}. Must only be called from the reading thread.
+	 *
+	 * @return the front buffer, which must not be modified
+	 */
+	public char[][] getFrontBuffer()
+	{ return this.buffers[this.front]; }
+	
+}
\ No newline at end of file
@@ -0,0 +1,255 @@
+package com.gmeister.temp.maps;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compares each frame with the last one emitted and records the changed runs
+ * of each row, so only those need to be written out. Runs are held in arrays
+ * which are reused from frame to frame, and only grow.
+ * <p>
+ * Changes separated by fewer than {@link #MERGE_GAP} unchanged cells are
+ * joined into one run, as rewriting a few unchanged chars costs fewer bytes
+ * than moving the cursor past them.
+ * <p>
+ * On the rendering thread, a {@link CharMapStack}'s frames are diffed with
+ * {@code diff(stack.getFrameBuffer().getFrontBuffer())} after each
+ * {@link CharMapStack#pourText()}.
+ *
+ * @author The_G_Meister
+ */
+public final class FrameDiff
+{
+	
+	/**
+	 * The number of unchanged cells below which two runs on a row are joined.
+	 * An ANSI cursor move takes six to ten bytes.
+	 */
+	public static final int MERGE_GAP = 8;
+	
+	private char[] last;
+	// Reused to read a row of a CharMap, which may be mapped or shared
+	private char[] row;
+	private int xCapacity;
+	private int yCapacity;
+	private boolean fullRedraw;
+	
+	private int runCount;
+	private int[] runRows;
+	private int[] runColumns;
+	private int[] runLengths;
+	private int[] runOffsets;
+	private char[] runChars;
+	private int charCount;
+	
+	// ------------------------------------------------ CONSTRUCTORS
+	// ------------------------------------------------ //
+	
+	public FrameDiff()
+	{
+		this.last = new char[0];
+		this.row = new char[0];
+		this.xCapacity = -1;
+		this.runRows = new int[16];
+		this.runColumns = new int[16];
+		this.runLengths = new int[16];
+		this.runOffsets = new int[16];
+		this.runChars = new char[256];
+	}
+	
+	// ------------------------------------------------ DIFFING METHODS
+	// ------------------------------------------------ //
+	
+	/**
+	 * Finds the runs of {@code frame} which differ from the last frame, and
+	 * remembers {@code frame} as the last frame.
+	 *
+	 * @param frame the new frame, indexed {@code [y][x]}, with rows of equal
+	 *        length
+	 * @return the number of changed runs
+	 */
+	public int diff(char[][] frame)
+	{
+		this.begin(frame.length == 0 ? 0 : frame[0].length, frame.length);
+		for (int y = 0; y < this.yCapacity; y++) this.diffRow(y, frame[y], 0);
+		return this.runCount;
+	}
+	
+	/**
+	 * Finds the runs of {@code c}'s map which differ from the last frame, and
+	 * remembers the map as the last frame. The map is read a row at a time, so a
+	 * mapped or shared map is not copied.
+	 *
+	 * @param c the new frame
+	 * @return the number of changed runs
+	 */
+	public int diff(CharMap c)
+	{
+		this.begin(c.getXCapacity(), c.getYCapacity());
+		if (this.row.length < this.xCapacity) this.row = new char[this.xCapacity];
+		for (int y = 0; y < this.yCapacity; y++)
+		{
+			c.readRun(y * c.getStride(), this.row, 0, this.xCapacity);
+			this.diffRow(y, this.row, 0);
+		}
+		return this.runCount;
+	}
+	
+	/**
+	 * Forgets the last frame, so the next diff covers every cell and is written
+	 * over a cleared screen.
+	 */
+	public void reset()
+	{ this.xCapacity = -1; }
+	
+	/**
+	 * Gets whether the last diff covered every cell, because it followed a
+	 * {@link #reset()} or a change of size.
+	 */
+	public boolean isFullRedraw()
+	{ return this.fullRedraw; }
+	
+	private void begin(int xCapacity, int yCapacity)
+	{
+		this.runCount = 0;
+		this.charCount = 0;
+		this.fullRedraw = xCapacity != this.xCapacity || yCapacity != this.yCapacity;
+		if (this.fullRedraw)
+		{
+			this.xCapacity = xCapacity;
+			this.yCapacity = yCapacity;
+			if (this.last.length < xCapacity * yCapacity) this.last = new char[xCapacity * yCapacity];
+			// A noncharacter, which no frame should hold, so every cell differs
+			Arrays.fill(this.last, 0, xCapacity * yCapacity, '\uFFFF');
+		}
+	}
+	
+	private void diffRow(int y, char[] row, int offset)
+	{
+		char[] last = this.last;
+		int base = y * this.xCapacity;
+		int x = 0;
+		while (x < this.xCapacity)
+		{
+			while (x < this.xCapacity && row[offset + x] == last[base + x]) x++;
+			if (x == this.xCapacity) return;
+			
+			// Extend the run until MERGE_GAP cells in a row are unchanged
+			int start = x;
+			int end = x + 1;
+			for (x = end; x < this.xCapacity && x - end < FrameDiff.MERGE_GAP; x++)
+				if (row[offset + x] != last[base + x]) end = x + 1;
+			x = end;
+			
+			this.addRun(y, start, row, offset + start, end - start);
+			System.arraycopy(row, offset + start, last, base + start, end - start);
+		}
+	}
+	
+	private void addRun(int y, int x, char[] row, int offset, int length)
+	{
+		if (this.runCount == this.runRows.length)
+		{
+			int capacity = this.runCount * 2;
+			this.runRows = Arrays.copyOf(this.runRows, capacity);
+			this.runColumns = Arrays.copyOf(this.runColumns, capacity);
+			this.runLengths = Arrays.copyOf(this.runLengths, capacity);
+			this.runOffsets = Arrays.copyOf(this.runOffsets, capacity);
+		}
+		if (this.charCount + length > this.runChars.length)
+			this.runChars = Arrays.copyOf(this.runChars, Math.max(this.runChars.length * 2, this.charCount + length));
+		
+		this.runRows[this.runCount] = y;
+		this.runColumns[this.runCount] = x;
+		this.runLengths[this.runCount] = length;
+		this.runOffsets[this.runCount] = this.charCount;
+		System.arraycopy(row, offset, this.runChars, this.charCount, length);
+		this.charCount += length;
+		this.runCount++;
+	}
+	
+	// ------------------------------------------------ OUTPUT METHODS
+	// ------------------------------------------------ //
+	
+	/**
+	 * Writes the runs of the last diff as ANSI escape sequences: a cursor move
+	 * to the start of each run, then its chars. A diff after {@link #reset()}
+	 * or a change of size first homes the cursor and clears the screen.
+	 * <p>
+	 * The last frame is remembered as soon as it is diffed. If {@code out} fails
+	 * part way through, the screen no longer matches it, so the last frame is
+	 * forgotten as by {@link #reset()}, and the next diff redraws every cell.
+	 *
+	 * @param out where to write the sequences
+	 * @throws IOException if {@code out} does
+	 */
+	public void writeAnsi(Appendable out) throws IOException
+	{
+		boolean written = false;
+		try
+		{
+			if (this.fullRedraw) out.append("\u001B[H\u001B[2J");
+			
+			int cursorY = -1;
+			int cursorX = -1;
+			for (int i = 0; i < this.runCount; i++)
+			{
+				int y = this.runRows[i];
+				int x = this.runColumns[i];
+				if (y != cursorY || x != cursorX)
+				{
+					out.append('\u001B').append('[');
+					FrameDiff.appendInt(out, y + 1);
+					out.append(';');
+					FrameDiff.appendInt(out, x + 1);
+					out.append('H');
+				}
+				Appendables.write(out, this.runChars, this.runOffsets[i], this.runLengths[i]);
+				cursorY = y;
+				cursorX = x + this.runLengths[i];
+			}
+			written = true;
+		}
+		finally
+		{
+			if (!written) this.reset();
+		}
+	}
+	
+	// Appends the digits of a positive int without building a String
+	
+	private static void appendInt(Appendable out, int i) throws IOException
+	{
+		int divisor = 1;
+		while (divisor <= i / 10) divisor *= 10;
+		for (; divisor > 0; divisor /= 10) out.append((char) ('0' + i / divisor % 10));
+	}
+	
+	// ------------------------------------------------ RUN ACCESSORS
+	// ------------------------------------------------ //
+	
+	public int getRunCount()
+	{ return this.runCount; }
+	
+	public int getRunRow(int i)
+	{ return this.runRows[i]; }
+	
+	public int getRunColumn(int i)
+	{ return this.runColumns[i]; }
+	
+	public int getRunLength(int i)
+	{ return this.runLengths[i]; }
+	
+	/**
+	 * Gets the chars of every run, one after another. Run {@code i} starts at
+	 * {@link #getRunOffset(int)}.
+	 *
+	 * @return the chars of the last diff, which must not be modified
+	 */
+	public char[] getRunChars()
+	{ return this.runChars; }
+	
+	public int getRunOffset(int i)
+	{ return this.runOffsets[i]; }
+	
+}
\ No newline at end of file
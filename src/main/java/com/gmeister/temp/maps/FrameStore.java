@@ -0,0 +1,380 @@
+package com.gmeister.temp.maps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds the frames of an {@link AnimatedCharMap} as keyframes and deltas. A
+ * frame the same shape as the one before it records only the cells and alpha
+ * words which changed; other frames, and every
+ * {@link #KEYFRAME_INTERVAL}th frame, are kept whole. A frame may be
+ * {@code null}, which shows as an empty map.
+ * <p>
+ * {@link #seek(CharMap, int)} brings a live map to a frame by patching it in
+ * place where it can, and damages only the cells a delta changes.
+ * <p>
+ * Given a {@link SpriteAtlas}, every frame is instead kept whole and interned,
+ * and seeking makes the live map share the frame. Stores built from the same
+ * frames then hold no frame content of their own, which deltas would be.
+ *
+ * @author The_G_Meister
+ */
+final class FrameStore
+{
+	
+	/**
+	 * The most frames between keyframes, bounding the deltas applied to reach any
+	 * frame.
+	 */
+	static final int KEYFRAME_INTERVAL = 32;
+	
+	private static final class Frame
+	{
+		
+		// Set for a keyframe, null for a delta
+		private final CharMap key;
+		
+		// Flat map indices and new chars of the changed cells
+		private final int[] cells;
+		private final char[] chars;
+		// Indices into the alpha words, row by row, and the bits which flip
+		private final int[] words;
+		private final long[] flips;
+		
+		// The bounding box of the change, in map and alpha coordinates
+		private final int x0;
+		private final int y0;
+		private final int x1;
+		private final int y1;
+		private final int alphaX0;
+		private final int alphaY0;
+		private final int alphaX1;
+		private final int alphaY1;
+		
+		private Frame(CharMap key)
+		{
+			this.key = key;
+			this.cells = null;
+			this.chars = null;
+			this.words = null;
+			this.flips = null;
+			this.x0 = 0;
+			this.y0 = 0;
+			this.x1 = 0;
+			this.y1 = 0;
+			this.alphaX0 = 0;
+			this.alphaY0 = 0;
+			this.alphaX1 = 0;
+			this.alphaY1 = 0;
+		}
+		
+		private Frame(int[] cells, char[] chars, int[] words, long[] flips, int[] box)
+		{
+			this.key = null;
+			this.cells = cells;
+			this.chars = chars;
+			this.words = words;
+			this.flips = flips;
+			this.x0 = box[0];
+			this.y0 = box[1];
+			this.x1 = box[2];
+			this.y1 = box[3];
+			this.alphaX0 = box[4];
+			this.alphaY0 = box[5];
+			this.alphaX1 = box[6];
+			this.alphaY1 = box[7];
+		}
+		
+	}
+	
+	private final List<Frame> frames;
+	private final SpriteAtlas atlas;
+	// A copy of the last frame added, which the next frame is compared with
+	private CharMap last;
+	private int sinceKeyframe;
+	
+	// The frame the live map was last brought to, the arrays it then held, and
+	// the mod counts it and its alpha map then had
+	private int applied;
+	private char[] liveMap;
+	private BooleanMap liveAlpha;
+	private long liveModCount;
+	private long liveAlphaModCount;
+	
+	// ------------------------------------------------ CONSTRUCTORS
+	// ------------------------------------------------ //
+	
+	FrameStore()
+	{ this(null); }
+	
+	FrameStore(SpriteAtlas atlas)
+	{
+		this.frames = new ArrayList<>();
+		this.atlas = atlas;
+		this.applied = -1;
+	}
+	
+	// ------------------------------------------------ FRAME METHODS
+	// ------------------------------------------------ //
+	
+	int size()
+	{ return this.frames.size(); }
+	
+	/**
+	 * Adds a frame to the end. The frame is copied, so later changes to it do not
+	 * affect the store.
+	 */
+	void add(CharMap c)
+	{
+		if (c == null)
+		{
+			this.frames.add(null);
+			this.last = null;
+			return;
+		}
+		
+		CharMap copy = this.atlas == null ? CharMap.copyOf(c) : this.atlas.canonical(c);
+		Frame delta = null;
+		if (this.atlas == null && this.last != null && this.sinceKeyframe < FrameStore.KEYFRAME_INTERVAL - 1
+				&& FrameStore.isSameShape(this.last, copy))
+			delta = FrameStore.diff(this.last, copy);
+		
+		if (delta != null)
+		{
+			this.frames.add(delta);
+			this.sinceKeyframe++;
+		}
+		else
+		{
+			this.frames.add(new Frame(copy));
+			this.sinceKeyframe = 0;
+		}
+		this.last = copy;
+	}
+	
+	/**
+	 * Replaces frame {@code i}, adding empty frames before it if there are fewer
+	 * than {@code i} frames. The frames after it are encoded again.
+	 */
+	void set(int i, CharMap c)
+	{
+		List<CharMap> tail = new ArrayList<>();
+		for (int j = i + 1; j < this.frames.size(); j++) tail.add(this.getFrame(j));
+		
+		this.truncate(Math.min(i, this.frames.size()));
+		while (this.frames.size() < i) this.add(null);
+		this.add(c);
+		for (CharMap frame : tail) this.add(frame);
+	}
+	
+	private void truncate(int size)
+	{
+		this.frames.subList(size, this.frames.size()).clear();
+		this.last = size == 0 ? null : this.getFrame(size - 1);
+		this.sinceKeyframe = this.last == null ? 0 : size - 1 - this.keyframeOf(size - 1);
+		this.applied = -1;
+	}
+	
+	/**
+	 * Rebuilds frame {@code i} as a new map.
+	 *
+	 * @return a copy of the frame, or {@code null} for an empty frame
+	 */
+	CharMap getFrame(int i)
+	{
+		if (this.frames.get(i) == null) return null;
+		int k = this.keyframeOf(i);
+		CharMap output = CharMap.copyOf(this.frames.get(k).key);
+		for (int j = k + 1; j <= i; j++) FrameStore.apply(this.frames.get(j), output);
+		return output;
+	}
+	
+	// ------------------------------------------------ SEEKING
+	// ------------------------------------------------ //
+	
+	/**
+	 * Brings {@code live} to frame {@code i}. If live is unchanged since the last
+	 * seek, and is at an earlier frame since the same keyframe, only the deltas in
+	 * between are applied. Otherwise it is reset to the keyframe first, in place if
+	 * it still holds the arrays it was left with.
+	 */
+	void seek(CharMap live, int i)
+	{
+		if (i < 0 || this.frames.get(i) == null)
+		{
+			live.setTo(new CharMap());
+			this.applied = -1;
+			this.liveMap = null;
+			this.liveAlpha = null;
+			return;
+		}
+		if (this.atlas != null)
+		{
+			// Every frame is a keyframe, so there is nothing to patch
+			live.setTo(this.frames.get(i).key);
+			this.applied = i;
+			return;
+		}
+		
+		boolean owned = !live.isMapped() && live.getFlatMap() == this.liveMap && live.getAlphaMap() == this.liveAlpha;
+		// The deltas only hold for the cells as the last seek left them
+		boolean current = owned && live.getModCount() == this.liveModCount
+				&& this.liveAlpha.getModCount() == this.liveAlphaModCount;
+		int k = this.keyframeOf(i);
+		int start = this.applied;
+		if (!current || this.applied < k || this.applied > i)
+		{
+			CharMap key = this.frames.get(k).key;
+			if (owned && FrameStore.isSameShape(live, key)) FrameStore.restore(key, live);
+			else live.copyFrom(key);
+			start = k;
+		}
+		for (int j = start + 1; j <= i; j++) FrameStore.apply(this.frames.get(j), live);
+		
+		this.applied = i;
+		this.liveMap = live.getFlatMap();
+		this.liveAlpha = live.getAlphaMap();
+		this.liveModCount = live.getModCount();
+		this.liveAlphaModCount = this.liveAlpha.getModCount();
+	}
+	
+	private int keyframeOf(int i)
+	{
+		while (this.frames.get(i).key == null) i--;
+		return i;
+	}
+	
+	// ------------------------------------------------ ENCODING
+	// ------------------------------------------------ //
+	
+	private static boolean isSameShape(CharMap a, CharMap b)
+	{
+		BooleanMap alphaA = a.getAlphaMap();
+		BooleanMap alphaB = b.getAlphaMap();
+		return a.getXCapacity() == b.getXCapacity() && a.getYCapacity() == b.getYCapacity()
+				&& a.getXOffset() == b.getXOffset() && a.getYOffset() == b.getYOffset()
+				&& a.getAlphaXOffset() == b.getAlphaXOffset() && a.getAlphaYOffset() == b.getAlphaYOffset()
+				&& alphaA.getXCapacity() == alphaB.getXCapacity() && alphaA.getYCapacity() == alphaB.getYCapacity()
+				&& alphaA.getXOffset() == alphaB.getXOffset() && alphaA.getYOffset() == alphaB.getYOffset();
+	}
+	
+	/**
+	 * Records the cells and alpha words which differ between two maps of the same
+	 * shape.
+	 *
+	 * @return the delta, or {@code null} if it would take more room than a
+	 *         keyframe
+	 */
+	private static Frame diff(CharMap a, CharMap b)
+	{
+		int xCapacity = a.getXCapacity();
+		int[] box = {Integer.MAX_VALUE, Integer.MAX_VALUE, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE, 0, 0};
+		// Each changed cell takes three chars' room, so stop once that outgrows a keyframe
+		int limit = xCapacity * a.getYCapacity() / 3;
+		
+		int[] cells = new int[16];
+		char[] chars = new char[16];
+		int count = 0;
+		char[] rowA = new char[xCapacity];
+		char[] rowB = new char[xCapacity];
+		for (int y = 0; y < a.getYCapacity(); y++)
+		{
+			a.readRun(y * a.getStride(), rowA, 0, xCapacity);
+			b.readRun(y * b.getStride(), rowB, 0, xCapacity);
+			for (int x = 0; x < xCapacity; x++) if (rowA[x] != rowB[x])
+			{
+				if (count == limit) return null;
+				if (count == cells.length)
+				{
+					cells = Arrays.copyOf(cells, count * 2);
+					chars = Arrays.copyOf(chars, count * 2);
+				}
+				cells[count] = y * xCapacity + x;
+				chars[count++] = rowB[x];
+				FrameStore.include(box, 0, x, y, x + 1);
+			}
+		}
+		
+		BooleanMap alphaA = a.getAlphaMap();
+		BooleanMap alphaB = b.getAlphaMap();
+		int stride = BooleanMap.strideOf(alphaA.getXCapacity());
+		int[] words = new int[4];
+		long[] flips = new long[4];
+		int flipCount = 0;
+		for (int y = 0; y < alphaA.getYCapacity(); y++) for (int i = 0; i < stride; i++)
+		{
+			long flip = alphaA.getWord(y, i) ^ alphaB.getWord(y, i);
+			if (flip == 0) continue;
+			if (flipCount == words.length)
+			{
+				words = Arrays.copyOf(words, flipCount * 2);
+				flips = Arrays.copyOf(flips, flipCount * 2);
+			}
+			words[flipCount] = y * stride + i;
+			flips[flipCount++] = flip;
+			FrameStore.include(box, 4, (i << 6) + Long.numberOfTrailingZeros(flip), y,
+					(i << 6) + 64 - Long.numberOfLeadingZeros(flip));
+		}
+		
+		// An empty box must not be offset past the int range when damaged
+		if (count == 0) Arrays.fill(box, 0, 4, 0);
+		if (flipCount == 0) Arrays.fill(box, 4, 8, 0);
+		return new Frame(Arrays.copyOf(cells, count), Arrays.copyOf(chars, count), Arrays.copyOf(words, flipCount),
+				Arrays.copyOf(flips, flipCount), box);
+	}
+	
+	// Grows the box starting at box[i] to take in columns x0 to x1 of row y
+	
+	private static void include(int[] box, int i, int x0, int y, int x1)
+	{
+		box[i] = Math.min(box[i], x0);
+		box[i + 1] = Math.min(box[i + 1], y);
+		box[i + 2] = Math.max(box[i + 2], x1);
+		box[i + 3] = Math.max(box[i + 3], y + 1);
+	}
+	
+	// ------------------------------------------------ PATCHING
+	// ------------------------------------------------ //
+	
+	// Copies a keyframe into a live map of the same shape without reallocating it
+	
+	private static void restore(CharMap key, CharMap live)
+	{
+		key.readRun(0, live.getFlatMap(), 0, key.getXCapacity() * key.getYCapacity());
+		BooleanMap alpha = key.getAlphaMap();
+		BooleanMap liveAlpha = live.getAlphaMap();
+		for (int y = 0; y < alpha.getYCapacity(); y++)
+			for (int i = 0; i < BooleanMap.strideOf(alpha.getXCapacity()); i++) liveAlpha.setWord(y, i, alpha.getWord(y, i));
+		liveAlpha.touch(0, 0, liveAlpha.getXCapacity(), liveAlpha.getYCapacity());
+		live.damageExtent();
+	}
+	
+	private static void apply(Frame frame, CharMap live)
+	{
+		if (frame.key != null)
+		{
+			live.copyFrom(frame.key);
+			return;
+		}
+		
+		char[] map = live.getFlatMap();
+		for (int i = 0; i < frame.cells.length; i++) map[frame.cells[i]] = frame.chars[i];
+		live.damage(frame.x0 + live.getXOffset(), frame.y0 + live.getYOffset(), frame.x1 + live.getXOffset(),
+				frame.y1 + live.getYOffset());
+		
+		BooleanMap alpha = live.getAlphaMap();
+		int stride = BooleanMap.strideOf(alpha.getXCapacity());
+		for (int i = 0; i < frame.words.length; i++)
+		{
+			int y = frame.words[i] / stride;
+			int word = frame.words[i] % stride;
+			alpha.setWord(y, word, alpha.getWord(y, word) ^ frame.flips[i]);
+		}
+		if (frame.words.length > 0) alpha.touch(frame.alphaX0, frame.alphaY0, frame.alphaX1, frame.alphaY1);
+		int x = live.getAlphaXOffset() + alpha.getXOffset();
+		int y = live.getAlphaYOffset() + alpha.getYOffset();
+		live.damage(frame.alphaX0 + x, frame.alphaY0 + y, frame.alphaX1 + x, frame.alphaY1 + y);
+	}
+	
+}
\ No newline at end of file
@@ -0,0 +1,160 @@
+package com.gmeister.temp.maps;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiPredicate;
+
+import com.gmeister.temp.pipe.input.InputAction;
+import com.gmeister.temp.pipe.input.InputData;
+
+/**
+ * A bounded queue of {@link InputData}, carrying input from any number of
+ * threads to the one thread which renders. Input is offered without locking or
+ * waiting: when the queue is full it is dropped and counted, so a storm of
+ * input can never hold up a frame. The rendering thread drains the queue once
+ * per tick, passing on only the input which was queued when the drain began.
+ * <p>
+ * Given a coalescing predicate, runs of redundant input are passed on as only
+ * the last of the run. The predicate is given each queued input and the one
+ * after it, and returns {@code true} if the later one makes the earlier one
+ * redundant, such as two moves of the mouse.
+ * <p>
+ * Each slot carries a sequence number saying whether it is free for the lap of
+ * the ring a producer is on or filled for the one the consumer is on, so
+ * producers only contend on claiming a slot.
+ *
+ * @author The_G_Meister
+ */
+public final class InputQueue
+{
+	
+	private final InputData[] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail;
+	private final AtomicLong dropped;
+	private final BiPredicate<InputData, InputData> coalescing;
+	// Only touched by the consumer
+	private long head;
+	
+	// ------------------------------------------------ CONSTRUCTORS
+	// ------------------------------------------------ //
+	
+	public InputQueue(int capacity)
+	{ this(capacity, null); }
+	
+	/**
+	 * @param capacity the most input the queue can hold, rounded up to a power of
+	 *        two
+	 * @param coalescing whether the second input makes the first redundant, or
+	 *        {@code null} to pass on all input
+	 */
+	public InputQueue(int capacity, BiPredicate<InputData, InputData> coalescing)
+	{
+		if (capacity < 1 || capacity > 1 << 30) throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) size <<= 1;
+		
+		this.slots = new InputData[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) this.sequences.set(i, i);
+		this.mask = size - 1;
+		this.tail = new AtomicLong();
+		this.dropped = new AtomicLong();
+		this.coalescing = coalescing;
+	}
+	
+	// ------------------------------------------------ PRODUCER METHODS
+	// ------------------------------------------------ //
+	
+	/**
+	 * Queues {@code data} if there is room. Safe to call from any thread.
+	 *
+	 * @return {@code false} if the queue was full and the input was dropped
+	 */
+	public boolean offer(InputData data)
+	{
+		long t = this.tail.get();
+		while (true)
+		{
+			int i = (int) t & this.mask;
+			long difference = this.sequences.get(i) - t;
+			if (difference == 0)
+			{
+				if (this.tail.compareAndSet(t, t + 1))
+				{
+					this.slots[i] = data;
+					// Publishes the slot to the consumer
+					this.sequences.set(i, t + 1);
+					return true;
+				}
+				t = this.tail.get();
+			}
+			// The slot still holds input from the last lap, so the queue is full
+			else if (difference < 0)
+			{
+				this.dropped.incrementAndGet();
+				return false;
+			}
+			else t = this.tail.get();
+		}
+	}
+	
+	/**
+	 * Gets the number of inputs dropped because the queue was full.
+	 */
+	public long getDroppedCount()
+	{ return this.dropped.get(); }
+	
+	public int getCapacity()
+	{ return this.slots.length; }
+	
+	// ------------------------------------------------ CONSUMER METHODS
+	// ------------------------------------------------ //
+	
+	/**
+	 * Passes the queued input to every one of {@code actions}, coalescing
+	 * redundant input. Input queued while draining waits for the next drain. Must
+	 * only be called from one thread at a time.
+	 *
+	 * @param actions the actions to pass the input to
+	 * @return the number of inputs passed on
+	 */
+	public int drain(List<InputAction> actions)
+	{
+		long end = this.tail.get();
+		int count = 0;
+		InputData pending = null;
+		boolean held = false;
+		while (this.head - end < 0)
+		{
+			int i = (int) this.head & this.mask;
+			// A slot claimed but not yet filled ends the drain
+			if (this.sequences.get(i) != this.head + 1) break;
+			InputData data = this.slots[i];
+			this.slots[i] = null;
+			// Frees the slot for the producers' next lap
+			this.sequences.set(i, this.head + this.slots.length);
+			this.head++;
+			
+			if (held && (this.coalescing == null || !this.coalescing.test(pending, data)))
+			{
+				InputQueue.dispatch(actions, pending);
+				count++;
+			}
+			pending = data;
+			held = true;
+		}
+		if (held)
+		{
+			InputQueue.dispatch(actions, pending);
+			count++;
+		}
+		return count;
+	}
+	
+	private static void dispatch(List<InputAction> actions, InputData data)
+	{ for (InputAction action : actions) action.act(data); }
+	
+}
\ No newline at end of file
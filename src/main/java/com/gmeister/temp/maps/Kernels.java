@@ -0,0 +1,122 @@
+package com.gmeister.temp.maps;
+
+import java.util.Arrays;
+
+/**
+ * The bulk loops of {@link BooleanMap} and {@link CharMap}, run here one word
+ * or one char at a time. On JDK 17 and later with the
+ * {@code jdk.incubator.vector} module added, {@link #INSTANCE} is instead a
+ * subclass which runs them on SIMD vectors. That subclass is compiled into the
+ * Java 17 section of the multi-release jar and loaded by name, so the rest of
+ * the package still runs on Java 8, and it is checked against these loops
+ * before it is used. Setting the system property
+ * {@code com.gmeister.temp.maps.scalar} to {@code true} keeps these loops.
+ *
+ * @author The_G_Meister
+ */
+class Kernels
+{
+	
+	private static final String VECTOR_KERNELS = "com.gmeister.temp.maps.VectorKernels";
+	
+	static final Kernels INSTANCE = Kernels.load();
+	
+	// ------------------------------------------------ LOADING METHODS
+	// ------------------------------------------------ //
+	
+	private static Kernels load()
+	{
+		Kernels scalar = new Kernels();
+		if (Boolean.getBoolean("com.gmeister.temp.maps.scalar")) return scalar;
+		try
+		{
+			Kernels vector = (Kernels) Class.forName(Kernels.VECTOR_KERNELS).getDeclaredConstructor().newInstance();
+			return vector.agrees(scalar) ? vector : scalar;
+		}
+		// Thrown when running before JDK 17 or without the incubator module
+		catch (ReflectiveOperationException | LinkageError | RuntimeException e)
+		{
+			return scalar;
+		}
+	}
+	
+	// Runs every kernel over the same cells as k, at offsets and lengths which
+	// leave a tail after the last whole vector
+	
+	private boolean agrees(Kernels k)
+	{
+		long seed = 0x9E3779B97F4A7C15L;
+		long[] words = new long[133];
+		char[] chars = new char[301];
+		for (int i = 0; i < words.length; i++) words[i] = seed *= 0xD1342543DE82EF95L;
+		for (int i = 0; i < chars.length; i++) chars[i] = (char) (seed *= 0xD1342543DE82EF95L);
+		
+		for (int mode = 0; mode <= 0b1111; mode++)
+		{
+			long[] a = words.clone();
+			long[] b = words.clone();
+			this.merge((byte) mode, a, 3, words, 61, 67);
+			k.merge((byte) mode, b, 3, words, 61, 67);
+			if (!Arrays.equals(a, b)) return false;
+		}
+		
+		long[] a = words.clone();
+		long[] b = words.clone();
+		this.invert(a, 5, 121);
+		k.invert(b, 5, 121);
+		if (!Arrays.equals(a, b)) return false;
+		
+		char[] c = chars.clone();
+		char[] d = chars.clone();
+		this.fill(c, 7, 251, 'x');
+		k.fill(d, 7, 251, 'x');
+		if (!Arrays.equals(c, d)) return false;
+		
+		for (int i = 0; i < words.length; i++)
+		{
+			c = chars.clone();
+			d = chars.clone();
+			this.blend(c, 11, chars, 200, words[i], 64 - (i & 31));
+			k.blend(d, 11, chars, 200, words[i], 64 - (i & 31));
+			if (!Arrays.equals(c, d)) return false;
+		}
+		return true;
+	}
+	
+	// ------------------------------------------------ KERNEL METHODS
+	// ------------------------------------------------ //
+	
+	/**
+	 * Inverts {@code length} words of {@code words}, starting at {@code offset}.
+	 */
+	void invert(long[] words, int offset, int length)
+	{ for (int i = offset; i < offset + length; i++) words[i] = ~words[i]; }
+	
+	/**
+	 * Merges {@code length} words of {@code b} into those of {@code a}, under a
+	 * truth table as taken by {@link BooleanMap#merge(BooleanMap, int, int, byte)}.
+	 */
+	void merge(byte mode, long[] a, int aOffset, long[] b, int bOffset, int length)
+	{ for (int i = 0; i < length; i++) a[aOffset + i] = BooleanMap.apply(mode, a[aOffset + i], b[bOffset + i]); }
+	
+	void fill(char[] chars, int offset, int length, char c)
+	{ Arrays.fill(chars, offset, offset + length, c); }
+	
+	/**
+	 * Copies those of the {@code length} chars of {@code source} whose bits are
+	 * set in {@code mask} to the same places in {@code target}, bit 0 marking the
+	 * first char. {@code length} is at most 64.
+	 */
+	void blend(char[] target, int targetOffset, char[] source, int sourceOffset, long mask, int length)
+	{
+		if (length < 64) mask &= (1L << length) - 1;
+		while (mask != 0)
+		{
+			int start = Long.numberOfTrailingZeros(mask);
+			int end = start + Long.numberOfTrailingZeros(~(mask >>> start));
+			System.arraycopy(source, sourceOffset + start, target, targetOffset + start, end - start);
+			mask = end == 64 ? 0 : mask & (-1L << end);
+		}
+	}
+	
+}
\ No newline at end of file
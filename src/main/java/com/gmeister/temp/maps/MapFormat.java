@@ -0,0 +1,51 @@
+package com.gmeister.temp.maps;
+
+/**
+ * The constants of the binary format read by {@link MapReader} and written by
+ * {@link MapWriter}.
+ * <p>
+ * A stream starts with {@link #MAGIC} and a version byte, followed by any
+ * number of records. Each record is a tag byte and then a body:
+ * <ul>
+ * <li>{@link #BOOLEAN_MAP}: capacity, offset and alpha plane</li>
+ * <li>{@link #CHAR_MAP}: a flags byte, capacity, map offset, alpha offset, the
+ * char plane, then the alpha map as a {@link #BOOLEAN_MAP} body. With
+ * {@link #HAS_FRAMES}, the body ends with the current frame number, the number
+ * of frames and each frame as a presence byte and a {@link #CHAR_MAP} body
+ * without {@link #HAS_FRAMES}</li>
+ * </ul>
+ * Capacities and counts are unsigned LEB128 varints, and offsets are zigzag
+ * varints. The char plane is written a row at a time as packets, each headed by
+ * a varint of {@code length << 1 | run}: a run is one char repeated, a literal
+ * is that many chars. Chars are varints, so ASCII takes a byte.
+ * <p>
+ * The alpha plane starts with a mode byte. {@link #PACKED} rows are the row's
+ * bits, eight to a byte, lowest first. {@link #RUNS} rows are a count of runs,
+ * then the gap before and length of each run of set cells. The writer picks
+ * whichever is smaller.
+ *
+ * @author The_G_Meister
+ */
+final class MapFormat
+{
+	
+	static final int MAGIC = 0x474D4D53;
+	static final int VERSION = 1;
+	
+	static final byte BOOLEAN_MAP = 'B';
+	static final byte CHAR_MAP = 'C';
+	
+	static final int HAS_FRAMES = 1;
+	// The most frames a reader accepts in one map
+	static final int MAX_FRAMES = 1 << 20;
+	
+	static final byte PACKED = 0;
+	static final byte RUNS = 1;
+	
+	// The shortest repeat of a char written as a run rather than in a literal
+	static final int MIN_RUN = 3;
+	
+	private MapFormat()
+	{}
+	
+}
\ No newline at end of file
@@ -0,0 +1,271 @@
+package com.gmeister.temp.maps;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads maps written by {@link MapWriter} from a channel, one record at a time.
+ * Input is buffered, so a stream of many small maps costs few reads of the
+ * channel.
+ *
+ * @author The_G_Meister
+ */
+public final class MapReader implements Closeable
+{
+	
+	private static final int BUFFER_BYTES = 1 << 16;
+	
+	private final ReadableByteChannel channel;
+	private final ByteBuffer buffer;
+	private boolean started;
+	
+	// ------------------------------------------------ CONSTRUCTORS
+	// ------------------------------------------------ //
+	
+	public MapReader(ReadableByteChannel channel)
+	{
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocate(MapReader.BUFFER_BYTES);
+		this.buffer.flip();
+	}
+	
+	// ------------------------------------------------ RECORD METHODS
+	// ------------------------------------------------ //
+	
+	/**
+	 * Gets whether another record follows, without reading it.
+	 *
+	 * @throws IOException if the stream does not start as a map stream
+	 */
+	public boolean hasNext() throws IOException
+	{
+		this.start();
+		return this.fill(1);
+	}
+	
+	/**
+	 * Reads the next record, which must be a {@link BooleanMap}.
+	 *
+	 * @throws IOException if the next record is not a BooleanMap, is malformed or
+	 *         is cut short
+	 */
+	public BooleanMap readBooleanMap() throws IOException
+	{
+		this.readTag(MapFormat.BOOLEAN_MAP);
+		return this.readBooleanBody();
+	}
+	
+	/**
+	 * Reads the next record, which must be a {@link CharMap}. A map written with
+	 * frames is returned as an {@link AnimatedCharMap}.
+	 *
+	 * @throws IOException if the next record is not a CharMap, is malformed or is
+	 *         cut short
+	 */
+	public CharMap readCharMap() throws IOException
+	{
+		this.readTag(MapFormat.CHAR_MAP);
+		return this.readCharBody(false);
+	}
+	
+	@Override
+	public void close() throws IOException
+	{ this.channel.close(); }
+	
+	private void start() throws IOException
+	{
+		if (this.started) return;
+		this.require(5);
+		if (this.buffer.getInt() != MapFormat.MAGIC) throw new IOException("Not a map stream");
+		int version = this.buffer.get() & 0xFF;
+		if (version != MapFormat.VERSION) throw new IOException("Unsupported map stream version " + version);
+		this.started = true;
+	}
+	
+	private void readTag(byte tag) throws IOException
+	{
+		this.start();
+		this.require(1);
+		byte found = this.buffer.get();
+		if (found != tag) throw new IOException("Expected record '" + (char) tag + "' but found '" + (char) found + "'");
+	}
+	
+	// ------------------------------------------------ BODY METHODS
+	// ------------------------------------------------ //
+	
+	// A frame may not have frames of its own, so a stream cannot nest them deeper
+	// than one level
+	
+	private CharMap readCharBody(boolean frame) throws IOException
+	{
+		this.require(1);
+		int flags = this.buffer.get();
+		if (frame && (flags & MapFormat.HAS_FRAMES) != 0) throw new IOException("Frame has frames of its own");
+		int xCapacity = this.readVarInt();
+		int yCapacity = this.readVarInt();
+		int xOffset = this.readSignedVarInt();
+		int yOffset = this.readSignedVarInt();
+		int alphaXOffset = this.readSignedVarInt();
+		int alphaYOffset = this.readSignedVarInt();
+		MapReader.checkCapacity(xCapacity, yCapacity);
+		
+		CharMap output = new CharMap(xCapacity, yCapacity, ' ', false);
+		char[] map = output.getFlatMap();
+		for (int y = 0; y < yCapacity; y++) this.readCharRow(map, y * output.getStride(), xCapacity);
+		output.setBooleanMap(this.readBooleanBody());
+		
+		if ((flags & MapFormat.HAS_FRAMES) != 0)
+		{
+			int current = this.readVarInt();
+			int count = this.readVarInt();
+			if (count < 0 || count > MapFormat.MAX_FRAMES) throw new IOException("Frame count " + (count & 0xFFFFFFFFL)
+					+ " is out of range");
+			if (current < 0 || current >= Math.max(1, count))
+				throw new IOException("Current frame " + (current & 0xFFFFFFFFL) + " is out of range");
+			
+			// Grown as frames are read, so a count the stream cannot back up fails at
+			// its end rather than allocating for it up front
+			List<CharMap> frames = new ArrayList<>(Math.min(count, 64));
+			for (int i = 0; i < count; i++)
+			{
+				this.require(1);
+				frames.add(this.buffer.get() != 0 ? this.readCharBody(true) : null);
+			}
+			
+			AnimatedCharMap animation = count == 0 ? new AnimatedCharMap()
+					: new AnimatedCharMap(current, frames.toArray(new CharMap[count]));
+			animation.setTo(output);
+			output = animation;
+		}
+		
+		output.setMapOffset(xOffset, yOffset);
+		output.setAlphaOffset(alphaXOffset, alphaYOffset);
+		return output;
+	}
+	
+	private void readCharRow(char[] map, int offset, int length) throws IOException
+	{
+		for (int x = 0; x < length;)
+		{
+			int header = this.readVarInt();
+			int count = header >>> 1;
+			if (count > length - x) throw new IOException("Row overruns the map by " + (count - length + x) + " chars");
+			if ((header & 1) != 0)
+			{
+				char c = this.readChar();
+				for (int i = 0; i < count; i++) map[offset + x + i] = c;
+			}
+			else for (int i = 0; i < count; i++) map[offset + x + i] = this.readChar();
+			x += count;
+		}
+	}
+	
+	private BooleanMap readBooleanBody() throws IOException
+	{
+		int xCapacity = this.readVarInt();
+		int yCapacity = this.readVarInt();
+		int xOffset = this.readSignedVarInt();
+		int yOffset = this.readSignedVarInt();
+		MapReader.checkCapacity(xCapacity, yCapacity);
+		this.require(1);
+		byte mode = this.buffer.get();
+		if (mode != MapFormat.PACKED && mode != MapFormat.RUNS) throw new IOException("Unknown alpha mode " + mode);
+		
+		BooleanMap output = new BooleanMap(xCapacity, yCapacity, false);
+		int stride = BooleanMap.strideOf(xCapacity);
+		long[] words = new long[stride];
+		for (int y = 0; y < yCapacity; y++)
+		{
+			if (mode == MapFormat.RUNS) this.readRunRow(words, xCapacity);
+			else for (int i = 0; i < stride; i++)
+			{
+				int bytes = Math.min(8, (xCapacity - (i << 6) + 7) >>> 3);
+				this.require(bytes);
+				long word = 0L;
+				for (int j = 0; j < bytes; j++) word |= (this.buffer.get() & 0xFFL) << (j << 3);
+				words[i] = word & BooleanMap.spanMask(i, 0, xCapacity);
+			}
+			for (int i = 0; i < stride; i++) output.setWord(y, i, words[i]);
+		}
+		output.compact();
+		output.setOffset(xOffset, yOffset);
+		return output;
+	}
+	
+	private void readRunRow(long[] words, int xCapacity) throws IOException
+	{
+		Arrays.fill(words, 0L);
+		int count = this.readVarInt();
+		for (int r = 0, x = 0; r < count; r++)
+		{
+			int start = x + this.readVarInt();
+			x = start + this.readVarInt();
+			if (start < 0 || x > xCapacity || x < start) throw new IOException("Run overruns the row");
+			for (int i = start >>> 6; i < BooleanMap.strideOf(x); i++) words[i] |= BooleanMap.spanMask(i, start, x);
+		}
+	}
+	
+	private static void checkCapacity(int xCapacity, int yCapacity) throws IOException
+	{
+		if (xCapacity < 0 || yCapacity < 0 || (long) xCapacity * yCapacity > Integer.MAX_VALUE)
+			throw new IOException("Map capacity " + (xCapacity & 0xFFFFFFFFL) + "x" + (yCapacity & 0xFFFFFFFFL)
+					+ " is too large");
+	}
+	
+	// ------------------------------------------------ PRIMITIVE METHODS
+	// ------------------------------------------------ //
+	
+	// Tops the buffer up until it holds at least bytes bytes, returning false if
+	// the channel ends first
+	
+	private boolean fill(int bytes) throws IOException
+	{
+		if (this.buffer.remaining() >= bytes) return true;
+		this.buffer.compact();
+		try
+		{
+			while (this.buffer.position() < bytes) if (this.channel.read(this.buffer) < 0) return false;
+			return true;
+		}
+		finally
+		{
+			this.buffer.flip();
+		}
+	}
+	
+	private void require(int bytes) throws IOException
+	{ if (!this.fill(bytes)) throw new EOFException("Map stream ends part way through a record"); }
+	
+	private int readVarInt() throws IOException
+	{
+		int i = 0;
+		for (int shift = 0; shift < 35; shift += 7)
+		{
+			this.require(1);
+			byte b = this.buffer.get();
+			i |= (b & 0x7F) << shift;
+			if (b >= 0) return i;
+		}
+		throw new IOException("Malformed varint");
+	}
+	
+	private int readSignedVarInt() throws IOException
+	{
+		int i = this.readVarInt();
+		return i >>> 1 ^ -(i & 1);
+	}
+	
+	private char readChar() throws IOException
+	{
+		int c = this.readVarInt();
+		if (c > Character.MAX_VALUE) throw new IOException("Malformed char " + c);
+		return (char) c;
+	}
+	
+}
\ No newline at end of file
@@ -0,0 +1,240 @@
+package com.gmeister.temp.maps;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes {@link CharMap}s, {@link BooleanMap}s and {@link AnimatedCharMap}s to a
+ * channel in the compact binary format described in {@link MapFormat}, to be
+ * read back by {@link MapReader}. Any number of maps can be written to one
+ * stream. Output is buffered, so must be flushed, or the writer closed, once the
+ * last map is written.
+ *
+ * @author The_G_Meister
+ */
+public final class MapWriter implements Closeable
+{
+	
+	private static final int BUFFER_BYTES = 1 << 16;
+	
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+	private char[] row;
+	private int[] boundaries;
+	
+	// ------------------------------------------------ CONSTRUCTORS
+	// ------------------------------------------------ //
+	
+	public MapWriter(WritableByteChannel channel)
+	{
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocate(MapWriter.BUFFER_BYTES);
+		this.buffer.putInt(MapFormat.MAGIC).put((byte) MapFormat.VERSION);
+		this.row = new char[0];
+		this.boundaries = new int[0];
+	}
+	
+	// ------------------------------------------------ RECORD METHODS
+	// ------------------------------------------------ //
+	
+	public void writeBooleanMap(BooleanMap b) throws IOException
+	{
+		this.ensure(1);
+		this.buffer.put(MapFormat.BOOLEAN_MAP);
+		this.writeBooleanBody(b);
+	}
+	
+	/**
+	 * Writes {@code c}. If c is an {@link AnimatedCharMap}, its frames are
+	 * written too, and it is read back as one.
+	 */
+	public void writeCharMap(CharMap c) throws IOException
+	{
+		this.ensure(1);
+		this.buffer.put(MapFormat.CHAR_MAP);
+		this.writeCharBody(c);
+	}
+	
+	public void flush() throws IOException
+	{
+		this.buffer.flip();
+		while (this.buffer.hasRemaining()) this.channel.write(this.buffer);
+		this.buffer.clear();
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			this.flush();
+		}
+		finally
+		{
+			this.channel.close();
+		}
+	}
+	
+	// ------------------------------------------------ BODY METHODS
+	// ------------------------------------------------ //
+	
+	private void writeCharBody(CharMap c) throws IOException
+	{
+		AnimatedCharMap animation = c instanceof AnimatedCharMap ? (AnimatedCharMap) c : null;
+		this.ensure(1);
+		this.buffer.put((byte) (animation != null ? MapFormat.HAS_FRAMES : 0));
+		this.writeVarInt(c.getXCapacity());
+		this.writeVarInt(c.getYCapacity());
+		this.writeSignedVarInt(c.getXOffset());
+		this.writeSignedVarInt(c.getYOffset());
+		this.writeSignedVarInt(c.getAlphaXOffset());
+		this.writeSignedVarInt(c.getAlphaYOffset());
+		
+		if (this.row.length < c.getXCapacity()) this.row = new char[c.getXCapacity()];
+		for (int y = 0; y < c.getYCapacity(); y++)
+		{
+			c.readRun(y * c.getStride(), this.row, 0, c.getXCapacity());
+			this.writeCharRow(this.row, c.getXCapacity());
+		}
+		this.writeBooleanBody(c.getAlphaMap());
+		
+		if (animation != null)
+		{
+			this.writeVarInt(animation.getCurrentFrame());
+			this.writeVarInt(animation.getNoOfFrames());
+			for (int i = 0; i < animation.getNoOfFrames(); i++)
+			{
+				CharMap frame = animation.getFrameAt(i);
+				this.ensure(1);
+				this.buffer.put((byte) (frame != null ? 1 : 0));
+				if (frame != null) this.writeCharBody(frame);
+			}
+		}
+	}
+	
+	// Splits a row into runs of one repeated char and literals of everything
+	// between them
+	
+	private void writeCharRow(char[] row, int length) throws IOException
+	{
+		int literal = 0;
+		int x = 0;
+		while (x < length)
+		{
+			int end = x + 1;
+			while (end < length && row[end] == row[x]) end++;
+			if (end - x < MapFormat.MIN_RUN)
+			{
+				x = end;
+				continue;
+			}
+			
+			this.writeLiteral(row, literal, x);
+			this.writeVarInt((end - x) << 1 | 1);
+			this.writeVarInt(row[x]);
+			x = end;
+			literal = end;
+		}
+		this.writeLiteral(row, literal, length);
+	}
+	
+	private void writeLiteral(char[] row, int start, int end) throws IOException
+	{
+		if (start == end) return;
+		this.writeVarInt((end - start) << 1);
+		for (int x = start; x < end; x++) this.writeVarInt(row[x]);
+	}
+	
+	private void writeBooleanBody(BooleanMap b) throws IOException
+	{
+		int xCapacity = b.getXCapacity();
+		this.writeVarInt(xCapacity);
+		this.writeVarInt(b.getYCapacity());
+		this.writeSignedVarInt(b.getXOffset());
+		this.writeSignedVarInt(b.getYOffset());
+		if (this.boundaries.length < xCapacity + 1) this.boundaries = new int[xCapacity + 1];
+		
+		// Size up the runs first, to see whether they beat the packed bits
+		long runBytes = 0;
+		for (int y = 0; y < b.getYCapacity(); y++)
+		{
+			int count = MapWriter.boundariesOf(b, y, this.boundaries);
+			runBytes += MapWriter.varIntBytes(count >>> 1);
+			for (int i = 0, x = 0; i < count; x = this.boundaries[i++])
+				runBytes += MapWriter.varIntBytes(this.boundaries[i] - x);
+		}
+		boolean runs = runBytes < (long) ((xCapacity + 7) >>> 3) * b.getYCapacity();
+		
+		this.ensure(1);
+		this.buffer.put(runs ? MapFormat.RUNS : MapFormat.PACKED);
+		for (int y = 0; y < b.getYCapacity(); y++)
+			if (runs)
+			{
+				int count = MapWriter.boundariesOf(b, y, this.boundaries);
+				this.writeVarInt(count >>> 1);
+				for (int i = 0, x = 0; i < count; x = this.boundaries[i++]) this.writeVarInt(this.boundaries[i] - x);
+			}
+			else for (int x = 0; x < xCapacity; x += 64)
+			{
+				long word = b.getWord(y, x >>> 6);
+				int bytes = Math.min(8, (xCapacity - x + 7) >>> 3);
+				this.ensure(bytes);
+				for (int i = 0; i < bytes; i++) this.buffer.put((byte) (word >>> (i << 3)));
+			}
+	}
+	
+	// Fills boundaries with the start and end of each run of set cells in row y,
+	// returning the number of boundaries
+	
+	private static int boundariesOf(BooleanMap b, int y, int[] boundaries)
+	{
+		int count = 0;
+		boolean set = false;
+		for (int x = 0; x < b.getXCapacity(); x += 64)
+		{
+			long word = b.getWord(y, x >>> 6);
+			// Flip the word so its set bits mark the next boundary to find
+			long bits = set ? ~word : word;
+			int bit = 0;
+			while (bit < 64)
+			{
+				long remaining = bits & (-1L << bit);
+				if (remaining == 0) break;
+				bit = Long.numberOfTrailingZeros(remaining);
+				int position = x + bit;
+				if (position >= b.getXCapacity()) break;
+				boundaries[count++] = position;
+				set = !set;
+				bits = ~bits;
+			}
+		}
+		if (set) boundaries[count++] = b.getXCapacity();
+		return count;
+	}
+	
+	// ------------------------------------------------ PRIMITIVE METHODS
+	// ------------------------------------------------ //
+	
+	private void ensure(int bytes) throws IOException
+	{ if (this.buffer.remaining() < bytes) this.flush(); }
+	
+	private void writeVarInt(int i) throws IOException
+	{
+		this.ensure(5);
+		while ((i & ~0x7F) != 0)
+		{
+			this.buffer.put((byte) (i & 0x7F | 0x80));
+			i >>>= 7;
+		}
+		this.buffer.put((byte) i);
+	}
+	
+	private void writeSignedVarInt(int i) throws IOException
+	{ this.writeVarInt(i << 1 ^ i >> 31); }
+	
+	private static int varIntBytes(int i)
+	{ return (38 - Integer.numberOfLeadingZeros(i | 1)) / 7; }
+	
+}
\ No newline at end of file
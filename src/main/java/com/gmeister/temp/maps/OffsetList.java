@@ -0,0 +1,121 @@
+package com.gmeister.temp.maps;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * The offsets of the layers of a {@link CharMapStack}, held as two parallel
+ * arrays of ints. Compositing reads the ints directly, so moving a layer every
+ * frame allocates nothing. As a {@link java.util.List}, each offset is built as
+ * a {@link ReferencePoint} only when it is read.
+ *
+ * @author The_G_Meister
+ */
+final class OffsetList extends AbstractList<ReferencePoint> implements RandomAccess
+{
+	
+	private int[] x;
+	private int[] y;
+	private int size;
+	
+	// ------------------------------------------------ CONSTRUCTORS
+	// ------------------------------------------------ //
+	
+	public OffsetList(int capacity)
+	{
+		this.x = new int[capacity];
+		this.y = new int[capacity];
+	}
+	
+	// ------------------------------------------------ INT METHODS
+	// ------------------------------------------------ //
+	
+	// Layers past the end of the list are at (0,0)
+	
+	int getX(int index)
+	{ return index < this.size ? this.x[index] : 0; }
+	
+	int getY(int index)
+	{ return index < this.size ? this.y[index] : 0; }
+	
+	void set(int index, int x, int y)
+	{
+		this.checkIndex(index);
+		this.x[index] = x;
+		this.y[index] = y;
+	}
+	
+	void add(int index, int x, int y)
+	{
+		if (index < 0 || index > this.size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+		if (this.size == this.x.length)
+		{
+			this.x = Arrays.copyOf(this.x, Math.max(4, this.size * 2));
+			this.y = Arrays.copyOf(this.y, this.x.length);
+		}
+		System.arraycopy(this.x, index, this.x, index + 1, this.size - index);
+		System.arraycopy(this.y, index, this.y, index + 1, this.size - index);
+		this.x[index] = x;
+		this.y[index] = y;
+		this.size++;
+		this.modCount++;
+	}
+	
+	// Cuts the list down to its first size offsets
+	
+	void truncate(int size)
+	{
+		if (size >= this.size) return;
+		this.size = size;
+		this.modCount++;
+	}
+	
+	private void checkIndex(int index)
+	{
+		if (index < 0 || index >= this.size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+	}
+	
+	// ------------------------------------------------ LIST METHODS
+	// ------------------------------------------------ //
+	
+	@Override
+	public ReferencePoint get(int index)
+	{
+		this.checkIndex(index);
+		if (this.x[index] == 0 && this.y[index] == 0) return ReferencePoint.ORIGIN;
+		return new ReferencePoint(this.x[index], this.y[index]);
+	}
+	
+	@Override
+	public ReferencePoint set(int index, ReferencePoint offset)
+	{
+		ReferencePoint old = this.get(index);
+		this.set(index, offset.getX(), offset.getY());
+		return old;
+	}
+	
+	@Override
+	public void add(int index, ReferencePoint offset)
+	{ this.add(index, offset.getX(), offset.getY()); }
+	
+	@Override
+	public ReferencePoint remove(int index)
+	{
+		ReferencePoint old = this.get(index);
+		System.arraycopy(this.x, index + 1, this.x, index, this.size - index - 1);
+		System.arraycopy(this.y, index + 1, this.y, index, this.size - index - 1);
+		this.size--;
+		this.modCount++;
+		return old;
+	}
+	
+	@Override
+	public void clear()
+	{ this.truncate(0); }
+	
+	@Override
+	public int size()
+	{ return this.size; }
+	
+}
\ No newline at end of file
@@ -3,6 +3,9 @@ package com.gmeister.temp.maps;
 public final class ReferencePoint
 {
 	
+	// Points are immutable, so (0,0) can be shared rather than allocated each time
+	public static final ReferencePoint ORIGIN = new ReferencePoint();
+	
 	private final int x;
 	private final int y;
 	
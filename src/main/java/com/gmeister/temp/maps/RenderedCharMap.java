@@ -3,6 +3,8 @@ package com.gmeister.temp.maps;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import com.gmeister.temp.pipe.input.InputAction;
 import com.gmeister.temp.pipe.input.InputData;
@@ -10,14 +12,45 @@ import com.gmeister.temp.pipe.input.InputSink;
 import com.gmeister.temp.pipe.time.TimeData;
 import com.gmeister.temp.pipe.time.TimeSink;
 
+/**
+ * A {@link CharMap} which plays queued animations and responds to input.
+ * <p>
+ * Each frame of an animation can be given a duration. The map keeps the
+ * {@link System#nanoTime()} at which its next frame is due, and is only
+ * {@link #isReadyFor(TimeData) ready} once that time has passed, so a
+ * {@link com.gmeister.temp.pipe.time.TimeManager TimeManager} need only wake maps whose next frame is due. Frames
+ * queued without durations are shown one per tick. Many maps can share an
+ * {@link AnimationScheduler}, which wakes only the due ones.
+ * <p>
+ * Input is passed to the map's actions as it arrives, on the thread it arrives
+ * on. Given an {@link InputQueue}, input is queued instead and passed on by
+ * {@link #dispatchInput()}, which is run at each tick, so input can arrive on
+ * one thread while the map renders on another. The list of actions can be
+ * edited from any thread.
+ *
+ * @author The_G_Meister
+ */
 public class RenderedCharMap extends CharMap implements TimeSink, InputSink
 {
 	
 	private List<List<CharMap>> renderQueue;
+	// The durations of the frames of renderQueue's animation in nanoseconds, or
+	// null if it has none
+	private List<Long> frameDurations;
 	private List<InputAction> inputActions;
+	private volatile InputQueue inputQueue;
 	private boolean hidden;
 	private CharMap lastMap;
 	
+	// The nanoTime at which the next frame is due
+	private long dueTime;
+	AnimationScheduler scheduler;
+	int scheduleIndex;
+	
+	// The stacks holding this map, once for each place it is held in, or null
+	private CharMapStack[] owners;
+	private int ownerCount;
+	
 	// ------------------------------------------------ CONTRUCTORS
 	// ------------------------------------------------ //
 	
@@ -26,9 +59,10 @@ public class RenderedCharMap extends CharMap implements TimeSink, InputSink
 		super();
 		
 		this.renderQueue = new ArrayList<>();
-		this.inputActions = new ArrayList<>();
+		this.inputActions = new CopyOnWriteArrayList<>();
 		this.hidden = false;
 		this.lastMap = null;
+		this.scheduleIndex = -1;
 	}
 	
 	public RenderedCharMap(CharMap map, InputAction... inputActions)
@@ -37,9 +71,10 @@ public class RenderedCharMap extends CharMap implements TimeSink, InputSink
 		this.setTo(map);
 		
 		this.renderQueue = new ArrayList<>();
-		this.inputActions = new ArrayList<>(Arrays.asList(inputActions));
+		this.inputActions = new CopyOnWriteArrayList<>(inputActions);
 		this.hidden = false;
 		this.lastMap = null;
+		this.scheduleIndex = -1;
 	}
 	
 	// ------------------------------------------------ RENDERING AND TIMER METHODS
@@ -62,18 +97,44 @@ public class RenderedCharMap extends CharMap implements TimeSink, InputSink
 	public void queueAnimation(CharMap c)
 	{ this.queueAnimation(new ArrayList<>(Arrays.asList(c))); }
 	
+	// Replaces the queued animation. Its frames are shown one per tick, starting
+	// with the next
+	
 	public void queueAnimation(List<CharMap> maps)
 	{
 		if (this.renderQueue.size() == 0) this.renderQueue.add(maps);
 		else this.renderQueue.set(0, maps);
+		this.frameDurations = null;
+		this.restartClock();
 	}
 	
+	/**
+	 * Replaces the queued animation. The first frame is due at once, and each
+	 * frame is shown for its duration before the next is due.
+	 *
+	 * @param maps the frames to show, in order
+	 * @param durations how long to show each frame for, in milliseconds
+	 */
 	public void queueAnimation(List<CharMap> maps, List<Long> durations)
 	{
-		//TODO
+		if (maps.size() != durations.size())
+			throw new IllegalArgumentException("There are " + maps.size() + " frames but " + durations.size() + " durations");
 		
+		List<Long> nanos = new ArrayList<>(durations.size());
+		for (Long duration : durations) nanos.add(TimeUnit.MILLISECONDS.toNanos(duration));
+		if (this.renderQueue.size() == 0) this.renderQueue.add(new ArrayList<>(maps));
+		else this.renderQueue.set(0, new ArrayList<>(maps));
+		this.frameDurations = nanos;
+		this.restartClock();
 	}
 	
+	/**
+	 * Gets the number of frames of the queued animation which have not been shown
+	 * yet.
+	 */
+	public int getCurrentAnimationLength()
+	{ return this.renderQueue.size() == 0 ? 0 : this.renderQueue.get(0).size(); }
+	
 	public void setHidden(boolean hidden)
 	{
 		this.hidden = hidden;
@@ -89,10 +150,22 @@ public class RenderedCharMap extends CharMap implements TimeSink, InputSink
 	public boolean isHidden()
 	{ return hidden; }
 	
+	/**
+	 * Passes on any queued input, then shows the next queued frame if it is due.
+	 */
 	@Override
 	public void poolTimeData(TimeData data)
 	{
-		//TODO does not use time data
+		this.dispatchInput();
+		if (this.isReadyFor(data)) this.render();
+	}
+	
+	/**
+	 * Shows the next queued frame at once, whether or not it is due, and
+	 * schedules the frame after it.
+	 */
+	public void render()
+	{
 		if (this.renderQueue.size() > 0)
 		{
 			List<CharMap> animation = this.renderQueue.get(0);
@@ -102,18 +175,75 @@ public class RenderedCharMap extends CharMap implements TimeSink, InputSink
 			if (this.hidden) this.lastMap.setTo(frame);
 			else this.setTo(frame);
 			
-			animation.remove(frame);
+			animation.remove(0);
+			long duration = this.frameDurations == null ? 0 : this.frameDurations.remove(0);
 			if (animation.size() == 0) this.renderQueue.remove(0);
+			this.advanceClock(duration);
 		}
 	}
 	
+	// TimeData carries no time this class can read or build, so the cooldown is
+	// kept on the map's own clock. See getCooldownNanos()
+	
 	@Override
 	public TimeData getCooldown(TimeData time)
 	{ return null; }
 	
+	/**
+	 * Gets whether the next queued frame is due.
+	 */
 	@Override
 	public boolean isReadyFor(TimeData data)
-	{ return false; }
+	{ return this.isDueAt(System.nanoTime()); }
+	
+	/**
+	 * Gets the time until the next queued frame is due.
+	 *
+	 * @return the nanoseconds until the next frame is due, {@code 0} if it is
+	 *         already due, or {@link Long#MAX_VALUE} if no frames are queued
+	 */
+	public long getCooldownNanos()
+	{
+		if (this.getCurrentAnimationLength() == 0) return Long.MAX_VALUE;
+		return Math.max(0, this.dueTime - System.nanoTime());
+	}
+	
+	boolean isDueAt(long now)
+	{ return this.getCurrentAnimationLength() > 0 && now - this.dueTime >= 0; }
+	
+	long getDueTime()
+	{ return this.dueTime; }
+	
+	// Shows the next frame if it is due at now, returning whether anything was
+	// shown. Lets a stack tick all of its layers against one reading of the clock
+	
+	boolean tick(long now)
+	{
+		this.dispatchInput();
+		if (!this.isDueAt(now)) return false;
+		this.render();
+		return true;
+	}
+	
+	// Makes the next frame due now, for a newly queued animation
+	
+	void restartClock()
+	{
+		this.dueTime = System.nanoTime();
+		if (this.scheduler != null) this.scheduler.reschedule(this);
+	}
+	
+	// Makes the next frame due duration nanoseconds after the last one was, so
+	// late ticks do not add up. A map still behind after that restarts its clock
+	// from now rather than making up the lost time
+	
+	void advanceClock(long duration)
+	{
+		long now = System.nanoTime();
+		this.dueTime += duration;
+		if (now - this.dueTime > 0) this.dueTime = now;
+		if (this.scheduler != null) this.scheduler.reschedule(this);
+	}
 	
 	@Override
 	public List<String> getTags()
@@ -123,9 +253,74 @@ public class RenderedCharMap extends CharMap implements TimeSink, InputSink
 	public List<InputAction> getActions()
 	{ return this.inputActions; }
 	
-	//TODO make this better
+	/**
+	 * Passes {@code data} to the map's actions, or queues it if the map has an
+	 * {@link InputQueue}. Input which does not fit in the queue is dropped.
+	 */
 	@Override
 	public void poolInput(InputData data)
-	{ for (InputAction action : this.inputActions) action.act(data); }
+	{
+		InputQueue queue = this.inputQueue;
+		if (queue != null) queue.offer(data);
+		else for (InputAction action : this.inputActions) action.act(data);
+	}
+	
+	/**
+	 * Passes the input queued since the last call to the map's actions, on the
+	 * calling thread. Does nothing if the map has no {@link InputQueue}.
+	 *
+	 * @return the number of inputs passed on
+	 */
+	public int dispatchInput()
+	{
+		InputQueue queue = this.inputQueue;
+		return queue == null ? 0 : queue.drain(this.inputActions);
+	}
+	
+	/**
+	 * Sets the queue input is held in until the map is ticked. Input already
+	 * queued in the old queue is passed on first.
+	 *
+	 * @param queue the queue to use, or {@code null} to pass input on as it
+	 *        arrives
+	 */
+	public void setInputQueue(InputQueue queue)
+	{
+		this.dispatchInput();
+		this.inputQueue = queue;
+	}
+	
+	public InputQueue getInputQueue()
+	{ return this.inputQueue; }
+	
+	// ------------------------------------------------ OWNER METHODS
+	// ------------------------------------------------ //
+	
+	// Stacks register themselves as they take a map in and out, so that changes
+	// deep in a tree of stacks reach the stacks above them
+	
+	void addOwner(CharMapStack stack)
+	{
+		if (this.owners == null) this.owners = new CharMapStack[2];
+		else if (this.ownerCount == this.owners.length) this.owners = Arrays.copyOf(this.owners, this.ownerCount * 2);
+		this.owners[this.ownerCount++] = stack;
+	}
+	
+	void removeOwner(CharMapStack stack)
+	{
+		for (int i = 0; i < this.ownerCount; i++) if (this.owners[i] == stack)
+		{
+			this.owners[i] = this.owners[--this.ownerCount];
+			this.owners[this.ownerCount] = null;
+			return;
+		}
+	}
+	
+	void notifyOwners()
+	{ for (int i = 0; i < this.ownerCount; i++) this.owners[i].markStale(); }
+	
+	@Override
+	void damaged()
+	{ this.notifyOwners(); }
 	
 }
\ No newline at end of file
@@ -0,0 +1,217 @@
+package com.gmeister.temp.maps;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds one copy of each distinct {@link CharMap} and {@link BooleanMap} given
+ * to it, found by hashing the char plane and alpha plane. Maps interned with
+ * the same content share that one copy, so a screen of identical widgets holds
+ * each of their frames once. Sharing is copy-on-write: a shared map copies its
+ * cells the first time it is changed, so changes through one map never show in
+ * the others.
+ * <p>
+ * An {@link AnimatedCharMap} given an atlas interns its frames, and shows each
+ * by sharing it rather than copying it in. Two maps are the same content only
+ * if their capacities and offsets match as well as their cells.
+ * <p>
+ * The atlas keeps every interned content until {@link #clear()} is called. Not
+ * thread-safe.
+ *
+ * @author The_G_Meister
+ */
+public final class SpriteAtlas
+{
+	
+	// Wraps a map so that it is hashed and compared by content
+	
+	private class Key
+	{
+		
+		private final int hash;
+		private final Object content;
+		
+		public Key(int hash, Object content)
+		{
+			this.hash = hash;
+			this.content = content;
+		}
+		
+		@Override
+		public int hashCode()
+		{ return this.hash; }
+		
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			if (this.hash != k.hash) return false;
+			if (this.content instanceof CharMap)
+				return k.content instanceof CharMap && SpriteAtlas.this.isSameContent((CharMap) this.content, (CharMap) k.content);
+			return k.content instanceof BooleanMap
+					&& SpriteAtlas.isSameContent((BooleanMap) this.content, (BooleanMap) k.content);
+		}
+		
+	}
+	
+	private final Map<Key, CharMap> maps;
+	private final Map<Key, BooleanMap> alphas;
+	private char[] rowA;
+	private char[] rowB;
+	
+	// ------------------------------------------------ CONSTRUCTORS
+	// ------------------------------------------------ //
+	
+	public SpriteAtlas()
+	{
+		this.maps = new HashMap<>();
+		this.alphas = new HashMap<>();
+		this.rowA = new char[0];
+		this.rowB = new char[0];
+	}
+	
+	// ------------------------------------------------ INTERNING METHODS
+	// ------------------------------------------------ //
+	
+	/**
+	 * Gets a map with the same content as {@code c}, sharing the atlas's copy of
+	 * it. {@code c} is copied into the atlas if nothing with its content has been
+	 * interned before. Later changes to c do not affect the atlas.
+	 *
+	 * @return a new map, which copies its cells before it is first changed
+	 */
+	public CharMap intern(CharMap c)
+	{
+		CharMap output = new CharMap();
+		output.setTo(this.canonical(c));
+		return output;
+	}
+	
+	/**
+	 * Gets a map with the same cells as {@code b}, sharing the atlas's copy of
+	 * them, as {@link #intern(CharMap)} does.
+	 */
+	public BooleanMap intern(BooleanMap b)
+	{ return this.canonical(b).share(); }
+	
+	/**
+	 * Gets the number of distinct char maps held.
+	 */
+	public int getCharMapCount()
+	{ return this.maps.size(); }
+	
+	/**
+	 * Gets the number of distinct alpha planes held, including those of the char
+	 * maps.
+	 */
+	public int getBooleanMapCount()
+	{ return this.alphas.size(); }
+	
+	/**
+	 * Lets go of every interned content. Maps already sharing it keep it.
+	 */
+	public void clear()
+	{
+		this.maps.clear();
+		this.alphas.clear();
+	}
+	
+	// Gets the atlas's own copy of c's content, which must never be changed. Its
+	// alpha map is interned too, so maps of the same shape share their alpha
+	// planes even when their chars differ
+	
+	CharMap canonical(CharMap c)
+	{
+		Key key = new Key(this.hashOf(c), c);
+		CharMap canonical = this.maps.get(key);
+		if (canonical != null) return canonical;
+		
+		canonical = CharMap.copyOf(c);
+		canonical.setBooleanMap(this.canonical(c.getAlphaMap()).share());
+		this.maps.put(new Key(key.hash, canonical), canonical);
+		return canonical;
+	}
+	
+	BooleanMap canonical(BooleanMap b)
+	{
+		Key key = new Key(SpriteAtlas.hashOf(b), b);
+		BooleanMap canonical = this.alphas.get(key);
+		if (canonical != null) return canonical;
+		
+		canonical = BooleanMap.copOf(b);
+		canonical.compact();
+		this.alphas.put(new Key(key.hash, canonical), canonical);
+		return canonical;
+	}
+	
+	// ------------------------------------------------ CONTENT METHODS
+	// ------------------------------------------------ //
+	
+	private int hashOf(CharMap c)
+	{
+		int hash = c.getXCapacity();
+		hash = 31 * hash + c.getYCapacity();
+		hash = 31 * hash + c.getXOffset();
+		hash = 31 * hash + c.getYOffset();
+		hash = 31 * hash + c.getAlphaXOffset();
+		hash = 31 * hash + c.getAlphaYOffset();
+		
+		this.ensureRows(c.getXCapacity());
+		for (int y = 0; y < c.getYCapacity(); y++)
+		{
+			c.readRun(y * c.getStride(), this.rowA, 0, c.getXCapacity());
+			for (int x = 0; x < c.getXCapacity(); x++) hash = 31 * hash + this.rowA[x];
+		}
+		return 31 * hash + SpriteAtlas.hashOf(c.getAlphaMap());
+	}
+	
+	private static int hashOf(BooleanMap b)
+	{
+		int hash = b.getXCapacity();
+		hash = 31 * hash + b.getYCapacity();
+		hash = 31 * hash + b.getXOffset();
+		hash = 31 * hash + b.getYOffset();
+		for (int y = 0; y < b.getYCapacity(); y++) for (int i = 0; i < BooleanMap.strideOf(b.getXCapacity()); i++)
+		{
+			long word = b.getWord(y, i);
+			hash = 31 * hash + (int) (word ^ word >>> 32);
+		}
+		return hash;
+	}
+	
+	private boolean isSameContent(CharMap a, CharMap b)
+	{
+		if (a.getXCapacity() != b.getXCapacity() || a.getYCapacity() != b.getYCapacity()
+				|| a.getXOffset() != b.getXOffset() || a.getYOffset() != b.getYOffset()
+				|| a.getAlphaXOffset() != b.getAlphaXOffset() || a.getAlphaYOffset() != b.getAlphaYOffset())
+			return false;
+		
+		this.ensureRows(a.getXCapacity());
+		for (int y = 0; y < a.getYCapacity(); y++)
+		{
+			a.readRun(y * a.getStride(), this.rowA, 0, a.getXCapacity());
+			b.readRun(y * b.getStride(), this.rowB, 0, b.getXCapacity());
+			for (int x = 0; x < a.getXCapacity(); x++) if (this.rowA[x] != this.rowB[x]) return false;
+		}
+		return SpriteAtlas.isSameContent(a.getAlphaMap(), b.getAlphaMap());
+	}
+	
+	private static boolean isSameContent(BooleanMap a, BooleanMap b)
+	{
+		if (a.getXCapacity() != b.getXCapacity() || a.getYCapacity() != b.getYCapacity()
+				|| a.getXOffset() != b.getXOffset() || a.getYOffset() != b.getYOffset())
+			return false;
+		for (int y = 0; y < a.getYCapacity(); y++) for (int i = 0; i < BooleanMap.strideOf(a.getXCapacity()); i++)
+			if (a.getWord(y, i) != b.getWord(y, i)) return false;
+		return true;
+	}
+	
+	private void ensureRows(int length)
+	{
+		if (this.rowA.length >= length) return;
+		this.rowA = new char[length];
+		this.rowB = new char[length];
+	}
+	
+}
\ No newline at end of file
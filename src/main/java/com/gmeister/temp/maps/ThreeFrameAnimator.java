@@ -49,6 +49,9 @@ public abstract class ThreeFrameAnimator extends AnimatedCharMap
 	public ThreeFrameAnimator(CharMap base, CharMap hover, CharMap use)
 	{ super(base, hover, use); }
 	
+	public ThreeFrameAnimator(SpriteAtlas atlas, CharMap base, CharMap hover, CharMap use)
+	{ super(atlas, base, hover, use); }
+	
 	// ------------------------------------------------ ABSTRACT METHODS
 	// ------------------------------------------------ //
 	
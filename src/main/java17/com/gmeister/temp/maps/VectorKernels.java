@@ -0,0 +1,113 @@
+package com.gmeister.temp.maps;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The loops of {@link Kernels} run on the widest vectors the CPU has, so that a
+ * 256-bit unit merges 256 cells of a mask and blends 16 chars at a time. Chars
+ * are loaded as {@code short} lanes, and a char blend selects lanes by a
+ * {@link VectorMask} built from the bits of the alpha mask. The tail past the
+ * last whole vector is left to the scalar loops.
+ * <p>
+ * Only loaded by {@link Kernels#INSTANCE}, and only when the
+ * {@code jdk.incubator.vector} module is present.
+ *
+ * @author The_G_Meister
+ */
+final class VectorKernels extends Kernels
+{
+	
+	private static final VectorSpecies<Long> WORDS = LongVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Short> CHARS = ShortVector.SPECIES_PREFERRED;
+	// The bits of a blend mask covering one vector of chars
+	private static final long LANES = VectorKernels.CHARS.length() == 64 ? -1L : (1L << VectorKernels.CHARS.length()) - 1;
+	
+	// ------------------------------------------------ KERNEL METHODS
+	// ------------------------------------------------ //
+	
+	@Override
+	void invert(long[] words, int offset, int length)
+	{
+		int i = 0;
+		for (int bound = VectorKernels.WORDS.loopBound(length); i < bound; i += VectorKernels.WORDS.length())
+			LongVector.fromArray(VectorKernels.WORDS, words, offset + i).not().intoArray(words, offset + i);
+		super.invert(words, offset + i, length - i);
+	}
+	
+	@Override
+	void merge(byte mode, long[] a, int aOffset, long[] b, int bOffset, int length)
+	{
+		int i = 0;
+		for (int bound = VectorKernels.WORDS.loopBound(length); i < bound; i += VectorKernels.WORDS.length())
+		{
+			LongVector va = LongVector.fromArray(VectorKernels.WORDS, a, aOffset + i);
+			LongVector vb = LongVector.fromArray(VectorKernels.WORDS, b, bOffset + i);
+			VectorKernels.apply(mode, va, vb).intoArray(a, aOffset + i);
+		}
+		super.merge(mode, a, aOffset + i, b, bOffset + i, length - i);
+	}
+	
+	// As BooleanMap.apply, one lane of 64 cells at a time
+	
+	private static LongVector apply(byte mode, LongVector a, LongVector b)
+	{
+		switch (mode)
+		{
+			case BooleanMap.AND:
+				return a.and(b);
+			case BooleanMap.OR:
+				return a.or(b);
+			case BooleanMap.XOR:
+				return a.lanewise(VectorOperators.XOR, b);
+			case BooleanMap.NAND:
+				return a.and(b).not();
+			case BooleanMap.NOR:
+				return a.or(b).not();
+			case BooleanMap.XNOR:
+				return a.lanewise(VectorOperators.XOR, b).not();
+			default:
+			{
+				LongVector output = LongVector.zero(VectorKernels.WORDS);
+				if ((mode & 0b1000) != 0) output = output.or(a.or(b).not());
+				if ((mode & 0b0100) != 0) output = output.or(b.lanewise(VectorOperators.AND_NOT, a));
+				if ((mode & 0b0010) != 0) output = output.or(a.lanewise(VectorOperators.AND_NOT, b));
+				if ((mode & 0b0001) != 0) output = output.or(a.and(b));
+				return output;
+			}
+		}
+	}
+	
+	@Override
+	void fill(char[] chars, int offset, int length, char c)
+	{
+		ShortVector v = ShortVector.broadcast(VectorKernels.CHARS, (short) c);
+		int i = 0;
+		for (int bound = VectorKernels.CHARS.loopBound(length); i < bound; i += VectorKernels.CHARS.length())
+			v.intoCharArray(chars, offset + i);
+		super.fill(chars, offset + i, length - i, c);
+	}
+	
+	@Override
+	void blend(char[] target, int targetOffset, char[] source, int sourceOffset, long mask, int length)
+	{
+		int i = 0;
+		for (int bound = VectorKernels.CHARS.loopBound(length); i < bound && mask != 0; i += VectorKernels.CHARS.length())
+		{
+			long lanes = mask & VectorKernels.LANES;
+			mask = VectorKernels.LANES == -1L ? 0 : mask >>> VectorKernels.CHARS.length();
+			if (lanes == 0) continue;
+			
+			// Whole vectors of rendered cells need no blend
+			ShortVector v = ShortVector.fromCharArray(VectorKernels.CHARS, source, sourceOffset + i);
+			if (lanes != VectorKernels.LANES) v = ShortVector.fromCharArray(VectorKernels.CHARS, target, targetOffset + i)
+					.blend(v, VectorMask.fromLong(VectorKernels.CHARS, lanes));
+			v.intoCharArray(target, targetOffset + i);
+		}
+		if (mask != 0) super.blend(target, targetOffset + i, source, sourceOffset + i, mask, length - i);
+	}
+	
+}
\ No newline at end of file
@@ -0,0 +1,151 @@
+package com.gmeister.temp.maps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that a map held packed and the same map held as runs give the same
+ * results, whichever form each side of a merge is in.
+ *
+ * @author The_G_Meister
+ */
+public class BooleanMapFormTest
+{
+	
+	private final Random random = new Random(0);
+	
+	// A filled rectangle with holes punched in it, large enough that compact()
+	// holds it as runs
+	
+	private BooleanMap blocky(int xCapacity, int yCapacity)
+	{
+		BooleanMap output = new BooleanMap(xCapacity, yCapacity, false);
+		output.merge(new BooleanMap(xCapacity - xCapacity / 3, yCapacity - yCapacity / 3, true), xCapacity / 7,
+				yCapacity / 5);
+		for (int i = 0; i < 20; i++) output.invertMapAt(this.random.nextInt(xCapacity), this.random.nextInt(yCapacity));
+		return output;
+	}
+	
+	private static BooleanMap packed(BooleanMap b)
+	{
+		BooleanMap output = BooleanMap.copOf(b);
+		output.toDense();
+		assertFalse(output.isRunLengthEncoded());
+		return output;
+	}
+	
+	private static BooleanMap runs(BooleanMap b)
+	{
+		BooleanMap output = BooleanMap.copOf(b);
+		output.compact();
+		assertTrue(output.isRunLengthEncoded());
+		return output;
+	}
+	
+	private static void assertSameCells(BooleanMap expected, BooleanMap actual)
+	{
+		assertEquals(expected.getXCapacity(), actual.getXCapacity());
+		assertEquals(expected.getYCapacity(), actual.getYCapacity());
+		assertEquals(expected.getXOffset(), actual.getXOffset());
+		assertEquals(expected.getYOffset(), actual.getYOffset());
+		for (int y = 0; y < expected.getYCapacity(); y++) for (int x = 0; x < expected.getXCapacity(); x++)
+			assertEquals("cell " + x + ", " + y, expected.getMapAt(x, y), actual.getMapAt(x, y));
+		assertEquals(expected.getMapAreaCoefficient(), actual.getMapAreaCoefficient(), 0.0);
+	}
+	
+	@Test
+	public void bothFormsHoldTheSameCells()
+	{
+		BooleanMap b = this.blocky(640, 100);
+		BooleanMap packed = BooleanMapFormTest.packed(b);
+		BooleanMap runs = BooleanMapFormTest.runs(b);
+		BooleanMapFormTest.assertSameCells(packed, runs);
+		assertEquals(packed.toString(), runs.toString());
+		
+		packed.setOffset(5, -3);
+		runs.setOffset(5, -3);
+		for (int y = -3; y < 97; y++) for (int x = 5; x < 645; x++)
+			assertEquals("cell " + x + ", " + y, packed.getAt(x, y), runs.getAt(x, y));
+	}
+	
+	@Test
+	public void mergesMatchAcrossForms()
+	{
+		BooleanMap a = this.blocky(640, 100);
+		BooleanMap b = this.blocky(640, 100);
+		int[][] offsets = {{0, 0}, {64, 10}, {3, 1}, {-17, -5}, {500, 70}};
+		
+		for (int mode = 0; mode <= 0b1111; mode++) for (int[] offset : offsets)
+		{
+			BooleanMap expected = BooleanMapFormTest.packed(a);
+			expected.merge(BooleanMapFormTest.packed(b), offset[0], offset[1], (byte) mode);
+			
+			BooleanMap[] targets = {BooleanMapFormTest.packed(a), BooleanMapFormTest.runs(a)};
+			BooleanMap[] sources = {BooleanMapFormTest.packed(b), BooleanMapFormTest.runs(b)};
+			for (BooleanMap target : targets) for (BooleanMap source : sources)
+			{
+				BooleanMap actual = BooleanMap.copOf(target);
+				boolean form = actual.isRunLengthEncoded();
+				actual.merge(source, offset[0], offset[1], (byte) mode);
+				BooleanMapFormTest.assertSameCells(expected, actual);
+				assertEquals("merge kept its form", form, actual.isRunLengthEncoded());
+			}
+		}
+	}
+	
+	@Test
+	public void editsMatchAcrossForms()
+	{
+		BooleanMap b = this.blocky(640, 100);
+		BooleanMap packed = BooleanMapFormTest.packed(b);
+		BooleanMap runs = BooleanMapFormTest.runs(b);
+		
+		packed.invert();
+		runs.invert();
+		BooleanMapFormTest.assertSameCells(packed, runs);
+		
+		for (int i = 0; i < 200; i++)
+		{
+			int x = this.random.nextInt(640);
+			int y = this.random.nextInt(100);
+			boolean set = this.random.nextBoolean();
+			packed.setMapAt(x, y, set);
+			runs.setMapAt(x, y, set);
+			x = this.random.nextInt(640);
+			y = this.random.nextInt(100);
+			packed.invertMapAt(x, y);
+			runs.invertMapAt(x, y);
+		}
+		BooleanMapFormTest.assertSameCells(packed, runs);
+		assertTrue(runs.isRunLengthEncoded());
+		
+		packed.translate(-70, 9);
+		runs.translate(-70, 9);
+		BooleanMapFormTest.assertSameCells(packed, runs);
+		
+		packed.fill(true);
+		runs.fill(true);
+		BooleanMapFormTest.assertSameCells(packed, runs);
+	}
+	
+	@Test
+	public void capacityChangesMatchAcrossForms()
+	{
+		BooleanMap b = this.blocky(640, 100);
+		int[][] capacities = {{700, 120, 30, 10}, {200, 50, -100, -20}, {640, 100, 65, 0}, {1000, 40, 0, -30}};
+		for (int[] capacity : capacities) for (boolean fill : new boolean[] {false, true})
+		{
+			BooleanMap packed = BooleanMapFormTest.packed(b);
+			BooleanMap runs = BooleanMapFormTest.runs(b);
+			packed.setCapacity(capacity[0], capacity[1], capacity[2], capacity[3], fill);
+			runs.setCapacity(capacity[0], capacity[1], capacity[2], capacity[3], fill);
+			BooleanMapFormTest.assertSameCells(packed, runs);
+		}
+	}
+	
+}
\ No newline at end of file
@@ -0,0 +1,87 @@
+package com.gmeister.temp.maps;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link BooleanMap#merge(BooleanMap, int, int, byte)} under every truth
+ * table against a merge done one cell at a time, with the merged map placed on
+ * and off the word boundary, and partly outside the target.
+ *
+ * @author The_G_Meister
+ */
+public class BooleanMapMergeTest
+{
+	
+	private static final int[][] ALIGNED = {{0, 0}, {64, 1}, {-64, 2}};
+	private static final int[][] UNALIGNED = {{3, 1}, {-5, -2}, {70, 3}, {63, 0}, {130, -4}};
+	
+	private final Random random = new Random(0);
+	
+	private boolean[][] cells(int xCapacity, int yCapacity)
+	{
+		boolean[][] cells = new boolean[yCapacity][xCapacity];
+		for (int y = 0; y < yCapacity; y++) for (int x = 0; x < xCapacity; x++) cells[y][x] = this.random.nextBoolean();
+		return cells;
+	}
+	
+	private static BooleanMap mapOf(boolean[][] cells)
+	{
+		BooleanMap output = new BooleanMap(cells[0].length, cells.length, false);
+		for (int y = 0; y < cells.length; y++) for (int x = 0; x < cells[0].length; x++)
+			output.setMapAt(x, y, cells[y][x]);
+		return output;
+	}
+	
+	// Bit 3 of a truth table is taken where neither cell is set, down to bit 0
+	// where both are
+	
+	private static boolean merge(byte mode, boolean a, boolean b)
+	{ return (mode >>> ((a ? 0 : 2) + (b ? 0 : 1)) & 1) != 0; }
+	
+	private void checkMerges(int[][] offsets)
+	{
+		boolean[][] a = this.cells(150, 7);
+		boolean[][] b = this.cells(90, 5);
+		for (int mode = 0; mode <= 0b1111; mode++) for (int[] offset : offsets)
+		{
+			BooleanMap map = BooleanMapMergeTest.mapOf(a);
+			map.merge(BooleanMapMergeTest.mapOf(b), offset[0], offset[1], (byte) mode);
+			
+			for (int y = 0; y < a.length; y++) for (int x = 0; x < a[0].length; x++)
+			{
+				int bx = x - offset[0];
+				int by = y - offset[1];
+				boolean inB = by >= 0 && by < b.length && bx >= 0 && bx < b[0].length;
+				boolean expected = BooleanMapMergeTest.merge((byte) mode, a[y][x], inB && b[by][bx]);
+				assertEquals("mode " + mode + " at " + offset[0] + ", " + offset[1] + ", cell " + x + ", " + y, expected,
+						map.getMapAt(x, y));
+			}
+		}
+	}
+	
+	@Test
+	public void alignedMergesMatchCellByCell()
+	{ this.checkMerges(BooleanMapMergeTest.ALIGNED); }
+	
+	@Test
+	public void unalignedMergesMatchCellByCell()
+	{ this.checkMerges(BooleanMapMergeTest.UNALIGNED); }
+	
+	@Test
+	public void mergeIntoItselfReadsTheCellsBeforeTheMerge()
+	{
+		boolean[][] a = this.cells(100, 4);
+		BooleanMap map = BooleanMapMergeTest.mapOf(a);
+		map.merge(map, 3, 1, BooleanMap.XOR);
+		for (int y = 0; y < a.length; y++) for (int x = 0; x < a[0].length; x++)
+		{
+			boolean b = x >= 3 && y >= 1 && a[y - 1][x - 3];
+			assertEquals("cell " + x + ", " + y, a[y][x] ^ b, map.getMapAt(x, y));
+		}
+	}
+	
+}
\ No newline at end of file
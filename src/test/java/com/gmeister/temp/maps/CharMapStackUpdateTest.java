@@ -0,0 +1,127 @@
+package com.gmeister.temp.maps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that recompositing only the cells which changed gives the same frame
+ * as recompositing every cell, as layers are moved, hidden, replaced and
+ * edited.
+ *
+ * @author The_G_Meister
+ */
+public class CharMapStackUpdateTest
+{
+	
+	private static final int X_CAPACITY = 120;
+	private static final int Y_CAPACITY = 40;
+	
+	private final Random random = new Random(0);
+	
+	private RenderedCharMap layer()
+	{
+		int xCapacity = 5 + this.random.nextInt(60);
+		int yCapacity = 3 + this.random.nextInt(20);
+		CharMap output = new CharMap(xCapacity, yCapacity, ' ', false);
+		for (int y = 0; y < yCapacity; y++) for (int x = 0; x < xCapacity; x++)
+		{
+			output.setMapAt(x, y, (char) ('!' + this.random.nextInt(94)));
+			output.setAlphaAt(x, y, this.random.nextInt(3) > 0);
+		}
+		return RenderedCharMap.copyOf(output);
+	}
+	
+	private void move(CharMapStack stack, int index)
+	{
+		stack.setOffsetAt(index, this.random.nextInt(CharMapStackUpdateTest.X_CAPACITY + 20) - 20,
+				this.random.nextInt(CharMapStackUpdateTest.Y_CAPACITY + 10) - 10);
+	}
+	
+	private static char[] chars(CharMapStack stack)
+	{
+		char[] chars = new char[CharMapStackUpdateTest.X_CAPACITY * CharMapStackUpdateTest.Y_CAPACITY];
+		for (int y = 0, i = 0; y < CharMapStackUpdateTest.Y_CAPACITY; y++)
+			for (int x = 0; x < CharMapStackUpdateTest.X_CAPACITY; x++, i++) chars[i] = stack.getMapAt(x, y);
+		return chars;
+	}
+	
+	@Test
+	public void partialUpdatesMatchFullUpdates()
+	{
+		CharMapStack stack = new CharMapStack(CharMapStackUpdateTest.X_CAPACITY, CharMapStackUpdateTest.Y_CAPACITY);
+		for (int z = 0; z < 8; z++)
+		{
+			stack.addMaps(this.layer());
+			this.move(stack, z);
+		}
+		stack.update();
+		
+		for (int step = 0; step < 300; step++)
+		{
+			int z = this.random.nextInt(8);
+			RenderedCharMap layer = stack.getMaps().get(z);
+			switch (this.random.nextInt(5))
+			{
+				case 0:
+					this.move(stack, z);
+					break;
+				case 1:
+					layer.setHidden(!layer.isHidden());
+					break;
+				case 2:
+					if (!layer.isHidden()) stack.replaceMapAt(z, this.layer());
+					break;
+				default:
+					if (layer.isHidden()) break;
+					int x = this.random.nextInt(layer.getXCapacity());
+					int y = this.random.nextInt(layer.getYCapacity());
+					layer.setMapAt(x, y, (char) ('!' + this.random.nextInt(94)));
+					layer.setAlphaAt(x, y, this.random.nextBoolean());
+			}
+			stack.update();
+			char[] partial = CharMapStackUpdateTest.chars(stack);
+			RenderedCharMap[] layers = new RenderedCharMap[partial.length];
+			for (int i = 0; i < layers.length; i++)
+				layers[i] = stack.getLayerAt(i % CharMapStackUpdateTest.X_CAPACITY, i / CharMapStackUpdateTest.X_CAPACITY);
+			
+			stack.invalidate();
+			stack.update();
+			assertArrayEquals("step " + step, CharMapStackUpdateTest.chars(stack), partial);
+			for (int i = 0; i < layers.length; i++) assertSame("step " + step + ", cell " + i, stack.getLayerAt(
+					i % CharMapStackUpdateTest.X_CAPACITY, i / CharMapStackUpdateTest.X_CAPACITY), layers[i]);
+		}
+	}
+	
+	@Test
+	public void mapsSetToOneAnotherChangeApart()
+	{
+		CharMap c = new CharMap(4, 2, 'a', true);
+		RenderedCharMap layer = RenderedCharMap.convert(c);
+		CharMapStack stack = new CharMapStack(CharMapStackUpdateTest.X_CAPACITY, CharMapStackUpdateTest.Y_CAPACITY);
+		stack.addMaps(layer);
+		stack.update();
+		
+		c.setMapAt(0, 0, 'z');
+		c.setAlphaAt(1, 0, false);
+		stack.update();
+		assertEquals('a', layer.getMapAt(0, 0));
+		assertEquals('a', stack.getMapAt(0, 0));
+		assertSame(layer, stack.getLayerAt(1, 0));
+		
+		layer.setMapAt(2, 1, 'y');
+		stack.update();
+		assertEquals('a', c.getMapAt(2, 1));
+		assertEquals('y', stack.getMapAt(2, 1));
+		
+		char[] partial = CharMapStackUpdateTest.chars(stack);
+		stack.invalidate();
+		stack.update();
+		assertArrayEquals(CharMapStackUpdateTest.chars(stack), partial);
+	}
+	
+}
\ No newline at end of file
@@ -0,0 +1,179 @@
+package com.gmeister.temp.maps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks a {@link ChunkedCharMap} against a {@link CharMap} given the same
+ * edits, under a map offset and as the capacity grows and shrinks.
+ *
+ * @author The_G_Meister
+ */
+public class ChunkedCharMapTest
+{
+	
+	private static final char BACKGROUND = '.';
+	
+	private final Random random = new Random(0);
+	
+	// A CharMap whose alpha map moves with its chars, as a ChunkedCharMap's does
+	
+	private static CharMap reference(int xCapacity, int yCapacity, int xOffset, int yOffset)
+	{
+		CharMap output = new CharMap(xCapacity, yCapacity, ChunkedCharMapTest.BACKGROUND, false);
+		output.setMapOffset(xOffset, yOffset);
+		output.setAlphaOffset(xOffset, yOffset);
+		return output;
+	}
+	
+	private CharMap sprite()
+	{
+		int xCapacity = 1 + this.random.nextInt(150);
+		int yCapacity = 1 + this.random.nextInt(6);
+		CharMap output = new CharMap(xCapacity, yCapacity, ' ', false);
+		for (int y = 0; y < yCapacity; y++) for (int x = 0; x < xCapacity; x++)
+		{
+			output.setMapAt(x, y, (char) ('!' + this.random.nextInt(94)));
+			output.setAlphaAt(x, y, this.random.nextInt(4) > 0);
+		}
+		return output;
+	}
+	
+	// Draws the same cells and merges the same sprites into both maps, at
+	// coordinates which include the map offset
+	
+	private void edit(ChunkedCharMap chunked, CharMap reference)
+	{
+		for (int i = 0; i < 200; i++)
+		{
+			int x = chunked.getXOffset() + this.random.nextInt(chunked.getXCapacity());
+			int y = chunked.getYOffset() + this.random.nextInt(chunked.getYCapacity());
+			char c = (char) ('!' + this.random.nextInt(94));
+			boolean b = this.random.nextBoolean();
+			chunked.setAt(x, y, c);
+			chunked.setAlphaAt(x, y, b);
+			reference.setAt(x, y, c);
+			reference.setAlphaAt(x, y, b);
+		}
+		for (int i = 0; i < 10; i++)
+		{
+			CharMap sprite = this.sprite();
+			int x = this.random.nextInt(chunked.getXCapacity() + 100) - 100;
+			int y = this.random.nextInt(chunked.getYCapacity() + 10) - 10;
+			chunked.merge(sprite, x, y);
+			reference.merge(sprite, x, y);
+		}
+	}
+	
+	private static void assertSameCells(String message, CharMap expected, ChunkedCharMap actual)
+	{
+		assertEquals(message, expected.getXCapacity(), actual.getXCapacity());
+		assertEquals(message, expected.getYCapacity(), actual.getYCapacity());
+		for (int y = 0; y < expected.getYCapacity(); y++) for (int x = 0; x < expected.getXCapacity(); x++)
+		{
+			String cell = message + ", cell " + x + ", " + y;
+			assertEquals(cell, expected.getMapAt(x, y), actual.getMapAt(x, y));
+			assertEquals(cell, expected.getAlphaMap().getMapAt(x, y), actual.getAlphaMapAt(x, y));
+			
+			int x2 = x + expected.getXOffset();
+			int y2 = y + expected.getYOffset();
+			if (expected.getAlphaAt(x2, y2)) assertEquals(cell, expected.getAt(x2, y2), actual.getAt(x2, y2));
+			else try
+			{
+				actual.getAt(x2, y2);
+				fail(cell + " is rendered");
+			}
+			catch (NotRenderedException e)
+			{
+				// Neither map renders the cell
+			}
+		}
+	}
+	
+	private static void assertRegion(String message, CharMap expected, int x, int y, CharMap region)
+	{
+		for (int y2 = 0; y2 < region.getYCapacity(); y2++) for (int x2 = 0; x2 < region.getXCapacity(); x2++)
+		{
+			String cell = message + ", cell " + x2 + ", " + y2;
+			boolean inside = expected.isWithinMapAt(x + x2, y + y2);
+			assertEquals(cell, inside ? expected.getMapAt(x + x2, y + y2) : ChunkedCharMapTest.BACKGROUND,
+					region.getMapAt(x2, y2));
+			assertEquals(cell, inside && expected.getAlphaMap().getMapAt(x + x2, y + y2),
+					region.getAlphaMap().getMapAt(x2, y2));
+		}
+	}
+	
+	@Test
+	public void editsMatchCharMapUnderOffsets()
+	{
+		int[][] offsets = {{0, 0}, {-70, 33}, {129, -64}, {-1, -1}};
+		for (int[] offset : offsets)
+		{
+			ChunkedCharMap chunked = new ChunkedCharMap(300, 140, ChunkedCharMapTest.BACKGROUND);
+			chunked.setMapOffset(offset[0], offset[1]);
+			CharMap reference = ChunkedCharMapTest.reference(300, 140, offset[0], offset[1]);
+			this.edit(chunked, reference);
+			ChunkedCharMapTest.assertSameCells("offset " + offset[0] + ", " + offset[1], reference, chunked);
+		}
+	}
+	
+	@Test
+	public void regionsMatchCharMap()
+	{
+		ChunkedCharMap chunked = new ChunkedCharMap(300, 140, ChunkedCharMapTest.BACKGROUND);
+		chunked.setMapOffset(-9, 4);
+		CharMap reference = ChunkedCharMapTest.reference(300, 140, -9, 4);
+		this.edit(chunked, reference);
+		
+		int[][] regions = {{0, 0, 300, 140}, {63, 1, 130, 64}, {-20, -5, 90, 30}, {250, 120, 100, 40},
+				{-400, 0, 50, 10}, {1, 200, 70, 3}};
+		for (int[] region : regions)
+		{
+			CharMap output = new CharMap(region[2], region[3], '#', true);
+			chunked.copyRegion(region[0], region[1], output);
+			ChunkedCharMapTest.assertRegion("region " + region[0] + ", " + region[1], reference, region[0], region[1],
+					output);
+		}
+	}
+	
+	@Test
+	public void capacityChangesMatchCharMap()
+	{
+		ChunkedCharMap chunked = new ChunkedCharMap(200, 100, ChunkedCharMapTest.BACKGROUND);
+		CharMap reference = ChunkedCharMapTest.reference(200, 100, 0, 0);
+		this.edit(chunked, reference);
+		
+		// Grows in place, then shrinks and moves cells out of the map, then grows
+		// back over the cleared cells
+		int[][] capacities = {{300, 150, 40, 20}, {500, 150, 0, 0}, {120, 60, -100, -30}, {90, 60, 10, 0},
+				{400, 200, 130, 70}, {64, 64, -64, -64}, {200, 100, 0, 0}};
+		for (int[] capacity : capacities)
+		{
+			chunked.setCapacity(capacity[0], capacity[1], capacity[2], capacity[3]);
+			reference.setCapacity(capacity[0], capacity[1], capacity[2], capacity[3], ChunkedCharMapTest.BACKGROUND);
+			reference.getAlphaMap().setCapacity(capacity[0], capacity[1], capacity[2], capacity[3], false);
+			String message = "capacity " + capacity[0] + ", " + capacity[1];
+			ChunkedCharMapTest.assertSameCells(message, reference, chunked);
+			
+			this.edit(chunked, reference);
+			ChunkedCharMapTest.assertSameCells(message + " after edits", reference, chunked);
+		}
+	}
+	
+	@Test
+	public void pourTextCopiesOnlyTheWindow()
+	{
+		// Far too large to materialise
+		ChunkedCharMap chunked = new ChunkedCharMap(1 << 30, 1 << 30, ChunkedCharMapTest.BACKGROUND);
+		chunked.drawAt(1 << 29, 1 << 29, '@');
+		chunked.setWindow((1 << 29) - 40, (1 << 29) - 12, 80, 24);
+		assertSame(chunked.pourText(), chunked.pourText());
+		assertEquals(1, chunked.getChunkCount());
+	}
+	
+}
\ No newline at end of file
@@ -0,0 +1,187 @@
+package com.gmeister.temp.maps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Checks that every frame {@link FrameBuffer#pourText()} hands out is a whole
+ * published frame, up to date in every cell even though each publish only
+ * copies the cells which changed, with the frames written and read on one
+ * thread and on two.
+ *
+ * @author The_G_Meister
+ */
+public class FrameBufferTest
+{
+	
+	private static final int X_CAPACITY = 50;
+	private static final int Y_CAPACITY = 20;
+	
+	/**
+	 * Builds the frames published by the test. Each frame fills one rectangle
+	 * picked from its number, and writes its number into the first two cells of
+	 * the last row, so a reader can tell which frame it holds and replay the
+	 * frames up to it.
+	 */
+	private static final class Frames
+	{
+		
+		private final char[] map = new char[FrameBufferTest.X_CAPACITY * FrameBufferTest.Y_CAPACITY];
+		private final DirtyRegion damage = new DirtyRegion();
+		private int number;
+		
+		private Frames()
+		{
+			Arrays.fill(this.map, ' ');
+			this.damage.add(0, 0, FrameBufferTest.X_CAPACITY, FrameBufferTest.Y_CAPACITY);
+			this.stamp();
+		}
+		
+		// Moves on to the next frame, leaving the cells it changed in damage
+		
+		private void next()
+		{
+			this.number++;
+			Random random = new Random(this.number);
+			int x0 = random.nextInt(FrameBufferTest.X_CAPACITY);
+			int y0 = random.nextInt(FrameBufferTest.Y_CAPACITY - 1);
+			int x1 = x0 + 1 + random.nextInt(FrameBufferTest.X_CAPACITY - x0);
+			int y1 = y0 + 1 + random.nextInt(FrameBufferTest.Y_CAPACITY - 1 - y0);
+			char c = (char) ('!' + random.nextInt(94));
+			for (int y = y0; y < y1; y++) for (int x = x0; x < x1; x++) this.map[y * FrameBufferTest.X_CAPACITY + x] = c;
+			
+			this.damage.clear();
+			this.damage.add(x0, y0, x1, y1);
+			this.stamp();
+		}
+		
+		private void stamp()
+		{
+			int base = (FrameBufferTest.Y_CAPACITY - 1) * FrameBufferTest.X_CAPACITY;
+			this.map[base] = (char) (this.number >>> 16);
+			this.map[base + 1] = (char) this.number;
+			this.damage.add(0, FrameBufferTest.Y_CAPACITY - 1, 2, FrameBufferTest.Y_CAPACITY);
+		}
+		
+		private void publish(FrameBuffer buffer)
+		{
+			buffer.publish(this.map, FrameBufferTest.X_CAPACITY, FrameBufferTest.X_CAPACITY, FrameBufferTest.Y_CAPACITY,
+					this.damage);
+		}
+		
+		// Replays the frames up to frame number, which must not be behind
+		
+		private void replayTo(int number)
+		{
+			assertTrue("frame " + number + " is older than frame " + this.number, number >= this.number);
+			while (this.number < number) this.next();
+		}
+		
+		private void assertMatches(char[][] rows)
+		{
+			for (int y = 0; y < FrameBufferTest.Y_CAPACITY; y++)
+			{
+				char[] expected = new char[FrameBufferTest.X_CAPACITY];
+				System.arraycopy(this.map, y * FrameBufferTest.X_CAPACITY, expected, 0, expected.length);
+				assertArrayEquals("frame " + this.number + ", row " + y, expected, rows[y]);
+			}
+		}
+		
+	}
+	
+	private static int numberOf(char[][] rows)
+	{
+		char[] row = rows[FrameBufferTest.Y_CAPACITY - 1];
+		return row[0] << 16 | row[1];
+	}
+	
+	// Checks the front buffer against the frame it is stamped with, returning the
+	// frame's number
+	
+	private static int check(FrameBuffer buffer, Frames replay)
+	{
+		buffer.pourText();
+		char[][] rows = buffer.getFrontBuffer();
+		assertEquals(FrameBufferTest.Y_CAPACITY, rows.length);
+		replay.replayTo(FrameBufferTest.numberOf(rows));
+		replay.assertMatches(rows);
+		return replay.number;
+	}
+	
+	@Test
+	public void reusedBuffersAreBroughtUpToDate()
+	{
+		Random random = new Random(0);
+		FrameBuffer buffer = new FrameBuffer();
+		Frames frames = new Frames();
+		Frames replay = new Frames();
+		frames.publish(buffer);
+		
+		// Pour after every publish, after none and after several, so each buffer
+		// comes back round having missed a varying number of frames
+		for (int i = 0; i < 2000; i++)
+		{
+			for (int j = random.nextInt(4); j > 0; j--)
+			{
+				frames.next();
+				frames.publish(buffer);
+			}
+			assertEquals(frames.number, FrameBufferTest.check(buffer, replay));
+		}
+	}
+	
+	@Test
+	public void readerOnlySeesWholeFrames() throws InterruptedException
+	{
+		final int count = 200000;
+		final FrameBuffer buffer = new FrameBuffer();
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		Frames first = new Frames();
+		first.publish(buffer);
+		
+		Thread writer = new Thread(new Runnable()
+		{
+			
+			@Override
+			public void run()
+			{
+				try
+				{
+					Frames frames = new Frames();
+					for (int i = 0; i < count; i++)
+					{
+						frames.next();
+						frames.publish(buffer);
+					}
+				}
+				catch (Throwable t)
+				{
+					failure.set(t);
+				}
+			}
+		
+		});
+		writer.start();
+		
+		Frames replay = new Frames();
+		int checks = 0;
+		while (writer.isAlive())
+		{
+			FrameBufferTest.check(buffer, replay);
+			checks++;
+		}
+		writer.join();
+		assertNull(failure.get());
+		assertEquals(count, FrameBufferTest.check(buffer, replay));
+		assertTrue(checks > 0);
+	}
+	
+}
\ No newline at end of file
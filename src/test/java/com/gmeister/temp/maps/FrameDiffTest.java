@@ -0,0 +1,151 @@
+package com.gmeister.temp.maps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Checks the runs {@link FrameDiff} finds, how it joins runs close together,
+ * and the ANSI sequences it writes for them.
+ *
+ * @author The_G_Meister
+ */
+public class FrameDiffTest
+{
+	
+	private static char[][] frame(String... rows)
+	{
+		char[][] output = new char[rows.length][];
+		for (int y = 0; y < rows.length; y++) output[y] = rows[y].toCharArray();
+		return output;
+	}
+	
+	private static String blank(int length)
+	{ return new String(new char[length]).replace('\0', ' '); }
+	
+	private static String ansi(FrameDiff diff) throws IOException
+	{
+		StringBuilder out = new StringBuilder();
+		diff.writeAnsi(out);
+		return out.toString();
+	}
+	
+	private static String runChars(FrameDiff diff, int i)
+	{ return new String(diff.getRunChars(), diff.getRunOffset(i), diff.getRunLength(i)); }
+	
+	@Test
+	public void firstDiffCoversEveryCell() throws IOException
+	{
+		FrameDiff diff = new FrameDiff();
+		assertEquals(2, diff.diff(FrameDiffTest.frame("ab", "cd")));
+		assertTrue(diff.isFullRedraw());
+		assertEquals("\u001B[H\u001B[2J\u001B[1;1Hab\u001B[2;1Hcd", FrameDiffTest.ansi(diff));
+		
+		assertEquals(0, diff.diff(FrameDiffTest.frame("ab", "cd")));
+		assertFalse(diff.isFullRedraw());
+		assertEquals("", FrameDiffTest.ansi(diff));
+		
+		// A change of size redraws everything again
+		assertEquals(1, diff.diff(FrameDiffTest.frame("abc")));
+		assertTrue(diff.isFullRedraw());
+	}
+	
+	@Test
+	public void runsCloserThanMergeGapAreJoined()
+	{
+		String row = FrameDiffTest.blank(60);
+		FrameDiff diff = new FrameDiff();
+		diff.diff(FrameDiffTest.frame(row));
+		
+		char[] changed = row.toCharArray();
+		// MERGE_GAP - 1 unchanged cells between two changes, which are joined
+		changed[2] = 'a';
+		changed[2 + FrameDiff.MERGE_GAP] = 'b';
+		// MERGE_GAP unchanged cells between two changes, which are not
+		changed[30] = 'c';
+		changed[31 + FrameDiff.MERGE_GAP] = 'd';
+		assertEquals(3, diff.diff(new char[][] {changed}));
+		
+		assertEquals(2, diff.getRunColumn(0));
+		assertEquals(FrameDiff.MERGE_GAP + 1, diff.getRunLength(0));
+		assertEquals("a" + FrameDiffTest.blank(FrameDiff.MERGE_GAP - 1) + "b", FrameDiffTest.runChars(diff, 0));
+		assertEquals(30, diff.getRunColumn(1));
+		assertEquals("c", FrameDiffTest.runChars(diff, 1));
+		assertEquals(31 + FrameDiff.MERGE_GAP, diff.getRunColumn(2));
+		assertEquals("d", FrameDiffTest.runChars(diff, 2));
+		for (int i = 0; i < 3; i++) assertEquals(0, diff.getRunRow(i));
+	}
+	
+	@Test
+	public void changesAreWrittenAsCursorMovesAndChars() throws IOException
+	{
+		String[] rows = new String[12];
+		for (int y = 0; y < rows.length; y++) rows[y] = FrameDiffTest.blank(120);
+		FrameDiff diff = new FrameDiff();
+		diff.diff(FrameDiffTest.frame(rows));
+		FrameDiffTest.ansi(diff);
+		
+		char[][] frame = FrameDiffTest.frame(rows);
+		frame[0][0] = 'x';
+		frame[3][9] = 'y';
+		frame[3][10] = 'z';
+		frame[11][104] = 'w';
+		diff.diff(frame);
+		assertEquals("\u001B[1;1Hx\u001B[4;10Hyz\u001B[12;105Hw", FrameDiffTest.ansi(diff));
+		
+		// The same frame as a CharMap finds nothing to change
+		CharMap map = new CharMap(120, 12, ' ', true);
+		map.setMapAt(0, 0, 'x');
+		map.setMapAt(9, 3, 'y');
+		map.setMapAt(10, 3, 'z');
+		map.setMapAt(104, 11, 'w');
+		assertEquals(0, diff.diff(map));
+		map.setMapAt(50, 6, 'v');
+		assertEquals(1, diff.diff(map));
+		assertEquals("\u001B[7;51Hv", FrameDiffTest.ansi(diff));
+	}
+	
+	@Test
+	public void failedWriteRedrawsEverything() throws IOException
+	{
+		FrameDiff diff = new FrameDiff();
+		diff.diff(FrameDiffTest.frame("abcd", "efgh"));
+		FrameDiffTest.ansi(diff);
+		
+		diff.diff(FrameDiffTest.frame("abXd", "efgY"));
+		try
+		{
+			diff.writeAnsi(new Appendable()
+			{
+				
+				@Override
+				public Appendable append(CharSequence csq) throws IOException
+				{ throw new IOException("Closed"); }
+				
+				@Override
+				public Appendable append(CharSequence csq, int start, int end) throws IOException
+				{ throw new IOException("Closed"); }
+				
+				@Override
+				public Appendable append(char c) throws IOException
+				{ throw new IOException("Closed"); }
+			
+			});
+			fail("The write did not fail");
+		}
+		catch (IOException e)
+		{
+			// The screen now holds some unknown part of the frame
+		}
+		
+		assertEquals(2, diff.diff(FrameDiffTest.frame("abXd", "efgY")));
+		assertTrue(diff.isFullRedraw());
+		assertEquals("\u001B[H\u001B[2J\u001B[1;1HabXd\u001B[2;1HefgY", FrameDiffTest.ansi(diff));
+	}
+	
+}
\ No newline at end of file
@@ -0,0 +1,153 @@
+package com.gmeister.temp.maps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that seeking an {@link AnimatedCharMap} to a frame, in order, out of
+ * order, and after the live map has been edited, always shows the frame as
+ * rebuilt by {@link AnimatedCharMap#getFrameAt(int)}.
+ *
+ * @author The_G_Meister
+ */
+public class FrameStoreTest
+{
+	
+	private static final int FRAME_COUNT = 100;
+	
+	private final Random random = new Random(0);
+	
+	private CharMap frame(int xCapacity, int yCapacity)
+	{
+		CharMap output = new CharMap(xCapacity, yCapacity, ' ', false);
+		for (int y = 0; y < yCapacity; y++) for (int x = 0; x < xCapacity; x++)
+		{
+			output.setMapAt(x, y, (char) ('!' + this.random.nextInt(94)));
+			output.setAlphaAt(x, y, this.random.nextBoolean());
+		}
+		return output;
+	}
+	
+	// Mostly small edits of the frame before, so most frames are stored as deltas,
+	// with some frames of a new shape and some empty ones
+	
+	private CharMap[] frames()
+	{
+		CharMap[] frames = new CharMap[FrameStoreTest.FRAME_COUNT];
+		CharMap last = this.frame(70, 9);
+		for (int i = 0; i < frames.length; i++)
+		{
+			int kind = this.random.nextInt(20);
+			if (kind == 0)
+			{
+				frames[i] = null;
+				continue;
+			}
+			if (kind == 1) last = this.frame(10 + this.random.nextInt(80), 1 + this.random.nextInt(10));
+			else
+			{
+				last = CharMap.copyOf(last);
+				for (int j = this.random.nextInt(12); j >= 0; j--)
+				{
+					int x = this.random.nextInt(last.getXCapacity());
+					int y = this.random.nextInt(last.getYCapacity());
+					last.setMapAt(x, y, (char) ('!' + this.random.nextInt(94)));
+					last.invertAlphaAt(x, y);
+				}
+			}
+			frames[i] = last;
+		}
+		return frames;
+	}
+	
+	private static void show(AnimatedCharMap map, int i)
+	{
+		map.queueFrame(i);
+		map.render();
+	}
+	
+	private static void assertShows(String message, AnimatedCharMap map, int i)
+	{
+		CharMap expected = map.getFrameAt(i);
+		if (expected == null)
+		{
+			assertEquals(message, 0, map.getXCapacity());
+			assertEquals(message, 0, map.getYCapacity());
+			return;
+		}
+		assertEquals(message, expected.getXCapacity(), map.getXCapacity());
+		assertEquals(message, expected.getYCapacity(), map.getYCapacity());
+		for (int y = 0; y < expected.getYCapacity(); y++) for (int x = 0; x < expected.getXCapacity(); x++)
+		{
+			assertEquals(message + ", cell " + x + ", " + y, expected.getMapAt(x, y), map.getMapAt(x, y));
+			assertEquals(message + ", alpha " + x + ", " + y, expected.getAlphaAt(x, y), map.getAlphaAt(x, y));
+		}
+	}
+	
+	private void edit(AnimatedCharMap map)
+	{
+		if (map.getXCapacity() == 0) return;
+		int x = this.random.nextInt(map.getXCapacity());
+		int y = this.random.nextInt(map.getYCapacity());
+		if (this.random.nextBoolean()) map.setMapAt(x, y, '~');
+		else map.invertAlphaAt(x, y);
+	}
+	
+	@Test
+	public void framesMatchInOrder()
+	{
+		CharMap[] frames = this.frames();
+		AnimatedCharMap map = new AnimatedCharMap(frames);
+		for (int i = 0; i < frames.length; i++)
+		{
+			FrameStoreTest.show(map, i);
+			FrameStoreTest.assertShows("frame " + i, map, i);
+		}
+		for (int i = frames.length - 1; i >= 0; i--)
+		{
+			FrameStoreTest.show(map, i);
+			FrameStoreTest.assertShows("frame " + i + " backwards", map, i);
+		}
+	}
+	
+	@Test
+	public void framesMatchOutOfOrderAndAfterEdits()
+	{
+		CharMap[] frames = this.frames();
+		AnimatedCharMap map = new AnimatedCharMap(frames);
+		for (int step = 0; step < 500; step++)
+		{
+			int i = this.random.nextInt(frames.length);
+			// Short hops forward patch the map, the rest reset it
+			if (this.random.nextBoolean()) i = Math.min(map.getCurrentFrame() + 1 + this.random.nextInt(3),
+					frames.length - 1);
+			FrameStoreTest.show(map, i);
+			FrameStoreTest.assertShows("step " + step + ", frame " + i, map, i);
+			for (int j = this.random.nextInt(4); j > 0; j--) this.edit(map);
+		}
+	}
+	
+	@Test
+	public void editsToTheLiveMapAreUndoneBySeeking()
+	{
+		CharMap f0 = new CharMap(8, 1, 'a', true);
+		CharMap f1 = CharMap.copyOf(f0);
+		f1.setAlphaAt(0, 0, false);
+		f1.setMapAt(3, 0, 'b');
+		AnimatedCharMap map = new AnimatedCharMap(f0, f1);
+		FrameStoreTest.show(map, 0);
+		
+		map.setAlphaAt(0, 0, false);
+		map.setMapAt(1, 0, 'q');
+		FrameStoreTest.show(map, 1);
+		assertFalse(map.getAlphaAt(0, 0));
+		assertEquals('a', map.getMapAt(1, 0));
+		assertEquals('b', map.getMapAt(3, 0));
+		FrameStoreTest.assertShows("frame 1", map, 1);
+	}
+	
+}
\ No newline at end of file
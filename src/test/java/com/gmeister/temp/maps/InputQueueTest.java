@@ -0,0 +1,178 @@
+package com.gmeister.temp.maps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiPredicate;
+
+import org.junit.Test;
+
+import com.gmeister.temp.pipe.input.InputAction;
+import com.gmeister.temp.pipe.input.InputData;
+
+/**
+ * Checks that an {@link InputQueue} drops input once full, keeps the input of
+ * each producer in order with several producing at once, and passes on a run
+ * of moves as only the last.
+ *
+ * @author The_G_Meister
+ */
+public class InputQueueTest
+{
+	
+	private static final class Event extends InputData
+	{
+		
+		private final int producer;
+		private final int number;
+		private final boolean move;
+		
+		private Event(int producer, int number, boolean move)
+		{
+			this.producer = producer;
+			this.number = number;
+			this.move = move;
+		}
+		
+	}
+	
+	private static final class Recorder implements InputAction
+	{
+		
+		private final List<Event> events = new ArrayList<>();
+		
+		@Override
+		public void act(InputData data)
+		{ this.events.add((Event) data); }
+		
+	}
+	
+	private static final class MovesCoalesce implements BiPredicate<InputData, InputData>
+	{
+		
+		@Override
+		public boolean test(InputData a, InputData b)
+		{ return ((Event) a).move && ((Event) b).move; }
+		
+	}
+	
+	@Test
+	public void inputIsDroppedWhenFull()
+	{
+		InputQueue queue = new InputQueue(5);
+		assertEquals(8, queue.getCapacity());
+		Recorder recorder = new Recorder();
+		
+		// Fill and drain the ring several times, so the slots go round more than
+		// one lap
+		for (int lap = 0; lap < 4; lap++)
+		{
+			for (int i = 0; i < 8; i++) assertTrue(queue.offer(new Event(0, i, false)));
+			assertFalse(queue.offer(new Event(0, 8, false)));
+			assertFalse(queue.offer(new Event(0, 9, false)));
+			assertEquals(2 * (lap + 1), queue.getDroppedCount());
+			
+			recorder.events.clear();
+			assertEquals(8, queue.drain(Collections.<InputAction> singletonList(recorder)));
+			for (int i = 0; i < 8; i++) assertEquals(i, recorder.events.get(i).number);
+			assertEquals(8, recorder.events.size());
+		}
+		assertEquals(0, queue.drain(Collections.<InputAction> singletonList(recorder)));
+	}
+	
+	@Test
+	public void eachProducersInputStaysInOrder() throws InterruptedException
+	{
+		final int producers = 4;
+		final int count = 100000;
+		final InputQueue queue = new InputQueue(256);
+		final int[] offered = new int[producers];
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++)
+		{
+			final int producer = p;
+			threads[p] = new Thread(new Runnable()
+			{
+				
+				@Override
+				public void run()
+				{
+					try
+					{
+						for (int i = 0; i < count; i++) if (queue.offer(new Event(producer, i, false))) offered[producer]++;
+					}
+					catch (Throwable t)
+					{
+						failure.set(t);
+					}
+				}
+			
+			});
+			threads[p].start();
+		}
+		
+		Recorder recorder = new Recorder();
+		List<InputAction> actions = Collections.<InputAction> singletonList(recorder);
+		int[] last = new int[producers];
+		int[] received = new int[producers];
+		Arrays.fill(last, -1);
+		boolean alive = true;
+		while (alive)
+		{
+			alive = false;
+			for (Thread thread : threads) alive |= thread.isAlive();
+			// Drain once more after the producers finish, to take the last of it
+			queue.drain(actions);
+			for (Event event : recorder.events)
+			{
+				assertTrue("producer " + event.producer + " went back to " + event.number,
+						event.number > last[event.producer]);
+				last[event.producer] = event.number;
+				received[event.producer]++;
+			}
+			recorder.events.clear();
+		}
+		for (Thread thread : threads) thread.join();
+		assertNull(failure.get());
+		
+		long total = 0;
+		for (int p = 0; p < producers; p++)
+		{
+			assertEquals("producer " + p, offered[p], received[p]);
+			total += offered[p];
+		}
+		assertEquals((long) producers * count, total + queue.getDroppedCount());
+	}
+	
+	@Test
+	public void runsOfMovesAreCoalesced()
+	{
+		InputQueue queue = new InputQueue(16, new MovesCoalesce());
+		boolean[] moves = {true, true, true, false, true, true, false, false, true};
+		for (int i = 0; i < moves.length; i++) assertTrue(queue.offer(new Event(0, i, moves[i])));
+		
+		// Only moves followed by another move are dropped
+		Recorder recorder = new Recorder();
+		int[] expected = {2, 3, 5, 6, 7, 8};
+		assertEquals(expected.length, queue.drain(Collections.<InputAction> singletonList(recorder)));
+		assertEquals(expected.length, recorder.events.size());
+		for (int i = 0; i < expected.length; i++) assertEquals(expected[i], recorder.events.get(i).number);
+		
+		// Moves queued after a drain wait for the next, and are coalesced there
+		assertTrue(queue.offer(new Event(0, 9, true)));
+		assertTrue(queue.offer(new Event(0, 10, true)));
+		recorder.events.clear();
+		assertEquals(1, queue.drain(Collections.<InputAction> singletonList(recorder)));
+		assertEquals(10, recorder.events.get(0).number);
+	}
+	
+}
\ No newline at end of file
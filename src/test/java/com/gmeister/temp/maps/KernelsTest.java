@@ -0,0 +1,98 @@
+package com.gmeister.temp.maps;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the kernels picked at startup against the scalar loops, over lengths
+ * which end on and off a whole vector. Run with the Vector API present, this
+ * checks the vector kernels; without it, both sides are the scalar loops.
+ *
+ * @author The_G_Meister
+ */
+public class KernelsTest
+{
+	
+	private static final Kernels SCALAR = new Kernels();
+	
+	private final Random random = new Random(0);
+	
+	private long[] words(int length)
+	{
+		long[] words = new long[length];
+		for (int i = 0; i < length; i++) words[i] = this.random.nextLong();
+		return words;
+	}
+	
+	private char[] chars(int length)
+	{
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) chars[i] = (char) ('!' + this.random.nextInt(94));
+		return chars;
+	}
+	
+	@Test
+	public void mergeMatchesScalarForEveryMode()
+	{
+		for (int mode = 0; mode <= 0b1111; mode++) for (int length = 0; length < 40; length++)
+		{
+			long[] a = this.words(length + 3);
+			long[] b = this.words(length + 5);
+			long[] expected = a.clone();
+			KernelsTest.SCALAR.merge((byte) mode, expected, 1, b, 4, length);
+			Kernels.INSTANCE.merge((byte) mode, a, 1, b, 4, length);
+			assertArrayEquals("mode " + mode + ", length " + length, expected, a);
+		}
+	}
+	
+	@Test
+	public void invertMatchesScalar()
+	{
+		for (int length = 0; length < 40; length++)
+		{
+			long[] words = this.words(length + 2);
+			long[] expected = words.clone();
+			KernelsTest.SCALAR.invert(expected, 2, length);
+			Kernels.INSTANCE.invert(words, 2, length);
+			assertArrayEquals("length " + length, expected, words);
+		}
+	}
+	
+	@Test
+	public void fillMatchesScalar()
+	{
+		for (int length = 0; length < 150; length++)
+		{
+			char[] chars = this.chars(length + 3);
+			char[] expected = chars.clone();
+			KernelsTest.SCALAR.fill(expected, 3, length, '#');
+			Kernels.INSTANCE.fill(chars, 3, length, '#');
+			assertArrayEquals("length " + length, expected, chars);
+		}
+	}
+	
+	@Test
+	public void blendMatchesScalar()
+	{
+		long[] masks = {0L, -1L, 0x5555555555555555L, 0xFFFF0000FFFF0000L, 1L, 1L << 63};
+		char[] source = this.chars(100);
+		for (int length = 1; length <= 64; length++)
+		{
+			for (long mask : masks) this.checkBlend(source, mask, length);
+			for (int i = 0; i < 20; i++) this.checkBlend(source, this.random.nextLong(), length);
+		}
+	}
+	
+	private void checkBlend(char[] source, long mask, int length)
+	{
+		char[] target = this.chars(80);
+		char[] expected = target.clone();
+		KernelsTest.SCALAR.blend(expected, 5, source, 17, mask, length);
+		Kernels.INSTANCE.blend(target, 5, source, 17, mask, length);
+		assertArrayEquals("mask " + Long.toHexString(mask) + ", length " + length, expected, target);
+	}
+	
+}
\ No newline at end of file
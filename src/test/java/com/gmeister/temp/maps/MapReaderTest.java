@@ -0,0 +1,231 @@
+package com.gmeister.temp.maps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that maps written by {@link MapWriter} read back the same through
+ * {@link MapReader}, and that malformed streams are rejected with an
+ * {@link IOException}.
+ *
+ * @author The_G_Meister
+ */
+public class MapReaderTest
+{
+	
+	private final Random random = new Random(0);
+	
+	private static byte[] write(Object... maps) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (MapWriter writer = new MapWriter(Channels.newChannel(bytes)))
+		{
+			for (Object map : maps)
+				if (map instanceof BooleanMap) writer.writeBooleanMap((BooleanMap) map);
+				else writer.writeCharMap((CharMap) map);
+		}
+		return bytes.toByteArray();
+	}
+	
+	private static MapReader reader(byte[] bytes)
+	{ return new MapReader(Channels.newChannel(new ByteArrayInputStream(bytes))); }
+	
+	// Random cells, which the writer packs
+	
+	private BooleanMap noise(int xCapacity, int yCapacity)
+	{
+		BooleanMap output = new BooleanMap(xCapacity, yCapacity, false);
+		for (int y = 0; y < yCapacity; y++)
+			for (int x = 0; x < xCapacity; x++) output.setMapAt(x, y, this.random.nextBoolean());
+		return output;
+	}
+	
+	// A few long runs, which the writer writes as runs
+	
+	private BooleanMap blocky(int xCapacity, int yCapacity)
+	{
+		BooleanMap output = new BooleanMap(xCapacity, yCapacity, false);
+		output.merge(new BooleanMap(xCapacity / 2, yCapacity / 2, true), xCapacity / 5, yCapacity / 3);
+		for (int i = 0; i < 5; i++) output.invertMapAt(this.random.nextInt(xCapacity), this.random.nextInt(yCapacity));
+		return output;
+	}
+	
+	private CharMap chars(int xCapacity, int yCapacity, BooleanMap alpha)
+	{
+		CharMap output = new CharMap(xCapacity, yCapacity, ' ', false);
+		for (int y = 0; y < yCapacity; y++) for (int x = 0; x < xCapacity; x++)
+			// Long repeats as well as literals, and chars which take several bytes
+			if (x % 20 >= 10) output.setMapAt(x, y, '=');
+			else output.setMapAt(x, y, (char) (this.random.nextBoolean() ? '!' + this.random.nextInt(94)
+					: 0x100 + this.random.nextInt(0xFE00)));
+		output.setBooleanMap(alpha);
+		return output;
+	}
+	
+	private static void assertSameCells(String message, BooleanMap expected, BooleanMap actual)
+	{
+		assertEquals(message, expected.getXCapacity(), actual.getXCapacity());
+		assertEquals(message, expected.getYCapacity(), actual.getYCapacity());
+		assertEquals(message, expected.getXOffset(), actual.getXOffset());
+		assertEquals(message, expected.getYOffset(), actual.getYOffset());
+		for (int y = 0; y < expected.getYCapacity(); y++) for (int x = 0; x < expected.getXCapacity(); x++)
+			assertEquals(message + ", alpha " + x + ", " + y, expected.getMapAt(x, y), actual.getMapAt(x, y));
+	}
+	
+	private static void assertSameCells(String message, CharMap expected, CharMap actual)
+	{
+		if (expected == null)
+		{
+			assertNull(message, actual);
+			return;
+		}
+		assertEquals(message, expected.getXCapacity(), actual.getXCapacity());
+		assertEquals(message, expected.getYCapacity(), actual.getYCapacity());
+		assertEquals(message, expected.getXOffset(), actual.getXOffset());
+		assertEquals(message, expected.getYOffset(), actual.getYOffset());
+		assertEquals(message, expected.getAlphaXOffset(), actual.getAlphaXOffset());
+		assertEquals(message, expected.getAlphaYOffset(), actual.getAlphaYOffset());
+		for (int y = 0; y < expected.getYCapacity(); y++) for (int x = 0; x < expected.getXCapacity(); x++)
+			assertEquals(message + ", cell " + x + ", " + y, expected.getMapAt(x, y), actual.getMapAt(x, y));
+		MapReaderTest.assertSameCells(message, expected.getAlphaMap(), actual.getAlphaMap());
+	}
+	
+	// The tag and body of the first record, which starts after the magic and
+	// version
+	
+	private static byte[] body(byte[] stream)
+	{ return Arrays.copyOfRange(stream, 5, stream.length); }
+	
+	private static void assertRejected(String message, byte[] record)
+	{
+		ByteBuffer bytes = ByteBuffer.allocate(5 + record.length);
+		bytes.putInt(MapFormat.MAGIC).put((byte) MapFormat.VERSION).put(record);
+		try (MapReader reader = MapReaderTest.reader(bytes.array()))
+		{
+			reader.readCharMap();
+			fail(message + " was read");
+		}
+		catch (IOException e)
+		{
+			// Rejected as it should be
+		}
+	}
+	
+	@Test
+	public void booleanMapsRoundTripInBothModes() throws IOException
+	{
+		BooleanMap packed = this.noise(100, 7);
+		packed.setOffset(-3, -60);
+		BooleanMap runs = this.blocky(120, 20);
+		runs.setOffset(60, -1);
+		BooleanMap empty = new BooleanMap(0, 0, false);
+		
+		byte[] stream = MapReaderTest.write(packed, runs, empty);
+		// The mode byte follows the tag, two capacities and two offsets, each of
+		// which fits in a byte here
+		assertEquals(MapFormat.PACKED, MapReaderTest.body(MapReaderTest.write(packed))[5]);
+		assertEquals(MapFormat.RUNS, MapReaderTest.body(MapReaderTest.write(runs))[5]);
+		
+		try (MapReader reader = MapReaderTest.reader(stream))
+		{
+			MapReaderTest.assertSameCells("packed", packed, reader.readBooleanMap());
+			MapReaderTest.assertSameCells("runs", runs, reader.readBooleanMap());
+			MapReaderTest.assertSameCells("empty", empty, reader.readBooleanMap());
+			assertFalse(reader.hasNext());
+		}
+	}
+	
+	@Test
+	public void charMapsRoundTripWithNegativeOffsets() throws IOException
+	{
+		BooleanMap alpha = this.blocky(90, 12);
+		alpha.setOffset(-2, 5);
+		CharMap map = this.chars(100, 10, alpha);
+		map.setMapOffset(-40, -7);
+		map.setAlphaOffset(-1, -300);
+		CharMap noisy = this.chars(70, 4, this.noise(70, 4));
+		noisy.setMapOffset(Integer.MIN_VALUE, Integer.MAX_VALUE);
+		
+		try (MapReader reader = MapReaderTest.reader(MapReaderTest.write(map, noisy)))
+		{
+			assertTrue(reader.hasNext());
+			MapReaderTest.assertSameCells("blocky", map, reader.readCharMap());
+			MapReaderTest.assertSameCells("noisy", noisy, reader.readCharMap());
+			assertFalse(reader.hasNext());
+		}
+	}
+	
+	@Test
+	public void animationsRoundTripWithEmptyFrames() throws IOException
+	{
+		CharMap[] frames = new CharMap[6];
+		for (int i = 0; i < frames.length; i++)
+		{
+			if (i % 3 == 1) continue;
+			frames[i] = this.chars(30 + i, 3, this.noise(30 + i, 3));
+			frames[i].setMapOffset(-i, i - 4);
+		}
+		AnimatedCharMap animation = new AnimatedCharMap(2, frames);
+		animation.render();
+		
+		CharMap read;
+		try (MapReader reader = MapReaderTest.reader(MapReaderTest.write(animation)))
+		{
+			read = reader.readCharMap();
+		}
+		assertTrue(read instanceof AnimatedCharMap);
+		AnimatedCharMap readAnimation = (AnimatedCharMap) read;
+		assertEquals(frames.length, readAnimation.getNoOfFrames());
+		assertEquals(2, readAnimation.getCurrentFrame());
+		MapReaderTest.assertSameCells("live map", animation, readAnimation);
+		for (int i = 0; i < frames.length; i++)
+			MapReaderTest.assertSameCells("frame " + i, animation.getFrameAt(i), readAnimation.getFrameAt(i));
+	}
+	
+	@Test
+	public void malformedFramesAreRejected()
+	{
+		// The body of an empty char map with frames, up to its frame count: the
+		// flags, six zero capacities and offsets, an empty alpha body and current
+		// frame 0
+		byte[] head = {MapFormat.HAS_FRAMES, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, MapFormat.PACKED, 0};
+		byte[] tag = {MapFormat.CHAR_MAP};
+		
+		MapReaderTest.assertRejected("A negative frame count", MapReaderTest.concat(tag, head,
+				new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F}));
+		MapReaderTest.assertRejected("A huge frame count", MapReaderTest.concat(tag, head,
+				new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07}));
+		MapReaderTest.assertRejected("A frame count the stream does not hold", MapReaderTest.concat(tag, head,
+				new byte[] {(byte) 0x80, (byte) 0x80, 0x20, 0}));
+		
+		// Each map holds one frame which has frames of its own, deep enough to
+		// overflow the stack if they were followed
+		byte[] level = MapReaderTest.concat(head, new byte[] {1, 1});
+		byte[][] levels = new byte[100000][];
+		Arrays.fill(levels, level);
+		MapReaderTest.assertRejected("A frame with frames", MapReaderTest.concat(tag, MapReaderTest.concat(levels)));
+	}
+	
+	private static byte[] concat(byte[]... arrays)
+	{
+		int length = 0;
+		for (byte[] array : arrays) length += array.length;
+		ByteBuffer output = ByteBuffer.allocate(length);
+		for (byte[] array : arrays) output.put(array);
+		return output.array();
+	}
+	
+}
\ No newline at end of file
@@ -0,0 +1,125 @@
+package com.gmeister.temp.maps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that maps sharing content through a {@link SpriteAtlas} hold it once,
+ * and that a change to one of them never shows in the others or in the atlas.
+ *
+ * @author The_G_Meister
+ */
+public class SpriteAtlasTest
+{
+	
+	private final Random random = new Random(0);
+	
+	private CharMap frame(int xCapacity, int yCapacity)
+	{
+		CharMap output = new CharMap(xCapacity, yCapacity, ' ', false);
+		for (int y = 0; y < yCapacity; y++) for (int x = 0; x < xCapacity; x++)
+		{
+			output.setMapAt(x, y, (char) ('!' + this.random.nextInt(94)));
+			output.setAlphaAt(x, y, this.random.nextBoolean());
+		}
+		return output;
+	}
+	
+	private CharMap[] frames()
+	{
+		CharMap[] frames = new CharMap[3];
+		for (int i = 0; i < frames.length; i++) frames[i] = this.frame(70, 4);
+		return frames;
+	}
+	
+	private static void show(AnimatedCharMap map, int i)
+	{
+		map.queueFrame(i);
+		map.render();
+	}
+	
+	private static void assertSameCells(String message, CharMap expected, CharMap actual)
+	{
+		assertEquals(message, expected.getXCapacity(), actual.getXCapacity());
+		assertEquals(message, expected.getYCapacity(), actual.getYCapacity());
+		for (int y = 0; y < expected.getYCapacity(); y++) for (int x = 0; x < expected.getXCapacity(); x++)
+		{
+			assertEquals(message + ", cell " + x + ", " + y, expected.getMapAt(x, y), actual.getMapAt(x, y));
+			assertEquals(message + ", alpha " + x + ", " + y, expected.getAlphaAt(x, y), actual.getAlphaAt(x, y));
+		}
+	}
+	
+	@Test
+	public void equalFramesInternToOneCopy()
+	{
+		SpriteAtlas atlas = new SpriteAtlas();
+		CharMap[] frames = this.frames();
+		CharMap copy = CharMap.copyOf(frames[0]);
+		assertSame(atlas.canonical(frames[0]), atlas.canonical(copy));
+		assertEquals(1, atlas.getCharMapCount());
+		
+		// Maps built from the same frames add nothing to the atlas
+		new AnimatedCharMap(atlas, frames);
+		new AnimatedCharMap(atlas, CharMap.copyOf(frames[2]), CharMap.copyOf(frames[1]), copy);
+		assertEquals(3, atlas.getCharMapCount());
+		for (CharMap frame : frames) assertSame(atlas.canonical(frame), atlas.canonical(CharMap.copyOf(frame)));
+		
+		// The same cells at another offset are other content
+		copy.setMapOffset(1, 0);
+		assertNotSame(atlas.canonical(frames[0]), atlas.canonical(copy));
+		assertEquals(4, atlas.getCharMapCount());
+		
+		// Frames which differ only in their chars share one alpha plane
+		CharMap chars = CharMap.copyOf(frames[1]);
+		chars.setMapAt(0, 0, (char) (chars.getMapAt(0, 0) + 1));
+		int alphas = atlas.getBooleanMapCount();
+		assertNotSame(atlas.canonical(frames[1]), atlas.canonical(chars));
+		assertEquals(alphas, atlas.getBooleanMapCount());
+		assertSame(atlas.canonical(frames[1].getAlphaMap()), atlas.canonical(chars.getAlphaMap()));
+	}
+	
+	@Test
+	public void editsToOneMapDoNotReachTheOthers()
+	{
+		SpriteAtlas atlas = new SpriteAtlas();
+		CharMap[] frames = this.frames();
+		CharMap[] originals = new CharMap[frames.length];
+		for (int i = 0; i < frames.length; i++) originals[i] = CharMap.copyOf(frames[i]);
+		
+		AnimatedCharMap a = new AnimatedCharMap(atlas, frames);
+		AnimatedCharMap b = new AnimatedCharMap(atlas, frames);
+		CharMap interned = atlas.intern(frames[1]);
+		CharMap atlasCopy = atlas.canonical(frames[1]);
+		SpriteAtlasTest.show(a, 1);
+		SpriteAtlasTest.show(b, 1);
+		
+		// Through the map's setters, and straight through its alpha map
+		a.setMapAt(0, 0, '#');
+		a.invertAlphaAt(1, 0);
+		a.getAlphaMap().invertMapAt(2, 3);
+		interned.setMapAt(5, 2, '%');
+		interned.setAlphaAt(6, 2, !interned.getAlphaAt(6, 2));
+		// The frames given are copied in, so changing them changes nothing either
+		frames[1].setMapAt(7, 1, '&');
+		
+		SpriteAtlasTest.assertSameCells("other map", originals[1], b);
+		SpriteAtlasTest.assertSameCells("atlas copy", originals[1], atlasCopy);
+		assertSame(atlasCopy, atlas.canonical(originals[1]));
+		SpriteAtlasTest.assertSameCells("stored frame", originals[1], a.getFrameAt(1));
+		assertEquals('#', a.getMapAt(0, 0));
+		assertEquals('%', interned.getMapAt(5, 2));
+		
+		// Seeking away and back shows the frame as interned
+		SpriteAtlasTest.show(a, 2);
+		SpriteAtlasTest.assertSameCells("frame 2", originals[2], a);
+		SpriteAtlasTest.show(a, 1);
+		SpriteAtlasTest.assertSameCells("frame 1", originals[1], a);
+		assertEquals(frames.length, atlas.getCharMapCount());
+	}
+	
+}
\ No newline at end of file